@@ -0,0 +1,63 @@
+package com.microsoft.capacitor.benchmark;
+
+import com.microsoft.capacitor.AssetSource;
+import com.microsoft.capacitor.Utilities;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Listing of the binary assets under public/ by {@link Utilities#getAssetsList(AssetSource, String, Set)}, as done
+ * when the binary hash is computed and when a diff update copies the binary contents. The asset index is read
+ * once per process, so this measures the lookups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AssetListBenchmark {
+    private static final Set<String> IGNORED_FILES = new HashSet<String>(Arrays.asList(".codepushrelease", ".DS_Store", "__MACOSX"));
+
+    @Param({"100", "1000", "10000"})
+    public int fileCount;
+
+    private File assetsDirectory;
+    private AssetSource assetSource;
+
+    @Setup(Level.Trial)
+    public void createAssets() throws Exception {
+        assetsDirectory = SyntheticPackages.createTempDirectory("codepush-assets");
+        SyntheticPackages.writePackage(assetsDirectory, fileCount, 16, 1);
+        SyntheticPackages.writeAssetIndex(assetsDirectory);
+        assetSource = SyntheticPackages.getAssetSource(assetsDirectory);
+    }
+
+    @Benchmark
+    public String[] listAssets() throws Exception {
+        return Utilities.getAssetsList(assetSource, "public", IGNORED_FILES);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteAssets() {
+        SyntheticPackages.deleteRecursively(assetsDirectory);
+    }
+}
@@ -0,0 +1,81 @@
+package com.microsoft.capacitor.benchmark;
+
+import com.microsoft.capacitor.UpdateHashUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of a single package file by {@link UpdateHashUtils#getHashForFile(File)}, which reuses a digest and a
+ * read buffer per thread, against perCall, the path it replaced, which allocated a digest, an 8 KB buffer and a
+ * DigestInputStream per file and hex-encoded through BigInteger and String.format.
+ * Run with -prof gc to compare the bytes allocated per file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileHashBenchmark {
+
+    @Param({"4096", "4194304"})
+    public int fileSize;
+
+    private File workDirectory;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws Exception {
+        workDirectory = SyntheticPackages.createTempDirectory("codepush-file-hash");
+        SyntheticPackages.writePackage(workDirectory, 1, fileSize, 1);
+        file = new File(workDirectory, SyntheticPackages.getRelativePath(0));
+        /* the buffered read path, whatever the file size */
+        UpdateHashUtils.setMemoryMappingThreshold(-1);
+    }
+
+    @Benchmark
+    public String reused() throws Exception {
+        return UpdateHashUtils.getHashForFile(file);
+    }
+
+    @Benchmark
+    public String perCall() throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        InputStream dataStream = new FileInputStream(file);
+        DigestInputStream digestInputStream = new DigestInputStream(dataStream, messageDigest);
+        try {
+            byte[] byteBuffer = new byte[1024 * 8];
+            while (digestInputStream.read(byteBuffer) != -1);
+        } finally {
+            digestInputStream.close();
+        }
+
+        return String.format("%064x", new BigInteger(1, messageDigest.digest()));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        UpdateHashUtils.setMemoryMappingThreshold(1024 * 1024);
+        SyntheticPackages.deleteRecursively(workDirectory);
+    }
+}
@@ -0,0 +1,62 @@
+package com.microsoft.capacitor.benchmark;
+
+import com.microsoft.capacitor.UpdateHashUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of a single package file by {@link UpdateHashUtils#getHashForFile(File)} through buffered reads or a
+ * memory mapping. The smallest size from which memoryMapped is faster is the value to configure through
+ * ANDROID_HASH_MMAP_THRESHOLD.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MemoryMappedHashBenchmark {
+
+    @Param({"16384", "65536", "262144", "1048576", "4194304", "16777216"})
+    public int fileSize;
+
+    @Param({"false", "true"})
+    public boolean memoryMapped;
+
+    private File workDirectory;
+    private File file;
+
+    @Setup(Level.Trial)
+    public void createFile() throws Exception {
+        workDirectory = SyntheticPackages.createTempDirectory("codepush-mmap-hash");
+        SyntheticPackages.writePackage(workDirectory, 1, fileSize, 1);
+        file = new File(workDirectory, SyntheticPackages.getRelativePath(0));
+        UpdateHashUtils.setMemoryMappingThreshold(memoryMapped ? 0 : -1);
+    }
+
+    @Benchmark
+    public String hashFile() throws Exception {
+        return UpdateHashUtils.getHashForFile(file);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFile() {
+        UpdateHashUtils.setMemoryMappingThreshold(1024 * 1024);
+        SyntheticPackages.deleteRecursively(workDirectory);
+    }
+}
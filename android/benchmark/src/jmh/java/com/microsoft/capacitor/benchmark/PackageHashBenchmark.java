@@ -0,0 +1,80 @@
+package com.microsoft.capacitor.benchmark;
+
+import com.microsoft.capacitor.PackageHashIndex;
+import com.microsoft.capacitor.UpdateHashUtils;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing of an extracted package directory by {@link UpdateHashUtils#getHashForPath(File, String)}, as done
+ * by getPackageHash. With useIndex, the persistent file-hash index of the previous run is kept, otherwise
+ * every file is hashed again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PackageHashBenchmark {
+    private static final String PACKAGE_PATH = "package/public";
+
+    @Param({"100", "1000"})
+    public int fileCount;
+
+    @Param({"4096", "262144"})
+    public int fileSize;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param({"false", "true"})
+    public boolean useIndex;
+
+    private File filesDir;
+    private ForkJoinPool hashingPool;
+
+    @Setup(Level.Trial)
+    public void createPackage() throws Exception {
+        filesDir = SyntheticPackages.createTempDirectory("codepush-hash");
+        SyntheticPackages.writePackage(new File(filesDir, "package"), fileCount, fileSize, 1);
+        /* the plugin hands the pool of its executor, see CodePushExecutor.getHashingPool */
+        hashingPool = new ForkJoinPool(parallelism);
+        UpdateHashUtils.setHashingPool(hashingPool);
+    }
+
+    @Setup(Level.Invocation)
+    public void dropIndex() {
+        if (!useIndex) {
+            PackageHashIndex.delete(filesDir, PACKAGE_PATH);
+        }
+    }
+
+    @Benchmark
+    public String hashPackage() throws Exception {
+        return UpdateHashUtils.getHashForPath(filesDir, PACKAGE_PATH);
+    }
+
+    @TearDown(Level.Trial)
+    public void deletePackage() {
+        UpdateHashUtils.setHashingPool(null);
+        hashingPool.shutdown();
+        SyntheticPackages.deleteRecursively(filesDir);
+    }
+}
@@ -0,0 +1,63 @@
+package com.microsoft.capacitor.benchmark;
+
+import com.microsoft.capacitor.CodePushPackageMetadata;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading of a package metadata file by {@link CodePushPackageMetadata#getPackageMetadata(String)}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PackageMetadataBenchmark {
+    private static final String METADATA = "{\"deploymentKey\":\"deployment-key\",\"description\":\"Fixes the checkout page\","
+            + "\"label\":\"v42\",\"appVersion\":\"1.2.3\",\"isMandatory\":false,"
+            + "\"packageHash\":\"0f1e2d3c4b5a69788796a5b4c3d2e1f00f1e2d3c4b5a69788796a5b4c3d2e1f0\","
+            + "\"packageSize\":4194304,\"nativeBuildTime\":\"1616161616161\","
+            + "\"localPath\":\"/codepush/deploy/versions/0f1e2d3c4b5a69788796a5b4c3d2e1f0/\"}";
+
+    private File directory;
+    private String metadataPath;
+
+    @Setup(Level.Trial)
+    public void writeMetadata() throws Exception {
+        directory = SyntheticPackages.createTempDirectory("codepush-metadata");
+        File metadataFile = new File(directory, "currentPackage.json");
+        FileOutputStream fout = new FileOutputStream(metadataFile);
+        try {
+            fout.write(METADATA.getBytes("UTF-8"));
+        } finally {
+            fout.close();
+        }
+        metadataPath = metadataFile.getPath();
+    }
+
+    @Benchmark
+    public CodePushPackageMetadata readMetadata() {
+        return CodePushPackageMetadata.getPackageMetadata(metadataPath);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteMetadata() {
+        SyntheticPackages.deleteRecursively(directory);
+    }
+}
@@ -0,0 +1,40 @@
+package com.microsoft.capacitor.benchmark;
+
+import com.microsoft.capacitor.ReportingStatus;
+import com.microsoft.capacitor.StatusReport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialization of the status reports kept in the preferences until they are sent.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatusReportBenchmark {
+    private final StatusReport report = new StatusReport(ReportingStatus.STORE_VERSION, "v42", "1.2.3", "deployment-key", "v41", "previous-deployment-key");
+    private final String serializedReport = report.serialize();
+
+    @Benchmark
+    public String serialize() {
+        return report.serialize();
+    }
+
+    @Benchmark
+    public StatusReport deserialize() throws Exception {
+        return StatusReport.deserialize(serializedReport);
+    }
+}
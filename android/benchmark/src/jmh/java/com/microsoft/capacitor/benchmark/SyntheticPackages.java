@@ -0,0 +1,178 @@
+package com.microsoft.capacitor.benchmark;
+
+import com.microsoft.capacitor.AssetSource;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Builds the synthetic update packages the benchmarks run on: a public/ tree of text-like files spread over a few
+ * folders, its zip archive, and the cdvasset.index the capCreateAssetManifest gradle task would generate for it.
+ */
+final class SyntheticPackages {
+    private static final int FOLDER_COUNT = 16;
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz{}();=. \n";
+
+    private SyntheticPackages() {
+    }
+
+    static File createTempDirectory(String prefix) throws IOException {
+        File directory = File.createTempFile(prefix, "");
+        if (!directory.delete() || !directory.mkdirs()) {
+            throw new IOException("Failed to create directory: " + directory.getAbsolutePath());
+        }
+
+        return directory;
+    }
+
+    /**
+     * Writes fileCount files of fileSize bytes under packageDirectory/public. The same seed gives the same files.
+     */
+    static void writePackage(File packageDirectory, int fileCount, int fileSize, long seed) throws IOException {
+        Random random = new Random(seed);
+        byte[] contents = new byte[fileSize];
+        for (int i = 0; i < fileCount; i++) {
+            File file = new File(packageDirectory, getRelativePath(i));
+            File parent = file.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Failed to create directory: " + parent.getAbsolutePath());
+            }
+
+            for (int j = 0; j < contents.length; j++) {
+                contents[j] = (byte) ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+            }
+            FileOutputStream fout = new FileOutputStream(file);
+            try {
+                fout.write(contents);
+            } finally {
+                fout.close();
+            }
+        }
+    }
+
+    static String getRelativePath(int fileIndex) {
+        return "public/folder" + (fileIndex % FOLDER_COUNT) + "/file" + fileIndex + ".js";
+    }
+
+    /**
+     * Zips the contents of the package directory, with paths relative to it.
+     */
+    static void zipPackage(File packageDirectory, File zipFile) throws IOException {
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(zipFile));
+        try {
+            for (String relativePath : listFiles(packageDirectory)) {
+                zout.putNextEntry(new ZipEntry(relativePath));
+                InputStream inputStream = new FileInputStream(new File(packageDirectory, relativePath));
+                try {
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while ((count = inputStream.read(buffer)) != -1) {
+                        zout.write(buffer, 0, count);
+                    }
+                } finally {
+                    inputStream.close();
+                }
+                zout.closeEntry();
+            }
+        } finally {
+            zout.close();
+        }
+    }
+
+    /**
+     * Writes the cdvasset.index of the assets directory, in the format read by AssetManifestIndex.
+     */
+    static void writeAssetIndex(File assetsDirectory) throws IOException {
+        TreeMap<String, Long> sizes = new TreeMap<String, Long>();
+        TreeSet<String> directories = new TreeSet<String>();
+        directories.add("");
+        for (String relativePath : listFiles(assetsDirectory)) {
+            sizes.put(relativePath, new File(assetsDirectory, relativePath).length());
+            for (int separator = relativePath.indexOf('/'); separator >= 0; separator = relativePath.indexOf('/', separator + 1)) {
+                directories.add(relativePath.substring(0, separator));
+            }
+        }
+
+        List<String> paths = new ArrayList<String>(sizes.keySet());
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(assetsDirectory, "cdvasset.index")));
+        try {
+            out.writeInt(0x43504149);
+            out.writeInt(1);
+            out.writeInt(paths.size());
+            for (String path : paths) {
+                out.writeUTF(path);
+                out.writeLong(sizes.get(path));
+            }
+            out.writeInt(directories.size());
+            for (String directory : directories) {
+                out.writeUTF(directory);
+                out.writeInt(directory.isEmpty() ? 0 : lowerBound(paths, directory + "/"));
+                out.writeInt(directory.isEmpty() ? paths.size() : lowerBound(paths, directory + "0"));
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static AssetSource getAssetSource(final File assetsDirectory) {
+        return new AssetSource() {
+            @Override
+            public InputStream open(String path) throws IOException {
+                return new FileInputStream(new File(assetsDirectory, path));
+            }
+        };
+    }
+
+    static void deleteRecursively(File entry) {
+        File[] children = entry.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+
+        entry.delete();
+    }
+
+    private static int lowerBound(List<String> paths, String key) {
+        int index = Collections.binarySearch(paths, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    /**
+     * Lists the files under the directory, as sorted '/' separated relative paths.
+     */
+    private static List<String> listFiles(File directory) {
+        List<String> relativePaths = new ArrayList<String>();
+        addFiles(directory, "", relativePaths);
+        Collections.sort(relativePaths);
+        return relativePaths;
+    }
+
+    private static void addFiles(File directory, String prefix, List<String> relativePaths) {
+        File[] children = directory.listFiles();
+        if (children == null) {
+            return;
+        }
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                addFiles(child, prefix + child.getName() + "/", relativePaths);
+            } else {
+                relativePaths.add(prefix + child.getName());
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.microsoft.capacitor.benchmark;
+
+import com.microsoft.capacitor.Utilities;
+import com.microsoft.capacitor.ZipExtractor;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Extraction of an update archive by {@link Utilities#unzip}, into an empty directory. With hashFiles, the
+ * file hashes are computed while extracting, as done by unzipAndHash.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UnzipBenchmark {
+
+    @Param({"100", "1000"})
+    public int fileCount;
+
+    @Param({"4096", "262144"})
+    public int fileSize;
+
+    @Param({"1", "4"})
+    public int parallelism;
+
+    @Param({"false", "true"})
+    public boolean hashFiles;
+
+    private File workDirectory;
+    private File zipFile;
+    private File targetDirectory;
+    private ExecutorService extractionPool;
+
+    @Setup(Level.Trial)
+    public void createArchive() throws Exception {
+        workDirectory = SyntheticPackages.createTempDirectory("codepush-unzip");
+        File packageDirectory = new File(workDirectory, "package");
+        SyntheticPackages.writePackage(packageDirectory, fileCount, fileSize, 1);
+        zipFile = new File(workDirectory, "package.zip");
+        SyntheticPackages.zipPackage(packageDirectory, zipFile);
+        SyntheticPackages.deleteRecursively(packageDirectory);
+        targetDirectory = new File(workDirectory, "unzipped");
+        /* the plugin hands the pool of its executor, see CodePushExecutor.getExtractionPool */
+        extractionPool = Executors.newFixedThreadPool(parallelism);
+        ZipExtractor.setExtractionPool(extractionPool);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearTarget() {
+        SyntheticPackages.deleteRecursively(targetDirectory);
+    }
+
+    @Benchmark
+    public Map<String, String> unzip() throws Exception {
+        Map<String, String> fileHashes = hashFiles ? new HashMap<String, String>() : null;
+        Utilities.unzip(zipFile, targetDirectory, fileHashes);
+        return fileHashes;
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteArchive() {
+        ZipExtractor.setExtractionPool(null);
+        extractionPool.shutdown();
+        SyntheticPackages.deleteRecursively(workDirectory);
+    }
+}
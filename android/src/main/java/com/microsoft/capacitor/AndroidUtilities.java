@@ -0,0 +1,117 @@
+package com.microsoft.capacitor;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.content.res.Resources;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+
+import static java.lang.Long.parseLong;
+
+/**
+ * The Android side of {@link Utilities}: application information read from the context, and the Android
+ * implementations of the hooks the file and hashing code goes through, so that code runs on a plain JVM as well.
+ */
+public class AndroidUtilities {
+
+    public static final LogWriter LOG_WRITER = new LogWriter() {
+        @Override
+        public void log(String message, Throwable throwable) {
+            if (throwable != null) {
+                Log.e(CodePush.class.getName(), message, throwable);
+            } else {
+                Log.e(CodePush.class.getName(), message);
+            }
+        }
+    };
+
+    public static final FileLinker FILE_LINKER = new FileLinker() {
+        @Override
+        public void link(File source, File target) throws IOException {
+            try {
+                Os.link(source.getPath(), target.getPath());
+            } catch (ErrnoException e) {
+                String message = "Failed to link " + target.getAbsolutePath() + " to " + source.getAbsolutePath();
+                if (e.errno == OsConstants.EXDEV || e.errno == OsConstants.EPERM || e.errno == OsConstants.ENOSYS
+                        || e.errno == OsConstants.EOPNOTSUPP || e.errno == OsConstants.EMLINK) {
+                    throw new LinkNotSupportedException(message, e);
+                }
+                throw new IOException(message, e);
+            }
+        }
+
+        @Override
+        public boolean isSameFile(File first, File second) throws IOException {
+            try {
+                StructStat firstStat = Os.stat(first.getPath());
+                StructStat secondStat = Os.stat(second.getPath());
+                return firstStat.st_ino == secondStat.st_ino && firstStat.st_dev == secondStat.st_dev;
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+        }
+
+        @Override
+        public long getLinkCount(File file) throws IOException {
+            try {
+                return Os.stat(file.getPath()).st_nlink;
+            } catch (ErrnoException e) {
+                throw new IOException(e);
+            }
+        }
+    };
+
+    /**
+     * Makes the plugin code log through android.util.Log and link files through android.system.Os.
+     */
+    public static void registerPlatform() {
+        Utilities.setLogWriter(LOG_WRITER);
+        Utilities.setFileLinker(FILE_LINKER);
+    }
+
+    public static String getAppVersionName(Context context) throws PackageManager.NameNotFoundException {
+        String currentPackageName = context.getPackageName();
+        PackageInfo packageInfo = context.getPackageManager().getPackageInfo(currentPackageName, 0);
+        return packageInfo.versionName;
+    }
+
+    public static long getApkBuildTime(Context context) {
+
+        Long millis;
+
+        try {
+            //replace double quotes needed for correct restoration of long value from strings.xml
+            //https://github.com/Microsoft/cordova-plugin-code-push/issues/264
+            millis = parseLong(context.getString(
+                context.getResources().getIdentifier("CODE_PUSH_APK_BUILD_TIME", "string", context.getPackageName())
+            ).replaceAll("\"",""));
+        } catch(Resources.NotFoundException e) {
+            return -1;
+        } catch(NumberFormatException e) {
+            return -1;
+        }
+
+        return millis;
+    }
+
+    /**
+     * Returns an asset source reading from the android's asset manager.
+     */
+    public static AssetSource getAssetSource(final AssetManager assetManager) {
+        return new AssetSource() {
+            @Override
+            public InputStream open(String path) throws IOException {
+                return assetManager.open(path);
+            }
+        };
+    }
+}
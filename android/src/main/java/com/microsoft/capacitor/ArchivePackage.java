@@ -0,0 +1,466 @@
+package com.microsoft.capacitor;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * An update package kept as its zip archive instead of being extracted.
+ * The central directory is read once into an in-memory index, and the entries are then read by random access
+ * through positional reads on a shared {@link FileChannel}: stored entries are read straight into the caller's
+ * buffer, deflated entries are inflated on the fly.
+ *
+ * Only the HTML documents and the release signature of an archive package are extracted next to the archive,
+ * so that the web view local server can still serve the start page and the signature can still be verified.
+ */
+public class ArchivePackage implements Closeable {
+    public static final String ARCHIVE_FILENAME = "package.zip";
+
+    private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+    private static final int CENTRAL_DIRECTORY_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+    private static final int METHOD_STORED = 0;
+    private static final int METHOD_DEFLATED = 8;
+    private static final int BUFFER_SIZE = 1024 * 64;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static class Entry {
+        final int method;
+        final long compressedSize;
+        final long size;
+        final long localHeaderOffset;
+        volatile long dataOffset = -1;
+
+        Entry(int method, long compressedSize, long size, long localHeaderOffset) {
+            this.method = method;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final Map<String, Entry> entries;
+
+    private ArchivePackage(RandomAccessFile file, Map<String, Entry> entries) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.entries = entries;
+    }
+
+    /**
+     * Returns the archive of the given package directory, whether it exists or not.
+     */
+    public static File getArchiveFile(File packageDirectory) {
+        return new File(packageDirectory, ARCHIVE_FILENAME);
+    }
+
+    public static boolean isArchivePackage(File packageDirectory) {
+        return getArchiveFile(packageDirectory).isFile();
+    }
+
+    /**
+     * Opens an archive and reads its central directory.
+     * @throws IOException if the file is not a zip archive, or uses features that are not supported such as ZIP64
+     */
+    public static ArchivePackage open(File archiveFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(archiveFile, "r");
+        try {
+            ArchivePackage archivePackage = new ArchivePackage(file, readCentralDirectory(file.getChannel()));
+            file = null;
+            return archivePackage;
+        } finally {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * Moves the downloaded archive into the package directory and extracts the files that must exist on disk.
+     * Any existing contents of the package directory are replaced.
+     */
+    public static void deploy(File zipFile, File packageDirectory) throws IOException {
+        if (packageDirectory.exists()) {
+            Utilities.deleteEntryRecursively(packageDirectory);
+        }
+        if (!packageDirectory.mkdirs()) {
+            throw new FileNotFoundException("Failed to ensure directory: " + packageDirectory.getAbsolutePath());
+        }
+
+        try {
+            File archiveFile = getArchiveFile(packageDirectory);
+            if (!zipFile.renameTo(archiveFile)) {
+                Utilities.linkOrCopyFile(zipFile, archiveFile);
+                zipFile.delete();
+            }
+
+            ArchivePackage archivePackage = open(archiveFile);
+            try {
+                String canonicalTargetPath = packageDirectory.getCanonicalPath() + File.separator;
+                for (String name : archivePackage.entries.keySet()) {
+                    if (!isExtractedEntry(name)) {
+                        continue;
+                    }
+
+                    File target = new File(packageDirectory, name);
+                    if (!target.getCanonicalPath().startsWith(canonicalTargetPath)) {
+                        throw new IOException("Invalid zip entry path: " + name);
+                    }
+                    File parent = target.getParentFile();
+                    if (!parent.isDirectory() && !parent.mkdirs()) {
+                        throw new FileNotFoundException("Failed to ensure directory: " + parent.getAbsolutePath());
+                    }
+                    Utilities.copyStreamToFile(archivePackage.openEntry(name), target);
+                }
+            } finally {
+                archivePackage.close();
+            }
+        } catch (IOException e) {
+            Utilities.deleteEntryRecursively(packageDirectory);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns true for the entries that are served by the web view local server rather than from the archive.
+     */
+    public static boolean isExtractedEntry(String name) {
+        String lowerCaseName = name.toLowerCase();
+        return lowerCaseName.startsWith("public/")
+                && (lowerCaseName.endsWith(".html") || lowerCaseName.endsWith(".htm") || lowerCaseName.endsWith("/.codepushrelease"));
+    }
+
+    public boolean contains(String name) {
+        return entries.containsKey(name);
+    }
+
+    public Set<String> getEntryNames() {
+        return Collections.unmodifiableSet(entries.keySet());
+    }
+
+    /**
+     * Returns the uncompressed size of an entry, or -1 if there is no such entry.
+     */
+    public long getSize(String name) {
+        Entry entry = entries.get(name);
+        return entry != null ? entry.size : -1;
+    }
+
+    /**
+     * Opens an entry for reading. Several entries can be read at the same time from different threads.
+     * @return the entry contents, or null if there is no such entry
+     */
+    public InputStream openEntry(String name) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        long dataOffset = getDataOffset(entry);
+        if (entry.method == METHOD_STORED) {
+            return new ChannelInputStream(channel, dataOffset, dataOffset + entry.size);
+        } else if (entry.method == METHOD_DEFLATED) {
+            return new EntryInflaterInputStream(new ChannelInputStream(channel, dataOffset, dataOffset + entry.compressedSize));
+        }
+
+        throw new IOException("Unsupported compression method " + entry.method + " for entry: " + name);
+    }
+
+    /**
+     * Opens a byte range of an entry for reading, e.g. to answer a range request. A stored entry is read from the
+     * start of the range on, a deflated entry is inflated from its beginning and the bytes before the range skipped.
+     * @param start the offset of the first byte of the range
+     * @param end the offset past the last byte of the range, at most the size of the entry
+     * @return the range contents, or null if there is no such entry
+     */
+    public InputStream openEntryRange(String name, long start, long end) throws IOException {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return null;
+        }
+
+        if (entry.method == METHOD_STORED) {
+            long dataOffset = getDataOffset(entry);
+            return new ChannelInputStream(channel, dataOffset + start, dataOffset + end);
+        }
+
+        InputStream inputStream = openEntry(name);
+        try {
+            for (long skipped = 0; skipped < start; ) {
+                long count = inputStream.skip(start - skipped);
+                if (count <= 0) {
+                    throw new EOFException("Unexpected end of zip entry.");
+                }
+                skipped += count;
+            }
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+
+        return new RangeInputStream(inputStream, end - start);
+    }
+
+    /**
+     * Computes the package hash of the archive contents, the same way it is computed for an extracted package.
+     */
+    public String computePackageHash() throws IOException, NoSuchAlgorithmException {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        byte[] buffer = new byte[BUFFER_SIZE];
+        Map<String, String> fileHashes = new HashMap<String, String>();
+        for (String name : entries.keySet()) {
+            if (name.endsWith("/")) {
+                continue;
+            }
+
+            InputStream inputStream = openEntry(name);
+            try {
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    messageDigest.update(buffer, 0, count);
+                }
+            } finally {
+                inputStream.close();
+            }
+            fileHashes.put(name, UpdateHashUtils.formatHash(messageDigest.digest()));
+        }
+
+        return UpdateHashUtils.getHashForExtractedFiles(fileHashes, new ArrayList<String>());
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private long getDataOffset(Entry entry) throws IOException {
+        long dataOffset = entry.dataOffset;
+        if (dataOffset < 0) {
+            /* the local header can have a different extra field than the central directory one */
+            ByteBuffer header = readFully(channel, entry.localHeaderOffset, LOCAL_HEADER_SIZE);
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid local file header.");
+            }
+            dataOffset = entry.localHeaderOffset + LOCAL_HEADER_SIZE + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+            entry.dataOffset = dataOffset;
+        }
+
+        return dataOffset;
+    }
+
+    private static Map<String, Entry> readCentralDirectory(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        int tailSize = (int) Math.min(fileSize, END_OF_CENTRAL_DIRECTORY_SIZE + MAX_COMMENT_LENGTH);
+        ByteBuffer tail = readFully(channel, fileSize - tailSize, tailSize);
+        int endOfCentralDirectory = -1;
+        for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+                endOfCentralDirectory = i;
+                break;
+            }
+        }
+        if (endOfCentralDirectory < 0) {
+            throw new IOException("Not a zip archive.");
+        }
+
+        int entryCount = tail.getShort(endOfCentralDirectory + 10) & 0xFFFF;
+        long centralDirectorySize = tail.getInt(endOfCentralDirectory + 12) & 0xFFFFFFFFL;
+        long centralDirectoryOffset = tail.getInt(endOfCentralDirectory + 16) & 0xFFFFFFFFL;
+        if (entryCount == 0xFFFF || centralDirectorySize == 0xFFFFFFFFL || centralDirectoryOffset == 0xFFFFFFFFL) {
+            throw new IOException("ZIP64 archives are not supported.");
+        }
+        if (centralDirectoryOffset + centralDirectorySize > fileSize) {
+            throw new IOException("Invalid zip central directory.");
+        }
+
+        ByteBuffer centralDirectory = readFully(channel, centralDirectoryOffset, (int) centralDirectorySize);
+        Map<String, Entry> entries = new HashMap<String, Entry>(entryCount * 2);
+        int position = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (position + CENTRAL_DIRECTORY_HEADER_SIZE > centralDirectorySize || centralDirectory.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE) {
+                throw new IOException("Invalid zip central directory.");
+            }
+
+            int method = centralDirectory.getShort(position + 10) & 0xFFFF;
+            long compressedSize = centralDirectory.getInt(position + 20) & 0xFFFFFFFFL;
+            long size = centralDirectory.getInt(position + 24) & 0xFFFFFFFFL;
+            int nameLength = centralDirectory.getShort(position + 28) & 0xFFFF;
+            int extraLength = centralDirectory.getShort(position + 30) & 0xFFFF;
+            int commentLength = centralDirectory.getShort(position + 32) & 0xFFFF;
+            long localHeaderOffset = centralDirectory.getInt(position + 42) & 0xFFFFFFFFL;
+            if (compressedSize == 0xFFFFFFFFL || size == 0xFFFFFFFFL || localHeaderOffset == 0xFFFFFFFFL) {
+                throw new IOException("ZIP64 archives are not supported.");
+            }
+
+            byte[] nameBytes = new byte[nameLength];
+            centralDirectory.position(position + CENTRAL_DIRECTORY_HEADER_SIZE);
+            centralDirectory.get(nameBytes);
+            /* later entries with the same name replace earlier ones, like an extraction would */
+            entries.put(new String(nameBytes, UTF_8), new Entry(method, compressedSize, size, localHeaderOffset));
+            position += CENTRAL_DIRECTORY_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+
+        return entries;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) == -1) {
+                throw new EOFException("Unexpected end of archive.");
+            }
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Reads a range of a file channel with positional reads, so that streams on the same channel do not interfere.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        ChannelInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+
+            int count = channel.read(ByteBuffer.wrap(buffer, offset, (int) Math.min(length, end - position)), position);
+            if (count == -1) {
+                throw new EOFException("Unexpected end of archive.");
+            }
+            position += count;
+            return count;
+        }
+
+        @Override
+        public long skip(long count) {
+            long skipped = Math.max(0, Math.min(count, end - position));
+            position += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+
+    /**
+     * Passes through at most the given number of bytes of the underlying stream.
+     */
+    private static class RangeInputStream extends FilterInputStream {
+        private long remaining;
+
+        RangeInputStream(InputStream inputStream, long length) {
+            super(inputStream);
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] single = new byte[1];
+            return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int count = in.read(buffer, offset, (int) Math.min(length, remaining));
+            if (count > 0) {
+                remaining -= count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            long skipped = in.skip(Math.min(count, remaining));
+            remaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(in.available(), remaining);
+        }
+    }
+
+    /**
+     * Inflates a raw deflate stream and releases the native inflater as soon as the stream is closed.
+     */
+    private static class EntryInflaterInputStream extends InflaterInputStream {
+        private boolean addedDummyByte;
+
+        EntryInflaterInputStream(InputStream inputStream) {
+            super(inputStream, new Inflater(true), 8192);
+        }
+
+        @Override
+        protected void fill() throws IOException {
+            int count = in.read(buf, 0, buf.length);
+            if (count == -1) {
+                /* the inflater may need one byte past the end of a raw deflate stream, as ZipFile provides */
+                if (addedDummyByte) {
+                    throw new EOFException("Unexpected end of zip entry.");
+                }
+                addedDummyByte = true;
+                buf[0] = 0;
+                count = 1;
+            }
+            len = count;
+            inf.setInput(buf, 0, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                inf.end();
+            }
+        }
+    }
+}
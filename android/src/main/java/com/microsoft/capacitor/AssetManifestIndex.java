@@ -0,0 +1,104 @@
+package com.microsoft.capacitor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Reader for the cdvasset.index file generated at build time by the capCreateAssetManifest gradle task.
+ * The file holds the sorted paths and sizes of all the assets, followed by a directory index mapping each
+ * directory to the range of the path table holding the files it contains, so lookups are binary searches.
+ */
+public class AssetManifestIndex {
+    public static final String ASSETS_INDEX_FILENAME = "cdvasset.index";
+
+    private static final int INDEX_MAGIC = 0x43504149;
+    private static final int INDEX_VERSION = 1;
+
+    private final String[] paths;
+    private final long[] sizes;
+    private final String[] directories;
+    private final int[] directoryFirstFiles;
+    private final int[] directoryEndFiles;
+
+    private AssetManifestIndex(String[] paths, long[] sizes, String[] directories, int[] directoryFirstFiles, int[] directoryEndFiles) {
+        this.paths = paths;
+        this.sizes = sizes;
+        this.directories = directories;
+        this.directoryFirstFiles = directoryFirstFiles;
+        this.directoryEndFiles = directoryEndFiles;
+    }
+
+    /**
+     * Reads the asset index.
+     * @throws java.io.FileNotFoundException if the application was built without an asset index
+     */
+    public static AssetManifestIndex load(AssetSource assetSource) throws IOException {
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(assetSource.open(ASSETS_INDEX_FILENAME)));
+        try {
+            if (dis.readInt() != INDEX_MAGIC || dis.readInt() != INDEX_VERSION) {
+                throw new IOException("Unsupported asset index format.");
+            }
+
+            int fileCount = dis.readInt();
+            String[] paths = new String[fileCount];
+            long[] sizes = new long[fileCount];
+            for (int i = 0; i < fileCount; i++) {
+                paths[i] = dis.readUTF();
+                sizes[i] = dis.readLong();
+            }
+
+            int directoryCount = dis.readInt();
+            String[] directories = new String[directoryCount];
+            int[] directoryFirstFiles = new int[directoryCount];
+            int[] directoryEndFiles = new int[directoryCount];
+            for (int i = 0; i < directoryCount; i++) {
+                directories[i] = dis.readUTF();
+                directoryFirstFiles[i] = dis.readInt();
+                directoryEndFiles[i] = dis.readInt();
+            }
+
+            return new AssetManifestIndex(paths, sizes, directories, directoryFirstFiles, directoryEndFiles);
+        } finally {
+            dis.close();
+        }
+    }
+
+    /**
+     * Returns the paths of all the assets under the given directory, in the format path/to/asset/asset_name.xxx
+     * @param directory the asset directory, an empty string for the assets root
+     * @param ignoredFiles the file names to leave out of the list, if null is passed it will not ignore any files
+     */
+    public String[] list(String directory, Set<String> ignoredFiles) {
+        int directoryIndex = Arrays.binarySearch(directories, directory);
+        if (directoryIndex < 0) {
+            return new String[0];
+        }
+
+        List<String> assetPaths = new ArrayList<String>(directoryEndFiles[directoryIndex] - directoryFirstFiles[directoryIndex]);
+        for (int i = directoryFirstFiles[directoryIndex]; i < directoryEndFiles[directoryIndex]; i++) {
+            String path = paths[i];
+            if (ignoredFiles == null || !ignoredFiles.contains(path.substring(path.lastIndexOf('/') + 1))) {
+                assetPaths.add(path);
+            }
+        }
+
+        return assetPaths.toArray(new String[assetPaths.size()]);
+    }
+
+    public boolean contains(String path) {
+        return Arrays.binarySearch(paths, path) >= 0;
+    }
+
+    /**
+     * Returns the size of the given asset, or -1 if there is no such asset.
+     */
+    public long getSize(String path) {
+        int index = Arrays.binarySearch(paths, path);
+        return index >= 0 ? sizes[index] : -1;
+    }
+}
@@ -0,0 +1,17 @@
+package com.microsoft.capacitor;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Read access to the assets bundled with the application binary.
+ * Decouples the hashing and asset listing code from the Android AssetManager.
+ */
+public interface AssetSource {
+
+    /**
+     * Opens the asset at the given path, relative to the assets root.
+     * @throws java.io.FileNotFoundException if there is no such asset
+     */
+    InputStream open(String path) throws IOException;
+}
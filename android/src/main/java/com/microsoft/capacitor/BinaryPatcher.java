@@ -0,0 +1,212 @@
+package com.microsoft.capacitor;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Applies bsdiff-style binary patches to the files of an update package.
+ *
+ * The patch layout is the one of bsdiff 4, except that the three blocks are zlib streams instead of bzip2 ones:
+ * an 8 bytes magic "CPDIFF01", the compressed lengths of the control and diff blocks and the size of the new file,
+ * then the control, diff and extra blocks. Offsets are encoded as in bsdiff, 8 bytes little endian sign-magnitude.
+ * The old file is memory mapped and the new file is written as it is produced, so neither is held in memory.
+ */
+public class BinaryPatcher {
+    private static final byte[] PATCH_MAGIC = {'C', 'P', 'D', 'I', 'F', 'F', '0', '1'};
+    private static final int HEADER_SIZE = 32;
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    /**
+     * Patches the old file into the new file and checks the SHA-256 of the result.
+     * The new file is deleted if the patch can not be applied or the result does not have the expected hash.
+     * @param expectedHash the expected SHA-256 of the new file, a patch is never applied unchecked
+     */
+    public static void applyPatch(File oldFile, File patchFile, File newFile, String expectedHash) throws IOException, NoSuchAlgorithmException {
+        if (expectedHash == null) {
+            throw new IOException("No hash to check the patched file " + oldFile.getName() + " against.");
+        }
+
+        boolean succeeded = false;
+        try {
+            String hash = patch(oldFile, patchFile, newFile);
+            if (!expectedHash.equals(hash)) {
+                throw new IOException("The patched file " + oldFile.getName() + " failed the data integrity check.");
+            }
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                newFile.delete();
+            }
+        }
+    }
+
+    private static String patch(File oldFile, File patchFile, File newFile) throws IOException, NoSuchAlgorithmException {
+        long controlLength;
+        long diffLength;
+        long newSize;
+        DataInputStream header = new DataInputStream(new FileInputStream(patchFile));
+        try {
+            byte[] headerBytes = new byte[HEADER_SIZE];
+            header.readFully(headerBytes);
+            for (int i = 0; i < PATCH_MAGIC.length; i++) {
+                if (headerBytes[i] != PATCH_MAGIC[i]) {
+                    throw new IOException("Unsupported patch format: " + patchFile.getName());
+                }
+            }
+            controlLength = readOffset(headerBytes, 8);
+            diffLength = readOffset(headerBytes, 16);
+            newSize = readOffset(headerBytes, 24);
+        } finally {
+            header.close();
+        }
+
+        if (controlLength < 0 || diffLength < 0 || newSize < 0 || HEADER_SIZE + controlLength + diffLength > patchFile.length()) {
+            throw new IOException("Corrupted patch: " + patchFile.getName());
+        }
+
+        RandomAccessFile oldRandomAccessFile = null;
+        InputStream controlStream = null;
+        InputStream diffStream = null;
+        InputStream extraStream = null;
+        OutputStream output = null;
+        try {
+            oldRandomAccessFile = new RandomAccessFile(oldFile, "r");
+            controlStream = openBlock(patchFile, HEADER_SIZE);
+            diffStream = openBlock(patchFile, HEADER_SIZE + controlLength);
+            extraStream = openBlock(patchFile, HEADER_SIZE + controlLength + diffLength);
+            output = new BufferedOutputStream(new FileOutputStream(newFile), BUFFER_SIZE);
+            FileChannel oldChannel = oldRandomAccessFile.getChannel();
+            long oldSize = oldChannel.size();
+            if (oldSize > Integer.MAX_VALUE) {
+                throw new IOException("The file to patch is too large: " + oldFile.getName());
+            }
+            MappedByteBuffer oldData = oldChannel.map(FileChannel.MapMode.READ_ONLY, 0, oldSize);
+
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            byte[] control = new byte[24];
+            byte[] buffer = new byte[BUFFER_SIZE];
+            byte[] oldBytes = new byte[BUFFER_SIZE];
+            long newPosition = 0;
+            long oldPosition = 0;
+            while (newPosition < newSize) {
+                readFully(controlStream, control, 24);
+                long addLength = readOffset(control, 0);
+                long copyLength = readOffset(control, 8);
+                long seekLength = readOffset(control, 16);
+                if (addLength < 0 || copyLength < 0 || newPosition + addLength + copyLength > newSize) {
+                    throw new IOException("Corrupted patch: " + patchFile.getName());
+                }
+
+                /* the diff block holds the differences to add to the bytes of the old file */
+                long remaining = addLength;
+                while (remaining > 0) {
+                    int count = (int) Math.min(remaining, BUFFER_SIZE);
+                    readFully(diffStream, buffer, count);
+                    if (oldPosition >= 0 && oldPosition + count <= oldSize) {
+                        oldData.position((int) oldPosition);
+                        oldData.get(oldBytes, 0, count);
+                        for (int i = 0; i < count; i++) {
+                            buffer[i] += oldBytes[i];
+                        }
+                    } else {
+                        /* bytes outside of the old file are taken as is, like bsdiff does */
+                        for (int i = 0; i < count; i++) {
+                            long position = oldPosition + i;
+                            if (position >= 0 && position < oldSize) {
+                                buffer[i] += oldData.get((int) position);
+                            }
+                        }
+                    }
+                    output.write(buffer, 0, count);
+                    messageDigest.update(buffer, 0, count);
+                    oldPosition += count;
+                    remaining -= count;
+                }
+
+                /* the extra block holds the bytes without a counterpart in the old file */
+                remaining = copyLength;
+                while (remaining > 0) {
+                    int count = (int) Math.min(remaining, BUFFER_SIZE);
+                    readFully(extraStream, buffer, count);
+                    output.write(buffer, 0, count);
+                    messageDigest.update(buffer, 0, count);
+                    remaining -= count;
+                }
+
+                newPosition += addLength + copyLength;
+                oldPosition += seekLength;
+            }
+
+            /* a failure to flush the new file must not be mistaken for a successful patch */
+            output.close();
+            return UpdateHashUtils.formatHash(messageDigest.digest());
+        } finally {
+            closeQuietly(output);
+            closeQuietly(extraStream);
+            closeQuietly(diffStream);
+            closeQuietly(controlStream);
+            closeQuietly(oldRandomAccessFile);
+        }
+    }
+
+    private static InputStream openBlock(File patchFile, long offset) throws IOException {
+        FileInputStream inputStream = new FileInputStream(patchFile);
+        try {
+            inputStream.getChannel().position(offset);
+        } catch (IOException e) {
+            inputStream.close();
+            throw e;
+        }
+
+        return new InflaterInputStream(new BufferedInputStream(inputStream, BUFFER_SIZE));
+    }
+
+    private static void readFully(InputStream inputStream, byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            int count = inputStream.read(buffer, offset, length - offset);
+            if (count == -1) {
+                throw new EOFException("Unexpected end of patch.");
+            }
+            offset += count;
+        }
+    }
+
+    /**
+     * Decodes a bsdiff offset: 8 bytes little endian, the top bit of the last byte holding the sign.
+     */
+    private static long readOffset(byte[] bytes, int position) {
+        long value = bytes[position + 7] & 0x7F;
+        for (int i = 6; i >= 0; i--) {
+            value = (value << 8) | (bytes[position + i] & 0xFF);
+        }
+
+        return (bytes[position + 7] & 0x80) != 0 ? -value : value;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            /* nothing to do */
+        }
+    }
+}
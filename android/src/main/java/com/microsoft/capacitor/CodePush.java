@@ -1,10 +1,10 @@
 package com.microsoft.capacitor;
 
 import android.content.pm.PackageManager;
-import android.os.AsyncTask;
 import android.util.Base64;
 import android.webkit.WebView;
 
+import com.getcapacitor.BridgeWebViewClient;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.Plugin;
 import com.getcapacitor.PluginCall;
@@ -17,13 +17,16 @@ import com.nimbusds.jwt.SignedJWT;
 import org.json.JSONException;
 
 import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.security.KeyFactory;
 import java.security.PublicKey;
 import java.security.interfaces.RSAPublicKey;
 import java.security.spec.X509EncodedKeySpec;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -35,9 +38,25 @@ public class CodePush extends Plugin {
     private static final String DEPLOYMENT_KEY_PREFERENCE = "ANDROID_DEPLOY_KEY";
     private static final String PUBLIC_KEY_PREFERENCE = "ANDROID_PUBLIC_KEY";
     private static final String SERVER_URL_PREFERENCE = "SERVER_URL";
+    private static final String HASH_PARALLELISM_PREFERENCE = "ANDROID_HASH_PARALLELISM";
+    private static final String HASH_MMAP_THRESHOLD_PREFERENCE = "ANDROID_HASH_MMAP_THRESHOLD";
+    private static final String UNZIP_PARALLELISM_PREFERENCE = "ANDROID_UNZIP_PARALLELISM";
+    private static final String FAILED_UPDATES_CAPACITY_PREFERENCE = "ANDROID_FAILED_UPDATES_CAPACITY";
+    private static final String FAILED_UPDATES_MAX_AGE_DAYS_PREFERENCE = "ANDROID_FAILED_UPDATES_MAX_AGE_DAYS";
+    private static final String DOWNLOAD_PROGRESS_EVENT = "downloadProgress";
+    private static final int DOWNLOAD_PROGRESS_INTERVAL_MS = 100;
+    private static final String DOWNLOAD_CANCELLED_ERROR_CODE = "DOWNLOAD_CANCELLED";
+    private static final String TASK_CANCELLED_ERROR_CODE = "TASK_CANCELLED";
+    private static final String DOWNLOAD_FAILED_ERROR_CODE = "DOWNLOAD_FAILED";
+    private static final String INTEGRITY_CHECK_FAILED_ERROR_CODE = "INTEGRITY_CHECK_FAILED";
+    private static final String OPERATION_PROGRESS_EVENT = "operationProgress";
+    private static final int OPERATION_PROGRESS_INTERVAL_MS = 100;
+    private static final String OPERATION_CANCELLED_ERROR_CODE = "OPERATION_CANCELLED";
+    private static final String BINARY_HASH_KEY = "binary";
     private static final String WWW_ASSET_PATH_PREFIX = "file:///android_asset/public/";
     private static final String NEW_LINE = System.getProperty("line.separator");
     private static boolean ShouldClearHistoryOnLoad = false;
+    private CodePushPreferences codePushPreferences;
     private CodePushPackageManager codePushPackageManager;
     private CodePushReportingManager codePushReportingManager;
     private StatusReport rollbackStatusReport;
@@ -45,15 +64,97 @@ public class CodePush extends Plugin {
     private boolean didUpdate = false;
     private boolean didStartApp = false;
     private long lastPausedTimeMs = 0;
+    private OperationHandle activeDownload;
+    private final Map<String, OperationHandle> activeOperations = new HashMap<String, OperationHandle>();
+    private final SingleFlight<String> binaryHashes = new SingleFlight<String>();
+    private final SingleFlight<String> packageHashes = new SingleFlight<String>();
+    private PackageWebViewClient packageWebViewClient;
+    private BridgeWebViewClient previousWebViewClient;
+    private StartupScheduler startupScheduler;
+    private CodePushExecutor executor;
+    private boolean binaryUpdateChecked = false;
+
+    static {
+        AndroidUtilities.registerPlatform();
+    }
 
     @Override
     public void load() {
         super.load();
-        CodePushPreferences codePushPreferences = new CodePushPreferences(getContext());
+        executor = new CodePushExecutor(
+                getConfig().getInt(HASH_PARALLELISM_PREFERENCE, Runtime.getRuntime().availableProcessors()),
+                getConfig().getInt(UNZIP_PARALLELISM_PREFERENCE, Runtime.getRuntime().availableProcessors()));
+        startupScheduler = new StartupScheduler(executor);
+        startupScheduler.runPhase("load", new Runnable() {
+            @Override
+            public void run() {
+                loadPlugin();
+            }
+        });
+    }
+
+    private void loadPlugin() {
+        /* the work split over several threads runs on the pools of the executor, so it is stopped and measured with it */
+        UpdateHashUtils.setHashingPool(executor.getHashingPool());
+        UpdateHashUtils.setMemoryMappingThreshold(getConfig().getInt(HASH_MMAP_THRESHOLD_PREFERENCE, 1024 * 1024));
+        ZipExtractor.setExtractionPool(executor.getExtractionPool());
+        PackageTrash.setDeletionPool(executor.getDeletionPool());
+        CodePushStateStore.getInstance(getContext()).attachExecutor(executor);
+        FailedUpdateRegistry.setCapacity(getConfig().getInt(FAILED_UPDATES_CAPACITY_PREFERENCE, FailedUpdateRegistry.DEFAULT_CAPACITY));
+        FailedUpdateRegistry.setMaxAge(getConfig().getInt(FAILED_UPDATES_MAX_AGE_DAYS_PREFERENCE, 90) * 24L * 60 * 60 * 1000);
+        codePushPreferences = new CodePushPreferences(getContext());
         codePushPackageManager = new CodePushPackageManager(getContext(), codePushPreferences);
+        codePushPackageManager.recoverInterruptedTransition();
+        /* the trash may hold packages a previous process did not get to delete */
+        emptyTrashWhenIdle();
         codePushReportingManager = new CodePushReportingManager(getActivity(), codePushPreferences);
     }
 
+    /**
+     * Background task answering a plugin call, the call is rejected if the task is cancelled before it runs.
+     */
+    private static abstract class PluginCallTask extends CodePushExecutor.Task {
+        private final PluginCall call;
+
+        PluginCallTask(PluginCall call) {
+            this.call = call;
+        }
+
+        @Override
+        public void onCancelled() {
+            TaskCancelledException e = new TaskCancelledException();
+            call.reject(e.getMessage(), TASK_CANCELLED_ERROR_CODE);
+        }
+    }
+
+    /**
+     * Background task writing package files. The memoized package hashes are dropped before and after the files
+     * are written, so a hash computed meanwhile is not kept.
+     */
+    private abstract class PackageWriteTask extends PluginCallTask {
+        PackageWriteTask(PluginCall call) {
+            super(call);
+        }
+
+        abstract void write();
+
+        @Override
+        public final void run() {
+            packageHashes.invalidateAll();
+            try {
+                write();
+            } finally {
+                packageHashes.invalidateAll();
+            }
+        }
+    }
+
+    private static class TaskCancelledException extends Exception {
+        TaskCancelledException() {
+            super("The plugin was unloaded before the operation could run.");
+        }
+    }
+
     @PluginMethod()
     public void getDeploymentKey(PluginCall call) {
         this.returnStringPreference(DEPLOYMENT_KEY_PREFERENCE, call);
@@ -86,9 +187,9 @@ public class CodePush extends Plugin {
 
     @PluginMethod()
     public void decodeSignature(final PluginCall call) {
-        new AsyncTask<Void, Void, Void>() {
+        executor.executeCpu(CodePushExecutor.Priority.HIGH, "decodeSignature", new PluginCallTask(call) {
             @Override
-            protected Void doInBackground(Void... voids) {
+            public void run() {
                 try {
                     // TODO: fix client
                     String stringPublicKey = call.getString("publicKey");
@@ -98,7 +199,7 @@ public class CodePush extends Plugin {
                         publicKey = parsePublicKey(stringPublicKey);
                     } catch (CodePushException e) {
                         call.reject("Error occurred while creating the a public key" + e.getMessage());
-                        return null;
+                        return;
                     }
 
                     // TODO: fix client
@@ -109,23 +210,21 @@ public class CodePush extends Plugin {
                         claims = verifyAndDecodeJWT(signature, publicKey);
                     } catch (CodePushException e) {
                         call.reject("The update could not be verified because it was not signed by a trusted party. " + e.getMessage());
-                        return null;
+                        return;
                     }
 
                     final String contentHash = (String) claims.get("contentHash");
                     if (contentHash == null) {
                         call.reject("The update could not be verified because the signature did not specify a content hash.");
-                        return null;
+                        return;
                     }
                     call.resolve(jsObjectValue(contentHash));
 
                 } catch (Exception e) {
                     call.reject("Unknown error occurred during signature decoding. " + e.getMessage());
                 }
-
-                return null;
             }
-        }.execute();
+        });
     }
 
     private PublicKey parsePublicKey(String stringPublicKey) throws CodePushException {
@@ -162,92 +261,546 @@ public class CodePush extends Plugin {
     @PluginMethod()
     public void getBinaryHash(final PluginCall call) {
         String cachedBinaryHash = codePushPackageManager.getCachedBinaryHash();
-        if (cachedBinaryHash == null) {
-            new AsyncTask<Void, Void, Void>() {
-                @Override
-                protected Void doInBackground(Void... params) {
-                    try {
-                        String binaryHash = UpdateHashUtils.getBinaryHash(getActivity());
-                        codePushPackageManager.saveBinaryHash(binaryHash);
-                        call.resolve(jsObjectValue(binaryHash));
-                    } catch (Exception e) {
-                        call.reject("An error occurred when trying to get the hash of the binary contents. " + e.getMessage());
-                    }
-
-                    return null;
-                }
-            }.execute();
-        } else {
+        if (cachedBinaryHash != null) {
             call.resolve(jsObjectValue(cachedBinaryHash));
+            return;
+        }
+
+        /* the binary hash is persisted once computed, the concurrent calls made until then share one computation */
+        boolean leader = binaryHashes.join(BINARY_HASH_KEY, new SingleFlight.Callback<String>() {
+            @Override
+            public void onSuccess(String binaryHash) {
+                call.resolve(jsObjectValue(binaryHash));
+            }
+
+            @Override
+            public void onError(Exception e) {
+                rejectHashCall(call, "An error occurred when trying to get the hash of the binary contents. ", e);
+            }
+        });
+        if (!leader) {
+            return;
         }
+
+        executor.executeCpu(CodePushExecutor.Priority.HIGH, "getBinaryHash", new CodePushExecutor.Task() {
+            @Override
+            public void run() {
+                try {
+                    String binaryHash = UpdateHashUtils.getBinaryHash(AndroidUtilities.getAssetSource(getActivity().getAssets()));
+                    codePushPackageManager.saveBinaryHash(binaryHash);
+                    binaryHashes.complete(BINARY_HASH_KEY, null, binaryHash);
+                } catch (Exception e) {
+                    binaryHashes.fail(BINARY_HASH_KEY, e);
+                }
+            }
+
+            @Override
+            public void onCancelled() {
+                binaryHashes.fail(BINARY_HASH_KEY, new TaskCancelledException());
+            }
+        });
     }
 
+    /**
+     * Computes the hash of a package. Concurrent calls for the same package share one computation. The hash of an
+     * archive package is memoized until the archive changes; an extracted package is hashed again on every call,
+     * through the file hash index. A call with an operation id, which can be cancelled, computes its own hash.
+     */
     @PluginMethod()
     public void getPackageHash(final PluginCall call) {
-        new AsyncTask<Void, Void, Void>() {
+        final String path = call.getString("path");
+        if (path == null) {
+            call.reject("An error occurred when trying to get the hash of the binary contents. No package path given.");
+            return;
+        }
+
+        // TODO: fix client side
+        final File packageDirectory = new File(getContext().getFilesDir(), path);
+        final Object stamp = getPackageStamp(packageDirectory);
+        String memoizedHash = packageHashes.getResult(path, stamp);
+        if (memoizedHash != null) {
+            call.resolve(jsObjectValue(memoizedHash));
+            return;
+        }
+
+        final long generation = packageHashes.getGeneration();
+        final boolean coalesced = call.getString("operationId") == null;
+        if (coalesced) {
+            boolean leader = packageHashes.join(path, new SingleFlight.Callback<String>() {
+                @Override
+                public void onSuccess(String packageHash) {
+                    call.resolve(jsObjectValue(packageHash));
+                }
+
+                @Override
+                public void onError(Exception e) {
+                    rejectHashCall(call, "An error occurred when trying to get the hash of the binary contents. ", e);
+                }
+            });
+            if (!leader) {
+                return;
+            }
+        }
+
+        final OperationHandle handle = startOperation(call);
+        executor.executeCpu(CodePushExecutor.Priority.HIGH, "getPackageHash", new CodePushExecutor.Task() {
             @Override
-            protected Void doInBackground(Void... params) {
+            public void run() {
                 try {
-                    // TODO: fix client side
-                    String binaryHash = UpdateHashUtils.getHashForPath(getActivity(), call.getString("path") + "/public");
-                    call.resolve(jsObjectValue(binaryHash));
+                    String packageHash;
+                    if (ArchivePackage.isArchivePackage(packageDirectory)) {
+                        ArchivePackage archivePackage = ArchivePackage.open(ArchivePackage.getArchiveFile(packageDirectory));
+                        try {
+                            packageHash = archivePackage.computePackageHash();
+                        } finally {
+                            archivePackage.close();
+                        }
+                    } else {
+                        packageHash = UpdateHashUtils.getHashForPath(getContext().getFilesDir(), path + "/public", handle);
+                    }
+
+                    if (coalesced) {
+                        packageHashes.complete(path, stamp, packageHash);
+                    } else {
+                        packageHashes.remember(path, stamp, packageHash, generation);
+                        call.resolve(jsObjectValue(packageHash));
+                    }
                 } catch (Exception e) {
-                    call.reject("An error occurred when trying to get the hash of the binary contents. " + e.getMessage());
+                    if (coalesced) {
+                        packageHashes.fail(path, e);
+                    } else {
+                        rejectHashCall(call, "An error occurred when trying to get the hash of the binary contents. ", e);
+                    }
+                } finally {
+                    finishOperation(call);
                 }
+            }
 
-                return null;
+            @Override
+            public void onCancelled() {
+                if (coalesced) {
+                    packageHashes.fail(path, new TaskCancelledException());
+                } else {
+                    rejectHashCall(call, null, new TaskCancelledException());
+                }
             }
-        }.execute();
+        });
+    }
+
+    private void rejectHashCall(PluginCall call, String message, Exception e) {
+        if (e instanceof OperationHandle.OperationCancelledException) {
+            call.reject(e.getMessage(), OPERATION_CANCELLED_ERROR_CODE);
+        } else if (e instanceof TaskCancelledException) {
+            call.reject(e.getMessage(), TASK_CANCELLED_ERROR_CODE);
+        } else {
+            call.reject(message + e.getMessage());
+        }
+    }
+
+    /**
+     * Describes the state of an archive package cheaply: the archive is written once and replaced as a whole, so any
+     * change gives it a new modification time or length. An extracted package has no such stamp, a file changed in
+     * place deep in the package does not change the modification time of its directories.
+     * @return the stamp, or null if the package is not an archive package and its hash must not be memoized
+     */
+    private static Object getPackageStamp(File packageDirectory) {
+        if (ArchivePackage.isArchivePackage(packageDirectory)) {
+            File archiveFile = ArchivePackage.getArchiveFile(packageDirectory);
+            return archiveFile.lastModified() + ":" + archiveFile.length();
+        }
+
+        return null;
     }
 
     @PluginMethod()
     public void unzip(final PluginCall call) {
-        new AsyncTask<Void, Void, Void>() {
+        final OperationHandle handle = startOperation(call);
+        executor.executeIo(CodePushExecutor.Priority.NORMAL, "unzip", new PackageWriteTask(call) {
             @Override
-            protected Void doInBackground(Void... params) {
+            void write() {
                 try {
                     File zipFile = new File(new URI(call.getString("zipFile")));
                     File targetDirectory = new File(new URI(call.getString("targetDirectory")));
-                    Utilities.unzip(zipFile, targetDirectory);
+                    Utilities.unzip(zipFile, targetDirectory, null, handle);
                     call.resolve();
+                } catch (OperationHandle.OperationCancelledException e) {
+                    call.reject(e.getMessage(), OPERATION_CANCELLED_ERROR_CODE);
                 } catch (Exception e) {
                     call.reject("An error occurred when trying to unzip package. " + e.getMessage());
+                } finally {
+                    finishOperation(call);
+                }
+            }
+        });
+    }
+
+    @PluginMethod()
+    public void unzipAndHash(final PluginCall call) {
+        final OperationHandle handle = startOperation(call);
+        executor.executeIo(CodePushExecutor.Priority.NORMAL, "unzipAndHash", new PackageWriteTask(call) {
+            @Override
+            void write() {
+                try {
+                    File zipFile = new File(new URI(call.getString("zipFile")));
+                    File targetDirectory = new File(new URI(call.getString("targetDirectory")));
+                    Map<String, String> fileHashes = new HashMap<String, String>();
+                    Utilities.unzip(zipFile, targetDirectory, fileHashes, handle);
+                    /* only meaningful for full updates, a diff update archive does not contain the whole package */
+                    String packageHash = UpdateHashUtils.getHashForExtractedFiles(fileHashes, new ArrayList<String>());
+                    call.resolve(jsObjectValue(packageHash));
+                } catch (OperationHandle.OperationCancelledException e) {
+                    call.reject(e.getMessage(), OPERATION_CANCELLED_ERROR_CODE);
+                } catch (Exception e) {
+                    call.reject("An error occurred when trying to unzip package. " + e.getMessage());
+                } finally {
+                    finishOperation(call);
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers the operation of the given call under its "operationId" option, so it can be cancelled and
+     * its progress reported, even while it is still queued. Calls without an operation id get a handle nobody can cancel.
+     */
+    private OperationHandle startOperation(PluginCall call) {
+        final String operationId = call.getString("operationId");
+        if (operationId == null) {
+            return new OperationHandle(null, OPERATION_PROGRESS_INTERVAL_MS);
+        }
+
+        OperationHandle handle = new OperationHandle(new OperationHandle.Listener() {
+            @Override
+            public void onProgress(long bytesDone, long totalBytes, int entriesDone, int totalEntries) {
+                JSObject progress = new JSObject();
+                progress.put("operationId", operationId);
+                progress.put("bytesDone", bytesDone);
+                progress.put("totalBytes", totalBytes);
+                progress.put("entriesDone", entriesDone);
+                progress.put("totalEntries", totalEntries);
+                notifyListeners(OPERATION_PROGRESS_EVENT, progress);
+            }
+        }, OPERATION_PROGRESS_INTERVAL_MS);
+        synchronized (activeOperations) {
+            activeOperations.put(operationId, handle);
+        }
+
+        return handle;
+    }
+
+    private void finishOperation(PluginCall call) {
+        String operationId = call.getString("operationId");
+        if (operationId != null) {
+            synchronized (activeOperations) {
+                activeOperations.remove(operationId);
+            }
+        }
+    }
+
+    /**
+     * Cancels the unzip or hash operation started with the given operation id. Its call is rejected with
+     * the OPERATION_CANCELLED code once the work stopped and its partial output is deleted.
+     */
+    @PluginMethod()
+    public void cancelOperation(PluginCall call) {
+        String operationId = call.getString("operationId");
+        synchronized (activeOperations) {
+            OperationHandle handle = activeOperations.get(operationId);
+            if (handle != null) {
+                handle.cancel();
+            }
+        }
+        call.resolve();
+    }
+
+    @PluginMethod()
+    public void download(final PluginCall call) {
+        final PackageDownloader downloader;
+        try {
+            downloader = new PackageDownloader(call.getString("url"), new File(new URI(call.getString("file"))), DOWNLOAD_PROGRESS_INTERVAL_MS);
+        } catch (Exception e) {
+            call.reject("An error occurred when trying to download the package. " + e.getMessage());
+            return;
+        }
+
+        OperationHandle handle = new OperationHandle(null, DOWNLOAD_PROGRESS_INTERVAL_MS);
+        handle.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                downloader.cancel();
+            }
+        });
+        if (!startDownload(call, handle)) {
+            return;
+        }
+
+        executor.executeIo(CodePushExecutor.Priority.NORMAL, "download", new PluginCallTask(call) {
+            @Override
+            public void onCancelled() {
+                synchronized (CodePush.this) {
+                    activeDownload = null;
+                }
+                super.onCancelled();
+            }
+
+            @Override
+            public void run() {
+                try {
+                    long totalBytes = downloader.download(new ProgressInputStream.Listener() {
+                        @Override
+                        public void onProgress(long receivedBytes, long totalBytes) {
+                            notifyDownloadProgress(receivedBytes, totalBytes);
+                        }
+                    });
+                    JSObject result = new JSObject();
+                    result.put("totalBytes", totalBytes);
+                    call.resolve(result);
+                } catch (PackageDownloader.DownloadCancelledException e) {
+                    call.reject(e.getMessage(), DOWNLOAD_CANCELLED_ERROR_CODE);
+                } catch (Exception e) {
+                    call.reject("An error occurred when trying to download the package. " + e.getMessage());
+                } finally {
+                    synchronized (CodePush.this) {
+                        activeDownload = null;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Downloads the update archive and extracts it into the target directory as it arrives, hashing its files on the way.
+     * The hash of the package is required: a full update with another hash is rejected with the INTEGRITY_CHECK_FAILED code,
+     * a diff update is verified once applied. A download that failed before completing is rejected with the DOWNLOAD_FAILED code,
+     * the caller can fall back to a resumable download then. Either way, the files extracted so far are deleted.
+     * The download is cancelled by abortDownload, or by cancelOperation with its "operationId" option.
+     */
+    @PluginMethod()
+    public void downloadAndInstall(final PluginCall call) {
+        final String url = call.getString("url");
+        final String targetDirectory = call.getString("targetDirectory");
+        final String packageHash = call.getString("packageHash");
+        if (url == null || targetDirectory == null || packageHash == null) {
+            call.reject("The url, the target directory and the hash of the package are required.");
+            return;
+        }
+
+        final OperationHandle handle = startOperation(call);
+        if (!startDownload(call, handle)) {
+            finishOperation(call);
+            return;
+        }
+
+        executor.executeIo(CodePushExecutor.Priority.NORMAL, "downloadAndInstall", new PackageWriteTask(call) {
+            @Override
+            public void onCancelled() {
+                finishDownload(call);
+                super.onCancelled();
+            }
+
+            @Override
+            void write() {
+                try {
+                    StreamingPackageDownloader downloader = new StreamingPackageDownloader(url, new File(new URI(targetDirectory)), packageHash, DOWNLOAD_PROGRESS_INTERVAL_MS);
+                    StreamingPackageDownloader.Result downloadResult = downloader.download(handle, new ProgressInputStream.Listener() {
+                        @Override
+                        public void onProgress(long receivedBytes, long totalBytes) {
+                            notifyDownloadProgress(receivedBytes, totalBytes);
+                        }
+                    });
+                    JSObject result = new JSObject();
+                    result.put("packageHash", downloadResult.packageHash);
+                    result.put("isDiffUpdate", downloadResult.isDiffUpdate);
+                    call.resolve(result);
+                } catch (OperationHandle.OperationCancelledException e) {
+                    call.reject(e.getMessage(), DOWNLOAD_CANCELLED_ERROR_CODE);
+                } catch (StreamingPackageDownloader.IntegrityException e) {
+                    call.reject(e.getMessage(), INTEGRITY_CHECK_FAILED_ERROR_CODE);
+                } catch (IOException e) {
+                    call.reject("An error occurred when trying to download the package. " + e.getMessage(), DOWNLOAD_FAILED_ERROR_CODE);
+                } catch (Exception e) {
+                    call.reject("An error occurred when trying to download the package. " + e.getMessage());
+                } finally {
+                    finishDownload(call);
+                }
+            }
+        });
+    }
+
+    /**
+     * Registers the handle of the download of the given call, only one download runs at a time.
+     * @return false if another download is in progress, the call is rejected then
+     */
+    private synchronized boolean startDownload(PluginCall call, OperationHandle handle) {
+        if (activeDownload != null) {
+            call.reject("A download is already in progress.");
+            return false;
+        }
+
+        activeDownload = handle;
+        return true;
+    }
+
+    private void finishDownload(PluginCall call) {
+        synchronized (this) {
+            activeDownload = null;
+        }
+        finishOperation(call);
+    }
+
+    @PluginMethod()
+    public void abortDownload(PluginCall call) {
+        synchronized (this) {
+            if (activeDownload != null) {
+                activeDownload.cancel();
+            }
+        }
+        call.resolve();
+    }
+
+    private void notifyDownloadProgress(long receivedBytes, long totalBytes) {
+        JSObject progress = new JSObject();
+        progress.put("receivedBytes", receivedBytes);
+        progress.put("totalBytes", totalBytes);
+        notifyListeners(DOWNLOAD_PROGRESS_EVENT, progress);
+    }
+
+    @PluginMethod()
+    public void deployArchive(final PluginCall call) {
+        executor.executeIo(CodePushExecutor.Priority.NORMAL, "deployArchive", new PackageWriteTask(call) {
+            @Override
+            void write() {
+                try {
+                    File zipFile = new File(new URI(call.getString("zipFile")));
+                    ArchivePackage archivePackage = ArchivePackage.open(zipFile);
+                    try {
+                        /* a diff update has to be merged with the current package, it can not be served as is */
+                        if (archivePackage.contains(DiffUpdateUtils.DIFF_MANIFEST_FILENAME)) {
+                            call.reject("A diff update can not be deployed as an archive package.");
+                            return;
+                        }
+                    } finally {
+                        archivePackage.close();
+                    }
+
+                    ArchivePackage.deploy(zipFile, new File(getContext().getFilesDir(), call.getString("deployDir")));
+                    call.resolve();
+                } catch (Exception e) {
+                    call.reject("An error occurred when trying to deploy the archive package. " + e.getMessage());
                 }
+            }
+        });
+    }
 
-                return null;
+    @PluginMethod()
+    public void applyDiffUpdate(final PluginCall call) {
+        executor.executeIo(CodePushExecutor.Priority.NORMAL, "applyDiffUpdate", new PackageWriteTask(call) {
+            @Override
+            void write() {
+                try {
+                    File filesDir = getContext().getFilesDir();
+                    File diffDirectory = new File(filesDir, call.getString("diffDirectory"));
+                    File newPackageDir = new File(filesDir, call.getString("newPackagePath"));
+                    CodePushPackageMetadata currentPackageMetadata = codePushPackageManager.getCurrentPackageMetadata();
+                    File currentPackageDir = null;
+                    if (currentPackageMetadata != null && currentPackageMetadata.localPath != null) {
+                        currentPackageDir = new File(filesDir, currentPackageMetadata.localPath);
+                    }
+
+                    DiffUpdateUtils.applyDiffUpdate(currentPackageDir, AndroidUtilities.getAssetSource(getContext().getAssets()), diffDirectory, newPackageDir);
+                    call.resolve();
+                } catch (Exception e) {
+                    call.reject("An error occurred when trying to apply the diff update. " + e.getMessage());
+                }
             }
-        }.execute();
+        });
     }
 
     @PluginMethod()
-    public void notifyApplicationReady(PluginCall call) {
+    public void notifyApplicationReady(final PluginCall call) {
+        startupScheduler.runPhase("notifyApplicationReady", new Runnable() {
+            @Override
+            public void run() {
+                confirmApplicationReady();
+                call.resolve();
+            }
+        });
+    }
+
+    /**
+     * Marks the current update as confirmed. The status report and the deletion of the old package are deferred,
+     * only the state changes deciding them are made right away.
+     */
+    private void confirmApplicationReady() {
         if (this.codePushPackageManager.isBinaryFirstRun()) {
             // Report first run of a binary version app
             this.codePushPackageManager.saveBinaryFirstRunFlag();
-            try {
-                String appVersion = Utilities.getAppVersionName(bridge.getContext());
-                codePushReportingManager.reportStatus(new StatusReport(ReportingStatus.STORE_VERSION, null, appVersion, getConfig().getString(DEPLOYMENT_KEY_PREFERENCE)), bridge.getWebView());
-            } catch (PackageManager.NameNotFoundException e) {
-                // Should not happen unless the appVersion is not specified, in which case we can't report anything anyway.
-                e.printStackTrace();
-            }
+            final String deploymentKey = getConfig().getString(DEPLOYMENT_KEY_PREFERENCE);
+            startupScheduler.defer("reportStatus", new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        String appVersion = AndroidUtilities.getAppVersionName(bridge.getContext());
+                        codePushReportingManager.reportStatus(new StatusReport(ReportingStatus.STORE_VERSION, null, appVersion, deploymentKey), bridge.getWebView());
+                    } catch (PackageManager.NameNotFoundException e) {
+                        // Should not happen unless the appVersion is not specified, in which case we can't report anything anyway.
+                        e.printStackTrace();
+                    }
+                }
+            });
         } else if (this.codePushPackageManager.installNeedsConfirmation()) {
             // Report CodePush update installation that has not been confirmed yet
             CodePushPackageMetadata currentMetadata = this.codePushPackageManager.getCurrentPackageMetadata();
-            codePushReportingManager.reportStatus(new StatusReport(ReportingStatus.UPDATE_CONFIRMED, currentMetadata.label, currentMetadata.appVersion, currentMetadata.deploymentKey), bridge.getWebView());
+            this.reportStatusDeferred(new StatusReport(ReportingStatus.UPDATE_CONFIRMED, currentMetadata.label, currentMetadata.appVersion, currentMetadata.deploymentKey));
         } else if (rollbackStatusReport != null) {
             // Report a CodePush update that has been rolled back
-            codePushReportingManager.reportStatus(rollbackStatusReport, bridge.getWebView());
+            this.reportStatusDeferred(rollbackStatusReport);
             rollbackStatusReport = null;
         } else if (codePushReportingManager.hasFailedReport()) {
             // Previous status report failed, so try it again
-            codePushReportingManager.reportStatus(codePushReportingManager.getAndClearFailedReport(), bridge.getWebView());
+            this.reportStatusDeferred(codePushReportingManager.getAndClearFailedReport());
         }
 
         // Mark the update as confirmed and not requiring a rollback
         this.codePushPackageManager.clearInstallNeedsConfirmation();
+        /* written before the old package is deleted, a crash must not roll back to a package that is gone */
+        this.codePushPreferences.flush();
         this.cleanOldPackageSilently();
-        call.resolve();
+    }
+
+    private void reportStatusDeferred(final StatusReport statusReport) {
+        startupScheduler.defer("reportStatus", new Runnable() {
+            @Override
+            public void run() {
+                codePushReportingManager.reportStatus(statusReport, bridge.getWebView());
+            }
+        });
+    }
+
+    @PluginMethod()
+    public void getExecutorMetrics(PluginCall call) {
+        JSObject metrics = new JSObject();
+        for (Map.Entry<String, Map<String, Long>> poolMetrics : executor.getMetrics().entrySet()) {
+            JSObject jsPoolMetrics = new JSObject();
+            for (Map.Entry<String, Long> metric : poolMetrics.getValue().entrySet()) {
+                jsPoolMetrics.put(metric.getKey(), metric.getValue().longValue());
+            }
+            metrics.put(poolMetrics.getKey(), jsPoolMetrics);
+        }
+        JSObject result = new JSObject();
+        result.put("value", metrics);
+        call.resolve(result);
+    }
+
+    @PluginMethod()
+    public void getStartupTimings(PluginCall call) {
+        JSObject timings = new JSObject();
+        for (Map.Entry<String, Long> timing : startupScheduler.getTimings().entrySet()) {
+            timings.put(timing.getKey(), timing.getValue().longValue());
+        }
+        JSObject result = new JSObject();
+        result.put("value", timings);
+        call.resolve(result);
     }
 
     @PluginMethod()
@@ -284,6 +837,23 @@ public class CodePush extends Plugin {
         call.resolve(jsObjectValue(isFailedUpdate));
     }
 
+    @PluginMethod()
+    public void getFailedUpdateInfo(PluginCall call) {
+        final String packageHash = call.getString("packageHash");
+        FailedUpdateRegistry.Entry failedUpdate = this.codePushPackageManager.getFailedUpdate(packageHash);
+        JSObject result = new JSObject();
+        if (failedUpdate != null) {
+            JSObject info = new JSObject();
+            info.put("failureCount", failedUpdate.failureCount);
+            info.put("firstFailureTime", failedUpdate.firstFailureTime);
+            info.put("lastFailureTime", failedUpdate.lastFailureTime);
+            result.put("value", info);
+        } else {
+            result.put("value", JSObject.NULL);
+        }
+        call.resolve(result);
+    }
+
     @PluginMethod()
     public void install(PluginCall call) {
         try {
@@ -295,15 +865,16 @@ public class CodePush extends Plugin {
             if (startPage != null) {
                 /* start page file exists */
                 /* navigate to the start page */
+                /* the rollback state has to be on disk before the new package gets a chance to crash the application */
+                this.codePushPackageManager.activateInstall(startLocation, new InstallOptions(installMode, minimumBackgroundDuration));
                 if (InstallMode.IMMEDIATE.equals(installMode)) {
-                    bridge.setServerBasePath(getBasePathForPackage(startLocation));
-                    markUpdate();
-                } else {
-                    InstallOptions pendingInstall = new InstallOptions(installMode, minimumBackgroundDuration);
-                    this.codePushPackageManager.savePendingInstall(pendingInstall);
+                    serveLocalPackage(startLocation);
+                    /* this flag will clear when reloading the plugin */
+                    this.didUpdate = true;
                 }
 
                 call.resolve();
+                this.internPackageSilently(startLocation);
             } else {
                 call.reject("Could not find the package start page.");
             }
@@ -368,26 +939,69 @@ public class CodePush extends Plugin {
         this.codePushPackageManager.markInstallNeedsConfirmation();
     }
 
+    /**
+     * Turns the pending install into the update to confirm. Like for an immediate install, the rollback state is
+     * written to disk before the new package runs, so a crash of the package still reverts it on the next start.
+     */
+    private void activatePendingInstall() {
+        this.markUpdate();
+        this.codePushPackageManager.clearPendingInstall();
+        this.codePushPreferences.flush();
+    }
+
+    private void internPackageSilently(final String packageLocation) {
+        executor.executeIo(CodePushExecutor.Priority.LOW, "internPackageSilently", new CodePushExecutor.Task() {
+            @Override
+            public void run() {
+                try {
+                    codePushPackageManager.internPackage(packageLocation);
+                } catch (Exception e) {
+                    /* the package keeps its own copy of the files */
+                    Utilities.logException(e);
+                }
+            }
+        });
+    }
+
     private void cleanOldPackageSilently() {
         try {
-            this.codePushPackageManager.cleanOldPackage();
+            this.codePushPackageManager.cleanOldPackage(this.codePushPackageManager.getOldPackageMetadata());
         } catch (Exception e) {
             /* silently fail if there was an error during cleanup */
             Utilities.logException(e);
         }
+        this.emptyTrashWhenIdle();
+    }
+
+    /**
+     * Deletes the packages moved to the trash once the application is idle.
+     */
+    private void emptyTrashWhenIdle() {
+        startupScheduler.defer("emptyTrash", new Runnable() {
+            @Override
+            public void run() {
+                codePushPackageManager.emptyTrash();
+            }
+        });
     }
 
     private void clearDeploymentsIfBinaryUpdated() {
+        /* the binary can not change while the process runs, and packages installed since then are tagged with its version */
+        if (binaryUpdateChecked) {
+            return;
+        }
+        binaryUpdateChecked = true;
+
         /* check if we have a deployed package already */
         CodePushPackageMetadata deployedPackageMetadata = this.codePushPackageManager.getCurrentPackageMetadata();
         if (deployedPackageMetadata != null) {
             String deployedPackageTimeStamp = deployedPackageMetadata.nativeBuildTime;
-            long nativeBuildTime = Utilities.getApkBuildTime(this.bridge.getContext());
+            long nativeBuildTime = AndroidUtilities.getApkBuildTime(this.bridge.getContext());
 
             String deployedPackageVersion = deployedPackageMetadata.appVersion;
             String applicationVersion = null;
             try {
-                applicationVersion = Utilities.getAppVersionName(this.bridge.getContext());
+                applicationVersion = AndroidUtilities.getAppVersionName(this.bridge.getContext());
             } catch (PackageManager.NameNotFoundException e) {
                 e.printStackTrace();
             }
@@ -396,7 +1010,9 @@ public class CodePush extends Plugin {
                 String currentAppTimeStamp = String.valueOf(nativeBuildTime);
                 if (!currentAppTimeStamp.equals(deployedPackageTimeStamp) ||
                         !(applicationVersion.equals(deployedPackageVersion))) {
-                    this.codePushPackageManager.cleanDeployments();
+                    /* the deployments are moved to the trash right away, so the binary version is served, and deleted once idle */
+                    this.codePushPackageManager.discardDeployments();
+                    this.emptyTrashWhenIdle();
                     this.codePushPackageManager.clearFailedUpdates();
                     this.codePushPackageManager.clearPendingInstall();
                     this.codePushPackageManager.clearInstallNeedsConfirmation();
@@ -409,7 +1025,65 @@ public class CodePush extends Plugin {
     private void navigateToLocalDeploymentIfExists() {
         CodePushPackageMetadata deployedPackageMetadata = this.codePushPackageManager.getCurrentPackageMetadata();
         if (deployedPackageMetadata != null && deployedPackageMetadata.localPath != null) {
-            this.bridge.setServerBasePath(this.getBasePathForPackage(deployedPackageMetadata.localPath));
+            this.serveLocalPackage(deployedPackageMetadata.localPath);
+        } else {
+            try {
+                this.servePackageAssets(null);
+            } catch (IOException e) {
+                Utilities.logException(e);
+            }
+        }
+    }
+
+    /**
+     * Points the web view to the given package. For an archive package, the assets are also served from its archive from now on.
+     */
+    private void serveLocalPackage(String packageLocation) {
+        try {
+            this.servePackageAssets(new File(this.bridge.getContext().getFilesDir(), packageLocation));
+        } catch (IOException e) {
+            Utilities.logException(e);
+        }
+        this.bridge.setServerBasePath(this.getBasePathForPackage(packageLocation));
+    }
+
+    /**
+     * Installs the package web view client while the served package has assets the local server can not serve,
+     * i.e. while it is an archive package. Otherwise the web view client of the bridge is left alone, so requests
+     * are not intercepted for nothing and a client set by another plugin is kept.
+     * @param packageDirectory the package directory, or null when the binary version is served
+     */
+    private synchronized void servePackageAssets(File packageDirectory) throws IOException {
+        boolean intercepted = packageDirectory != null && ArchivePackage.isArchivePackage(packageDirectory);
+        if (intercepted) {
+            if (this.packageWebViewClient == null) {
+                final PackageWebViewClient webViewClient = new PackageWebViewClient(this.bridge);
+                final BridgeWebViewClient previousWebViewClient = this.bridge.getWebViewClient();
+                this.packageWebViewClient = webViewClient;
+                this.previousWebViewClient = previousWebViewClient;
+                /* posted before the navigation to the package, so it is in place for its first request */
+                getActivity().runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        bridge.setWebViewClient(webViewClient);
+                    }
+                });
+            }
+            this.packageWebViewClient.setPackageDirectory(packageDirectory);
+        } else if (this.packageWebViewClient != null) {
+            final PackageWebViewClient webViewClient = this.packageWebViewClient;
+            final BridgeWebViewClient previousWebViewClient = this.previousWebViewClient;
+            this.packageWebViewClient = null;
+            this.previousWebViewClient = null;
+            webViewClient.setPackageDirectory(null);
+            getActivity().runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (bridge.getWebViewClient() == webViewClient) {
+                        bridge.setWebViewClient(previousWebViewClient);
+                    }
+                }
+            });
         }
     }
 
@@ -422,10 +1096,14 @@ public class CodePush extends Plugin {
             File startPage = this.getStartPageForPackage(startLocation);
             if (startPage != null) {
                 /* start page exists */
+                /* the package information is swapped next, an interruption before install() rolls it back */
+                this.codePushPackageManager.beginInstall(startLocation);
                 call.resolve();
             } else {
                 call.reject("Could not get the package start page");
             }
+        } catch (IOException e) {
+            call.reject("Could not record the install: " + e.getMessage());
         } catch (Exception e) {
             call.reject("Could not get the package start page");
         }
@@ -434,7 +1112,7 @@ public class CodePush extends Plugin {
     @PluginMethod()
     public void getAppVersion(PluginCall call) {
         try {
-            String appVersionName = Utilities.getAppVersionName(this.bridge.getContext());
+            String appVersionName = AndroidUtilities.getAppVersionName(this.bridge.getContext());
             call.resolve(jsObjectValue(appVersionName));
         } catch (PackageManager.NameNotFoundException e) {
             call.reject("Cannot get application version.");
@@ -443,7 +1121,7 @@ public class CodePush extends Plugin {
 
     @PluginMethod()
     public void getNativeBuildTime(PluginCall call) {
-        long millis = Utilities.getApkBuildTime(this.bridge.getContext());
+        long millis = AndroidUtilities.getApkBuildTime(this.bridge.getContext());
         if (millis == -1) {
             call.reject("Could not get the application buildstamp.");
         } else {
@@ -467,15 +1145,16 @@ public class CodePush extends Plugin {
             CodePushPackageMetadata currentMetadata = this.codePushPackageManager.getCurrentPackageMetadata();
             rollbackStatusReport = new StatusReport(ReportingStatus.UPDATE_ROLLED_BACK, currentMetadata.label, currentMetadata.appVersion, currentMetadata.deploymentKey);
 
-            /* revert application to the previous version */
-            this.codePushPackageManager.clearInstallNeedsConfirmation();
+            /* revert application to the previous version, this also clears the confirmation flag */
             this.codePushPackageManager.revertToPreviousVersion();
+            this.emptyTrashWhenIdle();
 
             /* reload the previous version */
             if (navigate) {
                 String url;
                 try {
                     CodePushPackageMetadata currentPackageMetadata = this.codePushPackageManager.getCurrentPackageMetadata();
+                    this.servePackageAssets(currentPackageMetadata != null ? new File(this.bridge.getContext().getFilesDir(), currentPackageMetadata.localPath) : null);
                     url = this.getStartPageURLForPackage(currentPackageMetadata.localPath);
                 } catch (Exception e) {
                     url = this.getConfigLaunchUrl();
@@ -562,6 +1241,19 @@ public class CodePush extends Plugin {
      */
     @Override
     public void handleOnStart() {
+        startupScheduler.runPhase("handleOnStart", new Runnable() {
+            @Override
+            public void run() {
+                startApplication();
+            }
+        });
+    }
+
+    /**
+     * Picks the package to serve. Only the decisions needed before the first page is shown are made here,
+     * the cleanup and reporting they lead to are deferred to the startup scheduler.
+     */
+    private void startApplication() {
         clearDeploymentsIfBinaryUpdated();
         if (!didStartApp) {
             /* The application was just started. */
@@ -573,33 +1265,44 @@ public class CodePush extends Plugin {
                 handleUnconfirmedInstall(false);
             }
 
-            navigateToLocalDeploymentIfExists();
             /* Handle ON_NEXT_RESUME and ON_NEXT_RESTART pending installations */
             if (pendingInstall != null && (InstallMode.ON_NEXT_RESUME.equals(pendingInstall.installMode) || InstallMode.ON_NEXT_RESTART.equals(pendingInstall.installMode))) {
-                this.markUpdate();
-                this.codePushPackageManager.clearPendingInstall();
+                this.activatePendingInstall();
             }
+            navigateToLocalDeploymentIfExists();
         } else {
             /* The application was resumed from the background. */
             /* Handle ON_NEXT_RESUME pending installations. */
             InstallOptions pendingInstall = this.codePushPackageManager.getPendingInstall();
             long durationInBackground = (new Date().getTime() - lastPausedTimeMs) / 1000;
             if (pendingInstall != null && InstallMode.ON_NEXT_RESUME.equals(pendingInstall.installMode) && durationInBackground >= pendingInstall.minimumBackgroundDuration) {
+                this.activatePendingInstall();
                 navigateToLocalDeploymentIfExists();
-                this.markUpdate();
-                this.codePushPackageManager.clearPendingInstall();
             } else if (codePushReportingManager.hasFailedReport()) {
-                codePushReportingManager.reportStatus(codePushReportingManager.getAndClearFailedReport(), bridge.getWebView());
+                this.reportStatusDeferred(codePushReportingManager.getAndClearFailedReport());
             }
         }
     }
 
     /**
      * The final call you receive before your activity is destroyed.
+     * The background work of the plugin is stopped, the calls still waiting for it are rejected.
      */
-    // TODO: capacitor doesn't seem to have this hook
-    public void onDestroy() {
+    @Override
+    public void handleOnDestroy() {
         this.pluginDestroyed = true;
+        synchronized (this) {
+            /* a blocked network read is not interrupted, the connection has to be closed */
+            if (activeDownload != null) {
+                activeDownload.cancel();
+            }
+        }
+        synchronized (activeOperations) {
+            for (OperationHandle handle : activeOperations.values()) {
+                handle.cancel();
+            }
+        }
+        this.executor.shutdown();
     }
 
 
@@ -0,0 +1,305 @@
+package com.microsoft.capacitor;
+
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the background work of the plugin on two bounded pools owned by the plugin: one for CPU-bound work
+ * (hashing, signature verification) and one for I/O-bound work (downloads, extraction, deletion), so a long
+ * extraction does not hold back a hash computation. Queued tasks run by priority, then in submission order.
+ * {@link #shutdown()} interrupts the running tasks and cancels the queued ones.
+ *
+ * A task may split its work over the worker pools, which are owned by the executor as well: the fork-join pool
+ * the package files are hashed on, and the pools the archive entries are extracted on and the trash is deleted on.
+ * Only tasks of the two main pools submit to the worker pools, so a worker never waits for a queued task.
+ */
+public class CodePushExecutor {
+    private static final int IO_POOL_SIZE = 4;
+    private static final int DELETION_POOL_SIZE = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    public enum Priority {
+        /* a caller is waiting for the result */
+        HIGH,
+        NORMAL,
+        /* housekeeping nobody waits for */
+        LOW
+    }
+
+    /**
+     * A unit of background work. {@link #onCancelled()} is called instead of {@link #run()} if the task is still queued
+     * when the executor shuts down, so the caller waiting for the task can be told.
+     */
+    public static abstract class Task implements Runnable {
+        public void onCancelled() {
+        }
+    }
+
+    private final Pool cpuPool;
+    private final Pool ioPool;
+    private final ForkJoinPool hashingPool;
+    private final ThreadPoolExecutor extractionPool;
+    private final ThreadPoolExecutor deletionPool;
+
+    /**
+     * @param hashingParallelism the number of threads the files of a package are hashed on
+     * @param extractionParallelism the number of threads the entries of an archive are extracted on
+     */
+    public CodePushExecutor(int hashingParallelism, int extractionParallelism) {
+        this.cpuPool = new Pool("CodePushCpu", Math.max(2, Runtime.getRuntime().availableProcessors()), Process.THREAD_PRIORITY_DEFAULT);
+        this.ioPool = new Pool("CodePushIo", IO_POOL_SIZE, Process.THREAD_PRIORITY_BACKGROUND);
+        this.hashingPool = new ForkJoinPool(Math.max(1, hashingParallelism), new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            private final AtomicLong threadCount = new AtomicLong();
+
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread = new ForkJoinWorkerThread(pool) {
+                };
+                thread.setName("CodePushHash-" + threadCount.incrementAndGet());
+                return thread;
+            }
+        }, null, false);
+        this.extractionPool = createWorkerPool("CodePushUnzip", Math.max(1, extractionParallelism), Process.THREAD_PRIORITY_DEFAULT);
+        this.deletionPool = createWorkerPool("CodePushTrash", DELETION_POOL_SIZE, Process.THREAD_PRIORITY_BACKGROUND);
+    }
+
+    public void executeCpu(Priority priority, String name, Task task) {
+        cpuPool.execute(priority, name, task);
+    }
+
+    public void executeIo(Priority priority, String name, Task task) {
+        ioPool.execute(priority, name, task);
+    }
+
+    /**
+     * The pool the files of an update package are hashed on, see {@link UpdateHashUtils#setHashingPool(ForkJoinPool)}.
+     */
+    public ForkJoinPool getHashingPool() {
+        return hashingPool;
+    }
+
+    /**
+     * The pool the entries of an archive are extracted on, see {@link ZipExtractor#setExtractionPool(ExecutorService)}.
+     */
+    public ExecutorService getExtractionPool() {
+        return extractionPool;
+    }
+
+    /**
+     * The pool the files in the trash are deleted on, see {@link PackageTrash#setDeletionPool(ExecutorService)}.
+     */
+    public ExecutorService getDeletionPool() {
+        return deletionPool;
+    }
+
+    /**
+     * Interrupts the running tasks and cancels the queued ones. Tasks submitted afterwards are cancelled right away.
+     * The worker pools are stopped as well, the work split over them by a running task is interrupted with it.
+     */
+    public void shutdown() {
+        cpuPool.shutdown();
+        ioPool.shutdown();
+        hashingPool.shutdownNow();
+        extractionPool.shutdownNow();
+        deletionPool.shutdownNow();
+    }
+
+    /**
+     * Returns the metrics of the pools, keyed by pool name. For the two main pools: the current and maximum queue depth,
+     * the number of completed, failed and cancelled tasks, and the average and maximum time spent queued and running,
+     * in milliseconds. For the worker pools: the number of threads, the queue depth, and the active and completed tasks.
+     */
+    public Map<String, Map<String, Long>> getMetrics() {
+        Map<String, Map<String, Long>> metrics = new LinkedHashMap<String, Map<String, Long>>();
+        metrics.put("cpu", cpuPool.getMetrics());
+        metrics.put("io", ioPool.getMetrics());
+        metrics.put("hashing", getHashingPoolMetrics());
+        metrics.put("extraction", getWorkerPoolMetrics(extractionPool));
+        metrics.put("deletion", getWorkerPoolMetrics(deletionPool));
+        return metrics;
+    }
+
+    private Map<String, Long> getHashingPoolMetrics() {
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("poolSize", (long) hashingPool.getPoolSize());
+        metrics.put("queueDepth", hashingPool.getQueuedTaskCount() + hashingPool.getQueuedSubmissionCount());
+        metrics.put("activeTasks", (long) hashingPool.getActiveThreadCount());
+        metrics.put("stolenTasks", hashingPool.getStealCount());
+        return metrics;
+    }
+
+    private static Map<String, Long> getWorkerPoolMetrics(ThreadPoolExecutor pool) {
+        Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+        metrics.put("poolSize", (long) pool.getPoolSize());
+        metrics.put("queueDepth", (long) pool.getQueue().size());
+        metrics.put("activeTasks", (long) pool.getActiveCount());
+        metrics.put("completedTasks", pool.getCompletedTaskCount());
+        return metrics;
+    }
+
+    private static ThreadPoolExecutor createWorkerPool(String name, int size, int threadPriority) {
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new PoolThreadFactory(name, threadPriority));
+        /* idle between packages, so the threads are not kept */
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    private static class PoolThreadFactory implements ThreadFactory {
+        private final String name;
+        private final int threadPriority;
+        private final AtomicLong threadCount = new AtomicLong();
+
+        PoolThreadFactory(String name, int threadPriority) {
+            this.name = name;
+            this.threadPriority = threadPriority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(threadPriority);
+                    runnable.run();
+                }
+            }, name + "-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    private static class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+        final Priority priority;
+        final long sequence;
+        final String name;
+        final Task task;
+        final long queuedTime = SystemClock.elapsedRealtime();
+        final Pool pool;
+
+        PrioritizedTask(Pool pool, Priority priority, long sequence, String name, Task task) {
+            this.pool = pool;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.name = name;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long startTime = SystemClock.elapsedRealtime();
+            boolean failed = true;
+            try {
+                task.run();
+                failed = false;
+            } catch (RuntimeException e) {
+                Utilities.logMessage("The background task " + name + " failed.");
+                Utilities.logException(e);
+            } finally {
+                pool.recordCompletion(startTime - queuedTime, SystemClock.elapsedRealtime() - startTime, failed);
+            }
+        }
+
+        @Override
+        public int compareTo(PrioritizedTask other) {
+            if (priority != other.priority) {
+                return priority.compareTo(other.priority);
+            }
+
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static class Pool {
+        private final ThreadPoolExecutor executor;
+        private final AtomicLong sequence = new AtomicLong();
+        private long maxQueueDepth;
+        private long completedTasks;
+        private long failedTasks;
+        private long cancelledTasks;
+        private long totalQueuedMs;
+        private long maxQueuedMs;
+        private long totalRunningMs;
+        private long maxRunningMs;
+
+        Pool(String name, int size, int threadPriority) {
+            /* the queue is unbounded, so the pool never grows past its core size */
+            this.executor = new ThreadPoolExecutor(size, size, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new PriorityBlockingQueue<Runnable>(), new PoolThreadFactory(name, threadPriority));
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        void execute(Priority priority, String name, Task task) {
+            try {
+                executor.execute(new PrioritizedTask(this, priority, sequence.incrementAndGet(), name, task));
+            } catch (RejectedExecutionException e) {
+                cancel(task);
+                return;
+            }
+
+            synchronized (this) {
+                maxQueueDepth = Math.max(maxQueueDepth, executor.getQueue().size());
+            }
+        }
+
+        void shutdown() {
+            List<Runnable> queuedTasks = executor.shutdownNow();
+            for (Runnable queuedTask : queuedTasks) {
+                cancel(((PrioritizedTask) queuedTask).task);
+            }
+        }
+
+        private void cancel(Task task) {
+            synchronized (this) {
+                cancelledTasks++;
+            }
+            try {
+                task.onCancelled();
+            } catch (RuntimeException e) {
+                Utilities.logException(e);
+            }
+        }
+
+        synchronized void recordCompletion(long queuedMs, long runningMs, boolean failed) {
+            if (failed) {
+                failedTasks++;
+            } else {
+                completedTasks++;
+            }
+            totalQueuedMs += queuedMs;
+            maxQueuedMs = Math.max(maxQueuedMs, queuedMs);
+            totalRunningMs += runningMs;
+            maxRunningMs = Math.max(maxRunningMs, runningMs);
+        }
+
+        synchronized Map<String, Long> getMetrics() {
+            long finishedTasks = completedTasks + failedTasks;
+            Map<String, Long> metrics = new LinkedHashMap<String, Long>();
+            metrics.put("queueDepth", (long) executor.getQueue().size());
+            metrics.put("maxQueueDepth", maxQueueDepth);
+            metrics.put("activeTasks", (long) executor.getActiveCount());
+            metrics.put("completedTasks", completedTasks);
+            metrics.put("failedTasks", failedTasks);
+            metrics.put("cancelledTasks", cancelledTasks);
+            metrics.put("averageQueuedMs", finishedTasks > 0 ? totalQueuedMs / finishedTasks : 0);
+            metrics.put("maxQueuedMs", maxQueuedMs);
+            metrics.put("averageRunningMs", finishedTasks > 0 ? totalRunningMs / finishedTasks : 0);
+            metrics.put("maxRunningMs", maxRunningMs);
+            return metrics;
+        }
+    }
+}
@@ -2,10 +2,11 @@ package com.microsoft.capacitor;
 
 import android.content.Context;
 
-import org.json.JSONException;
-
 import java.io.File;
 import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Handles update package management.
@@ -17,63 +18,171 @@ public class CodePushPackageManager {
 
     private Context context;
     private CodePushPreferences codePushPreferences;
+    private PackageBlobStore packageBlobStore;
+    private PackageTrash packageTrash;
+    private PackageStateJournal packageStateJournal;
+    private final Map<String, CachedMetadata> metadataCache = new HashMap<String, CachedMetadata>();
+
+    /**
+     * Parsed package information, valid as long as the file it was read from keeps the same modification time and size.
+     */
+    private static class CachedMetadata {
+        final long lastModified;
+        final long length;
+        final CodePushPackageMetadata metadata;
+
+        CachedMetadata(long lastModified, long length, CodePushPackageMetadata metadata) {
+            this.lastModified = lastModified;
+            this.length = length;
+            this.metadata = metadata;
+        }
+    }
 
     public CodePushPackageManager(Context context, CodePushPreferences codePushPreferences) {
         this.context = context;
         this.codePushPreferences = codePushPreferences;
+        this.packageBlobStore = new PackageBlobStore(context.getFilesDir());
+        this.packageTrash = new PackageTrash(context.getFilesDir());
+        this.packageStateJournal = new PackageStateJournal(context.getFilesDir(), codePushPreferences, this.packageTrash);
     }
 
+    /**
+     * Reverts to the previous package. The transition is journaled, see {@link PackageStateJournal}.
+     * The failed package is moved to the trash, its files are deleted by {@link #emptyTrash()}.
+     */
     public void revertToPreviousVersion() {
-        /* delete the failed update package */
-        CodePushPackageMetadata failedUpdateMetadata = this.getCurrentPackageMetadata();
-        if (failedUpdateMetadata != null) {
-            if (failedUpdateMetadata.packageHash != null) {
-                this.codePushPreferences.saveFailedUpdate(failedUpdateMetadata.packageHash);
-            }
-            File failedUpdateDir = new File(this.context.getFilesDir() + failedUpdateMetadata.localPath);
-            if (failedUpdateDir.exists()) {
-                Utilities.deleteEntryRecursively(failedUpdateDir);
+        this.packageStateJournal.revert();
+        /* a rename keeps the modification time of the old file, so it is not enough to detect the change */
+        this.invalidateMetadataCache();
+    }
+
+    /**
+     * Records the package information as it is before the JavaScript side swaps it for the given package,
+     * so an install interrupted before {@link #activateInstall(String, InstallOptions)} is rolled back.
+     */
+    public void beginInstall(String localPath) throws IOException {
+        this.packageStateJournal.beginInstall(localPath);
+        this.invalidateMetadataCache();
+    }
+
+    /**
+     * Makes the given package the update to confirm, or the pending install, and writes the state to disk.
+     */
+    public void activateInstall(String localPath, InstallOptions installOptions) {
+        this.packageStateJournal.activateInstall(localPath, installOptions);
+        /* the JavaScript side swapped the package information files in between, possibly within the same second */
+        this.invalidateMetadataCache();
+    }
+
+    /**
+     * Completes or rolls back the package state transition that was interrupted by the end of the process, if any.
+     * Must be called before the package state is read.
+     */
+    public void recoverInterruptedTransition() {
+        this.packageStateJournal.recover();
+        this.invalidateMetadataCache();
+    }
+
+    private static boolean isSamePath(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    /**
+     * Stops using every deployed package at once by moving the content of the CodePush directory to the trash.
+     * The state store file is kept, the store rewrites it from memory anyway.
+     */
+    public void discardDeployments() {
+        File[] files = new File(this.context.getFilesDir() + "/codepush").listFiles();
+        if (files != null) {
+            File stateFile = new File(this.context.getFilesDir() + CodePushStateStore.CODEPUSH_STATE_PATH);
+            for (File file : files) {
+                if (!file.equals(this.packageTrash.getTrashDirectory()) && !file.equals(stateFile)) {
+                    this.packageTrash.moveToTrash(file);
+                }
             }
         }
-
-        /* replace the current file with the old one */
-        File currentFile = new File(this.context.getFilesDir() + CodePushPackageManager.CODEPUSH_CURRENT_PACKAGE_PATH);
-        File oldFile = new File(this.context.getFilesDir() + CodePushPackageManager.CODEPUSH_OLD_PACKAGE_PATH);
-
-        if (currentFile.exists()) {
-            currentFile.delete();
+        this.invalidateMetadataCache();
+    }
+
+    /**
+     * Moves the given old package to the trash, unless it became the current package again since it was read.
+     */
+    public void cleanOldPackage(CodePushPackageMetadata oldPackageMetadata) {
+        CodePushPackageMetadata currentPackageMetadata = this.getCurrentPackageMetadata();
+        if (oldPackageMetadata != null && oldPackageMetadata.localPath != null
+                && (currentPackageMetadata == null || !isSamePath(currentPackageMetadata.localPath, oldPackageMetadata.localPath))) {
+            this.packageTrash.moveToTrash(new File(this.context.getFilesDir(), oldPackageMetadata.localPath));
+            this.deletePackageHashIndex(oldPackageMetadata.localPath);
         }
+    }
 
-        if (oldFile.exists()) {
-            oldFile.renameTo(currentFile);
-        }
+    /**
+     * Deletes the packages moved to the trash, by this process or a previous one, then the blobs they no longer use.
+     * Slow, must be called from a background thread.
+     */
+    public void emptyTrash() {
+        this.packageTrash.empty();
+        this.packageBlobStore.collectGarbage();
     }
 
-    public void cleanDeployments() {
-        File file = new File(this.context.getFilesDir() + "/codepush");
-        if (file.exists()) {
-            Utilities.deleteEntryRecursively(file);
-        }
+    /**
+     * Moves the files of the given package into the shared blob store, so they share storage with identical files of other packages.
+     */
+    public void internPackage(String localPath) throws IOException, NoSuchAlgorithmException {
+        /* the index of the public folder holds the file hashes computed when the package was verified */
+        PackageHashIndex knownHashes = PackageHashIndex.load(this.context.getFilesDir(), localPath + "/public");
+        this.packageBlobStore.internPackage(new File(this.context.getFilesDir(), localPath), knownHashes);
     }
 
-    public void cleanOldPackage() throws IOException, JSONException {
-        CodePushPackageMetadata oldPackageMetadata = this.getOldPackageMetadata();
-        if (oldPackageMetadata != null) {
-            File file = new File(this.context.getFilesDir() + oldPackageMetadata.localPath);
-            if (file.exists()) {
-                Utilities.deleteEntryRecursively(file);
-            }
+    private void deletePackageHashIndex(String localPath) {
+        if (localPath != null) {
+            /* package hashes are computed over the public folder of the package, see CodePush.getPackageHash */
+            PackageHashIndex.delete(this.context.getFilesDir(), localPath + "/public");
         }
     }
 
     public CodePushPackageMetadata getOldPackageMetadata() {
-        String currentPackageFilePath = this.context.getFilesDir() + CODEPUSH_OLD_PACKAGE_PATH;
-        return CodePushPackageMetadata.getPackageMetadata(currentPackageFilePath);
+        String oldPackageFilePath = this.context.getFilesDir() + CODEPUSH_OLD_PACKAGE_PATH;
+        return this.getCachedPackageMetadata(oldPackageFilePath);
     }
 
     public CodePushPackageMetadata getCurrentPackageMetadata() {
         String currentPackageFilePath = this.context.getFilesDir() + CODEPUSH_CURRENT_PACKAGE_PATH;
-        return CodePushPackageMetadata.getPackageMetadata(currentPackageFilePath);
+        return this.getCachedPackageMetadata(currentPackageFilePath);
+    }
+
+    /**
+     * Returns the package information stored in the given file, parsing it only if it changed since it was last read.
+     * The files are also written by the JavaScript side, so a change is detected from their modification time and size.
+     * The cache is also dropped whenever the native side swaps packages, see {@link #invalidateMetadataCache()}.
+     */
+    private CodePushPackageMetadata getCachedPackageMetadata(String filePath) {
+        File file = new File(filePath);
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (this.metadataCache) {
+            CachedMetadata cachedMetadata = this.metadataCache.get(filePath);
+            if (cachedMetadata != null && cachedMetadata.lastModified == lastModified && cachedMetadata.length == length) {
+                return cachedMetadata.metadata;
+            }
+        }
+
+        /* a missing file has a modification time of 0, its absence is cached as well */
+        CodePushPackageMetadata metadata = CodePushPackageMetadata.getPackageMetadata(filePath);
+        /* a file modified this recently may be rewritten with the same size and modification time, like in PackageHashIndex */
+        if (Math.abs(System.currentTimeMillis() - lastModified) > PackageHashIndex.MODIFICATION_TIME_GRANULARITY_MS) {
+            synchronized (this.metadataCache) {
+                this.metadataCache.put(filePath, new CachedMetadata(lastModified, length, metadata));
+            }
+        }
+
+        return metadata;
+    }
+
+    private void invalidateMetadataCache() {
+        synchronized (this.metadataCache) {
+            this.metadataCache.clear();
+        }
     }
 
     public String getCachedBinaryHash() {
@@ -88,6 +197,10 @@ public class CodePushPackageManager {
         return this.codePushPreferences.isFailedUpdate(packageHash);
     }
 
+    public FailedUpdateRegistry.Entry getFailedUpdate(String packageHash) {
+        return this.codePushPreferences.getFailedUpdate(packageHash);
+    }
+
     public void clearFailedUpdates() {
         this.codePushPreferences.clearFailedUpdates();
     }
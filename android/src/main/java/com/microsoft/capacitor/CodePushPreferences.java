@@ -1,22 +1,22 @@
 package com.microsoft.capacitor;
 
 import android.content.Context;
-import android.content.SharedPreferences;
 
 import org.json.JSONException;
 
-import java.util.HashSet;
 import java.util.Set;
 
 /**
- * Manages interaction with the Android preferences system.
+ * Manages the persisted CodePush state. The state lives in a single {@link CodePushStateStore}; the preference
+ * files used by previous versions of the plugin are migrated into it the first time it is opened.
  */
-public class CodePushPreferences {
+public class CodePushPreferences implements PackageStateJournal.PackageState {
 
     private static final String BINARY_HASH_PREFERENCE = "BINARY_HASH";
     private static final String BINARY_HASH_PREFERENCE_KEY = "BINARY_HASH_KEY";
     private static final String FAILED_UPDATES_PREFERENCE = "FAILED_UPDATES";
     private static final String FAILED_UPDATES_KEY = "FAILED_UPDATES_KEY";
+    private static final String FAILED_UPDATES_REGISTRY_KEY = "FAILED_UPDATES_REGISTRY_KEY";
     private static final String PENDING_INSTALL_PREFERENCE = "PENDING_INSTALL";
     private static final String INSTALL_MODE_KEY = "INSTALL_MODE_KEY";
     private static final String INSTALL_MIN_BACKGROUND_DURATION = "INSTALL_MINIMUM_BACKGROUND_DURATION";
@@ -30,69 +30,124 @@ public class CodePushPreferences {
     private static final String LAST_VERSION_DEPLOYMENT_KEY_KEY = "LAST_VERSION_DEPLOYMENT_KEY_KEY";
     private static final String LAST_VERSION_LABEL_OR_APP_VERSION_KEY = "LAST_VERSION_LABEL_OR_APP_VERSION_KEY";
 
-    private Context context;
+    /* the preference files of previous versions, every key is unique across them */
+    private static final String[] LEGACY_PREFERENCES = {
+            BINARY_HASH_PREFERENCE,
+            FAILED_UPDATES_PREFERENCE,
+            PENDING_INSTALL_PREFERENCE,
+            INSTALL_NEEDS_CONFIRMATION,
+            FAILED_STATUS_REPORT_PREFERENCE,
+            FIRST_RUN_PREFERENCE,
+            LAST_VERSION_PREFERENCE
+    };
+
+    private CodePushStateStore stateStore;
+    private FailedUpdateRegistry failedUpdates;
 
     public CodePushPreferences(Context context) {
-        this.context = context;
+        this.stateStore = CodePushStateStore.getInstance(context);
+        this.stateStore.migrateSharedPreferences(context, LEGACY_PREFERENCES);
+        this.failedUpdates = loadFailedUpdates();
+    }
+
+    /**
+     * Blocks until all the state changes made so far are written to disk.
+     */
+    @Override
+    public void flush() {
+        this.stateStore.flush();
     }
 
     public String getCachedBinaryHash() {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.BINARY_HASH_PREFERENCE, Context.MODE_PRIVATE);
-        return preferences.getString(CodePushPreferences.BINARY_HASH_PREFERENCE_KEY, null);
+        return stateStore.getString(CodePushPreferences.BINARY_HASH_PREFERENCE_KEY, null);
     }
 
     public void saveBinaryHash(String binaryHash) {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.BINARY_HASH_PREFERENCE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putString(CodePushPreferences.BINARY_HASH_PREFERENCE_KEY, binaryHash);
-        editor.commit();
+        stateStore.edit().putString(CodePushPreferences.BINARY_HASH_PREFERENCE_KEY, binaryHash).commit();
     }
 
     public void saveFailedUpdate(String hashCode) {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.FAILED_UPDATES_PREFERENCE, Context.MODE_PRIVATE);
-        Set<String> failedUpdatesSet = preferences.getStringSet(CodePushPreferences.FAILED_UPDATES_KEY, null);
-        if (failedUpdatesSet == null) {
-            failedUpdatesSet = new HashSet<String>();
+        failedUpdates.recordFailure(hashCode, System.currentTimeMillis());
+        stateStore.edit().putString(CodePushPreferences.FAILED_UPDATES_REGISTRY_KEY, failedUpdates.serialize()).commit();
+    }
+
+    /**
+     * Records a reverted update in a single durable write: its hash is marked as failed and the pending confirmation is cleared.
+     * A failure already recorded at the same time, by a revert replayed after a crash, is not counted again.
+     * @param hashCode the hash of the reverted update, or null if it is not known
+     */
+    @Override
+    public void saveRevertedUpdate(String hashCode, long failureTime) {
+        CodePushStateStore.Transaction transaction = stateStore.edit().remove(CodePushPreferences.INSTALL_NEEDS_CONFIRMATION_KEY);
+        FailedUpdateRegistry.Entry recordedFailure = failedUpdates.get(hashCode, failureTime);
+        if (hashCode != null && (recordedFailure == null || recordedFailure.lastFailureTime != failureTime)) {
+            failedUpdates.recordFailure(hashCode, failureTime);
+            transaction.putString(CodePushPreferences.FAILED_UPDATES_REGISTRY_KEY, failedUpdates.serialize());
         }
-
-        failedUpdatesSet.add(hashCode);
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putStringSet(CodePushPreferences.FAILED_UPDATES_KEY, failedUpdatesSet);
-        editor.commit();
+        transaction.commit();
+        stateStore.flush();
     }
 
+    /**
+     * Checks the in-memory failed update registry, without any disk access.
+     */
     public boolean isFailedUpdate(String hashCode) {
-        if (hashCode == null) {
-            return false;
-        }
+        return failedUpdates.get(hashCode, System.currentTimeMillis()) != null;
+    }
 
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.FAILED_UPDATES_PREFERENCE, Context.MODE_PRIVATE);
-        Set<String> failedUpdatesSet = preferences.getStringSet(CodePushPreferences.FAILED_UPDATES_KEY, null);
-        return (failedUpdatesSet != null && failedUpdatesSet.contains(hashCode));
+    /**
+     * Returns the failure information of the given update, or null if it is not a failed update.
+     */
+    public FailedUpdateRegistry.Entry getFailedUpdate(String hashCode) {
+        return failedUpdates.get(hashCode, System.currentTimeMillis());
     }
 
     public void clearFailedUpdates() {
-        this.clearPreferences(CodePushPreferences.FAILED_UPDATES_PREFERENCE);
+        failedUpdates.clear();
+        stateStore.edit().remove(CodePushPreferences.FAILED_UPDATES_REGISTRY_KEY).commit();
+    }
+
+    /**
+     * Reads the failed update registry, converting the unbounded hash set of previous versions on first use.
+     * The failure time of converted updates is not known, they are recorded as failed now.
+     */
+    private FailedUpdateRegistry loadFailedUpdates() {
+        FailedUpdateRegistry registry = FailedUpdateRegistry.deserialize(stateStore.getString(CodePushPreferences.FAILED_UPDATES_REGISTRY_KEY, null));
+        Set<String> legacyFailedUpdates = stateStore.getStringSet(CodePushPreferences.FAILED_UPDATES_KEY);
+        if (legacyFailedUpdates != null) {
+            long now = System.currentTimeMillis();
+            for (String hashCode : legacyFailedUpdates) {
+                registry.recordFailure(hashCode, now);
+            }
+            stateStore.edit()
+                    .putString(CodePushPreferences.FAILED_UPDATES_REGISTRY_KEY, registry.serialize())
+                    .remove(CodePushPreferences.FAILED_UPDATES_KEY)
+                    .commit();
+        }
+
+        return registry;
     }
 
+    @Override
     public void savePendingInstall(InstallOptions installOptions) {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.PENDING_INSTALL_PREFERENCE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putInt(CodePushPreferences.INSTALL_MODE_KEY, installOptions.installMode.getValue());
-        editor.putInt(CodePushPreferences.INSTALL_MIN_BACKGROUND_DURATION, installOptions.minimumBackgroundDuration);
-        editor.commit();
+        stateStore.edit()
+                .putInt(CodePushPreferences.INSTALL_MODE_KEY, installOptions.installMode.getValue())
+                .putInt(CodePushPreferences.INSTALL_MIN_BACKGROUND_DURATION, installOptions.minimumBackgroundDuration)
+                .commit();
     }
 
     public void clearPendingInstall() {
-        this.clearPreferences(CodePushPreferences.PENDING_INSTALL_PREFERENCE);
+        stateStore.edit()
+                .remove(CodePushPreferences.INSTALL_MODE_KEY)
+                .remove(CodePushPreferences.INSTALL_MIN_BACKGROUND_DURATION)
+                .commit();
     }
 
     public InstallOptions getPendingInstall() {
         InstallOptions pendingInstall = null;
 
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.PENDING_INSTALL_PREFERENCE, Context.MODE_PRIVATE);
-        int installMode = preferences.getInt(CodePushPreferences.INSTALL_MODE_KEY, -1);
-        int minimumBackgroundDuration = preferences.getInt(CodePushPreferences.INSTALL_MIN_BACKGROUND_DURATION, -1);
+        int installMode = stateStore.getInt(CodePushPreferences.INSTALL_MODE_KEY, -1);
+        int minimumBackgroundDuration = stateStore.getInt(CodePushPreferences.INSTALL_MIN_BACKGROUND_DURATION, -1);
 
         if (installMode != -1 && minimumBackgroundDuration != -1) {
             pendingInstall = new InstallOptions(InstallMode.fromValue(installMode), minimumBackgroundDuration);
@@ -101,57 +156,37 @@ public class CodePushPreferences {
         return pendingInstall;
     }
 
+    @Override
     public void markInstallNeedsConfirmation() {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.INSTALL_NEEDS_CONFIRMATION, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putBoolean(CodePushPreferences.INSTALL_NEEDS_CONFIRMATION_KEY, true);
-        editor.commit();
+        stateStore.edit().putBoolean(CodePushPreferences.INSTALL_NEEDS_CONFIRMATION_KEY, true).commit();
     }
 
     public void clearInstallNeedsConfirmation() {
-        this.clearPreferences(CodePushPreferences.INSTALL_NEEDS_CONFIRMATION);
+        stateStore.edit().remove(CodePushPreferences.INSTALL_NEEDS_CONFIRMATION_KEY).commit();
     }
 
     public boolean installNeedsConfirmation() {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.INSTALL_NEEDS_CONFIRMATION, Context.MODE_PRIVATE);
-        boolean notConfirmedInstall = preferences.getBoolean(CodePushPreferences.INSTALL_NEEDS_CONFIRMATION_KEY, false);
-        return notConfirmedInstall;
+        return stateStore.getBoolean(CodePushPreferences.INSTALL_NEEDS_CONFIRMATION_KEY, false);
     }
 
     public void clearBinaryFirstRunFlag() {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.FIRST_RUN_PREFERENCE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.remove(CodePushPreferences.FIRST_RUN_PREFERENCE_KEY);
-        editor.commit();
+        stateStore.edit().remove(CodePushPreferences.FIRST_RUN_PREFERENCE_KEY).commit();
     }
 
     public void saveBinaryFirstRunFlag() {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.FIRST_RUN_PREFERENCE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putBoolean(CodePushPreferences.FIRST_RUN_PREFERENCE_KEY, false);
-        editor.commit();
+        stateStore.edit().putBoolean(CodePushPreferences.FIRST_RUN_PREFERENCE_KEY, false).commit();
     }
 
     public boolean isBinaryFirstRun() {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.FIRST_RUN_PREFERENCE, Context.MODE_PRIVATE);
-        boolean isFirstRun = preferences.getBoolean(CodePushPreferences.FIRST_RUN_PREFERENCE_KEY, true);
-        return isFirstRun;
-    }
-
-    public void clearPreferences(String preferencesId) {
-        SharedPreferences preferences = context.getSharedPreferences(preferencesId, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.clear();
-        editor.commit();
+        return stateStore.getBoolean(CodePushPreferences.FIRST_RUN_PREFERENCE_KEY, true);
     }
 
     public void clearFailedReport() {
-        this.clearPreferences(CodePushPreferences.FAILED_STATUS_REPORT_PREFERENCE);
+        stateStore.edit().remove(CodePushPreferences.FAILED_STATUS_REPORT_PREFERENCE_KEY).commit();
     }
 
     public StatusReport getFailedReport() {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.FAILED_STATUS_REPORT_PREFERENCE, Context.MODE_PRIVATE);
-        String statusReportJson = preferences.getString(CodePushPreferences.FAILED_STATUS_REPORT_PREFERENCE_KEY, null);
+        String statusReportJson = stateStore.getString(CodePushPreferences.FAILED_STATUS_REPORT_PREFERENCE_KEY, null);
         try {
             return statusReportJson == null ? null : StatusReport.deserialize(statusReportJson);
         } catch (JSONException e) {
@@ -162,27 +197,21 @@ public class CodePushPreferences {
     }
 
     public void saveFailedReport(StatusReport statusReport) {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.FAILED_STATUS_REPORT_PREFERENCE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putString(CodePushPreferences.FAILED_STATUS_REPORT_PREFERENCE_KEY, statusReport.serialize());
-        editor.commit();
+        stateStore.edit().putString(CodePushPreferences.FAILED_STATUS_REPORT_PREFERENCE_KEY, statusReport.serialize()).commit();
     }
 
     public void saveLastVersion(String labelOrAppVersion, String deploymentKey) {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.LAST_VERSION_PREFERENCE, Context.MODE_PRIVATE);
-        SharedPreferences.Editor editor = preferences.edit();
-        editor.putString(CodePushPreferences.LAST_VERSION_LABEL_OR_APP_VERSION_KEY, labelOrAppVersion);
-        editor.putString(CodePushPreferences.LAST_VERSION_DEPLOYMENT_KEY_KEY, deploymentKey);
-        editor.commit();
+        stateStore.edit()
+                .putString(CodePushPreferences.LAST_VERSION_LABEL_OR_APP_VERSION_KEY, labelOrAppVersion)
+                .putString(CodePushPreferences.LAST_VERSION_DEPLOYMENT_KEY_KEY, deploymentKey)
+                .commit();
     }
 
     public String getLastVersionDeploymentKey() {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.LAST_VERSION_PREFERENCE, Context.MODE_PRIVATE);
-        return preferences.getString(CodePushPreferences.LAST_VERSION_DEPLOYMENT_KEY_KEY, null);
+        return stateStore.getString(CodePushPreferences.LAST_VERSION_DEPLOYMENT_KEY_KEY, null);
     }
 
     public String getLastVersionLabelOrAppVersion() {
-        SharedPreferences preferences = context.getSharedPreferences(CodePushPreferences.LAST_VERSION_PREFERENCE, Context.MODE_PRIVATE);
-        return preferences.getString(CodePushPreferences.LAST_VERSION_LABEL_OR_APP_VERSION_KEY, null);
+        return stateStore.getString(CodePushPreferences.LAST_VERSION_LABEL_OR_APP_VERSION_KEY, null);
     }
 }
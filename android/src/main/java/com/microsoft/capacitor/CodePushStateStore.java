@@ -0,0 +1,290 @@
+package com.microsoft.capacitor;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process-wide store of the CodePush state, kept as an in-memory snapshot backed by a single JSON file.
+ * Reads never touch the disk. The changes of a transaction are applied to the snapshot at once and written
+ * in the background, on the I/O pool of the {@link CodePushExecutor} the store is attached to, so several
+ * transactions committed in a row end up in a single write; {@link #flush()} blocks until every committed change
+ * is durable. Without an executor, or once it is shut down, the changes are written by the committing thread.
+ */
+public class CodePushStateStore {
+    public static final String CODEPUSH_STATE_PATH = "/codepush/state.json";
+
+    private static final int STATE_VERSION = 1;
+    private static final String VERSION_KEY = "version";
+    private static final String VALUES_KEY = "values";
+
+    private static CodePushStateStore instance;
+
+    private final File stateFile;
+    private final Map<String, Object> values;
+    private boolean migrated;
+    private final Object writeLock = new Object();
+    private CodePushExecutor executor;
+    private long version;
+    private long persistedVersion;
+    private boolean persistScheduled;
+
+    /**
+     * A set of changes applied to the state at once.
+     */
+    public class Transaction {
+        /* a null value removes the key */
+        private final Map<String, Object> changes = new HashMap<String, Object>();
+
+        private Transaction() {
+        }
+
+        public Transaction putString(String key, String value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Transaction putInt(String key, int value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Transaction putBoolean(String key, boolean value) {
+            changes.put(key, value);
+            return this;
+        }
+
+        public Transaction putStringSet(String key, Set<String> value) {
+            changes.put(key, value != null ? new HashSet<String>(value) : null);
+            return this;
+        }
+
+        public Transaction remove(String key) {
+            changes.put(key, null);
+            return this;
+        }
+
+        /**
+         * Applies the changes to the in-memory state and schedules them to be written to disk.
+         */
+        public void commit() {
+            apply(changes);
+        }
+    }
+
+    private CodePushStateStore(File stateFile, Map<String, Object> values, boolean loadedFromDisk) {
+        this.stateFile = stateFile;
+        this.values = values;
+        this.migrated = loadedFromDisk;
+    }
+
+    public static synchronized CodePushStateStore getInstance(Context context) {
+        if (instance == null) {
+            File stateFile = new File(context.getFilesDir() + CODEPUSH_STATE_PATH);
+            Map<String, Object> values = new HashMap<String, Object>();
+            boolean loadedFromDisk = false;
+            if (stateFile.exists()) {
+                try {
+                    values = readValues(new JSONObject(Utilities.readFileContents(stateFile)));
+                    loadedFromDisk = true;
+                } catch (Exception e) {
+                    /* an unreadable state is treated like a missing one, the legacy preferences are migrated again if present */
+                    Utilities.logException(e);
+                }
+            }
+            instance = new CodePushStateStore(stateFile, values, loadedFromDisk);
+        }
+
+        return instance;
+    }
+
+    /**
+     * Imports the values of the given SharedPreferences files, unless the state was already stored on disk,
+     * then deletes the preference files once the imported state is durable.
+     */
+    public void migrateSharedPreferences(Context context, String[] preferencesNames) {
+        synchronized (this) {
+            if (migrated) {
+                return;
+            }
+            migrated = true;
+        }
+
+        Map<String, Object> legacyValues = new HashMap<String, Object>();
+        for (String preferencesName : preferencesNames) {
+            SharedPreferences preferences = context.getSharedPreferences(preferencesName, Context.MODE_PRIVATE);
+            for (Map.Entry<String, ?> entry : preferences.getAll().entrySet()) {
+                Object value = entry.getValue();
+                legacyValues.put(entry.getKey(), value instanceof Set ? new HashSet<Object>((Set<?>) value) : value);
+            }
+        }
+        apply(legacyValues);
+
+        if (flush()) {
+            for (String preferencesName : preferencesNames) {
+                context.deleteSharedPreferences(preferencesName);
+            }
+        }
+    }
+
+    /**
+     * Sets the executor the committed changes are written by. The store outlives the plugin instances, each one
+     * attaches its own executor when it loads.
+     */
+    public synchronized void attachExecutor(CodePushExecutor executor) {
+        this.executor = executor;
+    }
+
+    public Transaction edit() {
+        return new Transaction();
+    }
+
+    public synchronized String getString(String key, String defaultValue) {
+        Object value = values.get(key);
+        return value instanceof String ? (String) value : defaultValue;
+    }
+
+    public synchronized int getInt(String key, int defaultValue) {
+        Object value = values.get(key);
+        return value instanceof Number ? ((Number) value).intValue() : defaultValue;
+    }
+
+    public synchronized boolean getBoolean(String key, boolean defaultValue) {
+        Object value = values.get(key);
+        return value instanceof Boolean ? (Boolean) value : defaultValue;
+    }
+
+    /**
+     * Returns a copy of the set stored under the given key, or null if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized Set<String> getStringSet(String key) {
+        Object value = values.get(key);
+        return value instanceof Set ? new HashSet<String>((Set<String>) value) : null;
+    }
+
+    /**
+     * Writes the committed changes that are not on disk yet, and waits for the write to complete.
+     * @return false if the state could not be written
+     */
+    public boolean flush() {
+        try {
+            persist();
+            return true;
+        } catch (IOException e) {
+            Utilities.logException(e);
+            return false;
+        }
+    }
+
+    private void apply(Map<String, Object> changes) {
+        CodePushExecutor persistExecutor;
+        synchronized (this) {
+            for (Map.Entry<String, Object> change : changes.entrySet()) {
+                if (change.getValue() == null) {
+                    values.remove(change.getKey());
+                } else {
+                    values.put(change.getKey(), change.getValue());
+                }
+            }
+            version++;
+
+            if (persistScheduled) {
+                return;
+            }
+            persistScheduled = true;
+            persistExecutor = executor;
+        }
+
+        /* submitted outside of the lock, a cancelled write runs right away and needs it */
+        if (persistExecutor == null) {
+            flush();
+            return;
+        }
+        persistExecutor.executeIo(CodePushExecutor.Priority.HIGH, "persistState", new CodePushExecutor.Task() {
+            @Override
+            public void run() {
+                flush();
+            }
+
+            @Override
+            public void onCancelled() {
+                /* the executor shut down, the changes are still written */
+                flush();
+            }
+        });
+    }
+
+    private void persist() throws IOException {
+        synchronized (writeLock) {
+            String contents;
+            long snapshotVersion;
+            synchronized (this) {
+                persistScheduled = false;
+                if (persistedVersion == version && stateFile.exists()) {
+                    return;
+                }
+                contents = writeValues(values).toString();
+                snapshotVersion = version;
+            }
+
+            Utilities.writeFileAtomically(stateFile, contents);
+            synchronized (this) {
+                persistedVersion = snapshotVersion;
+            }
+        }
+    }
+
+    private static JSONObject writeValues(Map<String, Object> values) throws IOException {
+        try {
+            JSONObject jsonValues = new JSONObject();
+            for (Map.Entry<String, Object> entry : values.entrySet()) {
+                Object value = entry.getValue();
+                jsonValues.put(entry.getKey(), value instanceof Set ? new JSONArray((Set<?>) value) : value);
+            }
+
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(VERSION_KEY, STATE_VERSION);
+            jsonObject.put(VALUES_KEY, jsonValues);
+            return jsonObject;
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static Map<String, Object> readValues(JSONObject jsonObject) throws JSONException {
+        if (jsonObject.getInt(VERSION_KEY) != STATE_VERSION) {
+            throw new JSONException("Unsupported state version " + jsonObject.getInt(VERSION_KEY));
+        }
+
+        Map<String, Object> values = new HashMap<String, Object>();
+        JSONObject jsonValues = jsonObject.getJSONObject(VALUES_KEY);
+        Iterator<String> keys = jsonValues.keys();
+        while (keys.hasNext()) {
+            String key = keys.next();
+            Object value = jsonValues.get(key);
+            if (value instanceof JSONArray) {
+                JSONArray jsonArray = (JSONArray) value;
+                Set<String> set = new HashSet<String>();
+                for (int i = 0; i < jsonArray.length(); i++) {
+                    set.add(jsonArray.getString(i));
+                }
+                value = set;
+            }
+            values.put(key, value);
+        }
+
+        return values;
+    }
+}
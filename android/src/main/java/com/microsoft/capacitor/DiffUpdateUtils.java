@@ -0,0 +1,186 @@
+package com.microsoft.capacitor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Utilities class used to build the package of a diff update from the current package and the diff archive contents.
+ */
+public class DiffUpdateUtils {
+    public static final String DIFF_MANIFEST_FILENAME = "hotcodepush.json";
+
+    private static final String DELETED_FILES_KEY = "deletedFiles";
+    private static final String PATCHED_FILES_KEY = "patchedFiles";
+    private static final String PATCHED_FILE_PATH_KEY = "path";
+    private static final String PATCHED_FILE_PATCH_KEY = "patch";
+    private static final String PATCHED_FILE_HASH_KEY = "hash";
+    private static final String PATCH_OUTPUT_SUFFIX = ".codepushpatched";
+
+    /* entries of the current package that must not be carried over to the new package */
+    private static final Set<String> ignoredFiles = new HashSet<String>(Arrays.asList(
+            ".codepushrelease",
+            ".DS_Store",
+            "__MACOSX"
+    ));
+
+    /**
+     * Builds the new package directory in place: the files of the current package are hard linked into it,
+     * the contents of the diff are linked over them, the binary patches listed in the diff manifest are applied
+     * and the files listed in the diff manifest are deleted. Neither the current package nor the diff directory are modified.
+     * @param currentPackageDir the directory of the current package, or null if the application runs the binary version
+     * @param binaryAssets used to copy the binary version contents if there is no current package
+     * @param diffDirectory the directory the diff archive was extracted to
+     * @param newPackageDir the directory of the new package, any existing contents are replaced
+     */
+    public static void applyDiffUpdate(File currentPackageDir, AssetSource binaryAssets, File diffDirectory, File newPackageDir) throws IOException, ClassNotFoundException, JSONException, NoSuchAlgorithmException {
+        if (newPackageDir.exists()) {
+            Utilities.deleteEntryRecursively(newPackageDir);
+        }
+
+        boolean succeeded = false;
+        try {
+            if (currentPackageDir != null && ArchivePackage.isArchivePackage(currentPackageDir)) {
+                /* the current package is served from its archive, so its files only exist inside it */
+                ZipExtractor.extract(ArchivePackage.getArchiveFile(currentPackageDir), newPackageDir, null);
+            } else if (currentPackageDir != null && currentPackageDir.isDirectory()) {
+                linkDirectoryEntries(currentPackageDir, newPackageDir);
+            } else {
+                copyBinaryContents(binaryAssets, newPackageDir);
+            }
+
+            linkDirectoryEntries(diffDirectory, newPackageDir);
+
+            File diffManifestFile = new File(diffDirectory, DIFF_MANIFEST_FILENAME);
+            if (diffManifestFile.exists()) {
+                JSONObject diffManifest = new JSONObject(Utilities.readFileContents(diffManifestFile));
+                JSONArray patchedFiles = diffManifest.optJSONArray(PATCHED_FILES_KEY);
+                if (patchedFiles != null) {
+                    applyPatches(patchedFiles, diffDirectory, newPackageDir);
+                }
+
+                JSONArray deletedFiles = diffManifest.optJSONArray(DELETED_FILES_KEY);
+                if (deletedFiles != null) {
+                    for (int i = 0; i < deletedFiles.length(); i++) {
+                        File deletedFile = resolveManifestPath(newPackageDir, deletedFiles.getString(i));
+                        if (deletedFile.exists()) {
+                            Utilities.deleteEntryRecursively(deletedFile);
+                        }
+                    }
+                }
+            }
+            succeeded = true;
+        } finally {
+            if (!succeeded) {
+                Utilities.deleteEntryRecursively(newPackageDir);
+            }
+        }
+    }
+
+    /**
+     * Returns the file a path of the diff manifest names under the given directory. The manifest comes with the
+     * downloaded diff and is read before the package hash is checked, so a path resolving outside the directory,
+     * or to the directory itself, is rejected like an invalid zip entry is.
+     */
+    private static File resolveManifestPath(File directory, String path) throws IOException {
+        File file = new File(directory, path);
+        if (!file.getCanonicalPath().startsWith(directory.getCanonicalPath() + File.separator)) {
+            throw new IOException("Invalid path in the diff manifest: " + path);
+        }
+
+        return file;
+    }
+
+    /**
+     * Replaces the files of the new package listed in the diff manifest with the result of their binary patch.
+     * The patched files are written next to the originals and renamed over them once their hash is verified,
+     * so the hard links to the current package are replaced rather than written through.
+     */
+    private static void applyPatches(JSONArray patchedFiles, File diffDirectory, File newPackageDir) throws IOException, JSONException, NoSuchAlgorithmException {
+        for (int i = 0; i < patchedFiles.length(); i++) {
+            JSONObject patchedFile = patchedFiles.getJSONObject(i);
+            String path = patchedFile.getString(PATCHED_FILE_PATH_KEY);
+            String patchPath = patchedFile.getString(PATCHED_FILE_PATCH_KEY);
+            File oldFile = resolveManifestPath(newPackageDir, path);
+            if (!oldFile.isFile()) {
+                throw new FileNotFoundException("The file to patch does not exist: " + path);
+            }
+
+            if (patchedFile.isNull(PATCHED_FILE_HASH_KEY)) {
+                throw new IOException("The diff manifest has no hash for the patched file: " + path);
+            }
+
+            File patchedOutput = resolveManifestPath(newPackageDir, path + PATCH_OUTPUT_SUFFIX);
+            File patch = resolveManifestPath(diffDirectory, patchPath);
+            BinaryPatcher.applyPatch(oldFile, patch, patchedOutput, patchedFile.getString(PATCHED_FILE_HASH_KEY));
+            if (!patchedOutput.renameTo(oldFile)) {
+                patchedOutput.delete();
+                throw new IOException("Failed to replace the patched file: " + path);
+            }
+
+            /* the patch itself was linked into the new package along with the rest of the diff */
+            File linkedPatch = resolveManifestPath(newPackageDir, patchPath);
+            if (linkedPatch.exists()) {
+                linkedPatch.delete();
+            }
+        }
+    }
+
+    /**
+     * Recreates the source directory tree under the target directory, hard linking every file.
+     * Files already present in the target are replaced by a new link, their previous data is left untouched.
+     */
+    private static void linkDirectoryEntries(File sourceDirectory, File targetDirectory) throws IOException {
+        if (!targetDirectory.isDirectory() && !targetDirectory.mkdirs()) {
+            throw new FileNotFoundException("Failed to ensure directory: " + targetDirectory.getAbsolutePath());
+        }
+
+        String[] fileList = sourceDirectory.list();
+        if (fileList == null) {
+            return;
+        }
+
+        for (String pathInFolder : fileList) {
+            if (ignoredFiles.contains(pathInFolder)) {
+                continue;
+            }
+            File source = new File(sourceDirectory, pathInFolder);
+            File target = new File(targetDirectory, pathInFolder);
+            if (source.isDirectory()) {
+                linkDirectoryEntries(source, target);
+            } else {
+                if (target.exists()) {
+                    Utilities.deleteEntryRecursively(target);
+                }
+                Utilities.linkOrCopyFile(source, target);
+            }
+        }
+    }
+
+    private static void copyBinaryContents(AssetSource binaryAssets, File newPackageDir) throws IOException, ClassNotFoundException {
+        for (String assetPath : Utilities.getAssetsList(binaryAssets, "public", ignoredFiles)) {
+            File target = new File(newPackageDir, assetPath);
+            File parent = target.getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs()) {
+                throw new FileNotFoundException("Failed to ensure directory: " + parent.getAbsolutePath());
+            }
+            InputStream inputStream;
+            try {
+                inputStream = binaryAssets.open(assetPath);
+            } catch (FileNotFoundException e) {
+                // ignore: AAPT ignore some file which we can't, it's OK
+                continue;
+            }
+            Utilities.copyStreamToFile(inputStream, target);
+        }
+    }
+}
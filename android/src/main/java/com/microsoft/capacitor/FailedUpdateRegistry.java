@@ -0,0 +1,152 @@
+package com.microsoft.capacitor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded registry of the updates that failed to install, keyed by package hash.
+ * Entries are kept in the order of their last failure; the least recently failed ones are evicted once the
+ * capacity is exceeded, and entries whose last failure is older than the maximum age are forgotten.
+ */
+public class FailedUpdateRegistry {
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_MAX_AGE_MS = 90L * 24 * 60 * 60 * 1000;
+
+    private static final String HASH_KEY = "hash";
+    private static final String FIRST_FAILURE_TIME_KEY = "firstFailureTime";
+    private static final String LAST_FAILURE_TIME_KEY = "lastFailureTime";
+    private static final String FAILURE_COUNT_KEY = "failureCount";
+
+    private static int capacity = DEFAULT_CAPACITY;
+    private static long maxAgeMs = DEFAULT_MAX_AGE_MS;
+
+    /* access order is not used, a failure is moved to the end explicitly */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+    public static class Entry {
+        public final long firstFailureTime;
+        public final long lastFailureTime;
+        public final int failureCount;
+
+        Entry(long firstFailureTime, long lastFailureTime, int failureCount) {
+            this.firstFailureTime = firstFailureTime;
+            this.lastFailureTime = lastFailureTime;
+            this.failureCount = failureCount;
+        }
+    }
+
+    /**
+     * Sets the maximum number of failed updates remembered.
+     */
+    public static synchronized void setCapacity(int newCapacity) {
+        capacity = Math.max(1, newCapacity);
+    }
+
+    /**
+     * Sets how long a failed update is remembered after its last failure, a negative value keeps them forever.
+     */
+    public static synchronized void setMaxAge(long newMaxAgeMs) {
+        maxAgeMs = newMaxAgeMs;
+    }
+
+    /**
+     * Records a failure of the given update, making it the most recently failed one.
+     */
+    public synchronized void recordFailure(String packageHash, long now) {
+        Entry entry = entries.remove(packageHash);
+        entries.put(packageHash, entry == null || isExpired(entry, now)
+                ? new Entry(now, now, 1)
+                : new Entry(entry.firstFailureTime, now, entry.failureCount + 1));
+        evict(now);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the failure information of the given update, or null if it did not fail or was forgotten.
+     */
+    public synchronized Entry get(String packageHash, long now) {
+        Entry entry = packageHash != null ? entries.get(packageHash) : null;
+        return entry != null && !isExpired(entry, now) ? entry : null;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public synchronized String serialize() {
+        JSONArray jsonEntries = new JSONArray();
+        try {
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                JSONObject jsonEntry = new JSONObject();
+                jsonEntry.put(HASH_KEY, entry.getKey());
+                jsonEntry.put(FIRST_FAILURE_TIME_KEY, entry.getValue().firstFailureTime);
+                jsonEntry.put(LAST_FAILURE_TIME_KEY, entry.getValue().lastFailureTime);
+                jsonEntry.put(FAILURE_COUNT_KEY, entry.getValue().failureCount);
+                jsonEntries.put(jsonEntry);
+            }
+        } catch (JSONException e) {
+            /* only thrown for non finite numbers */
+            throw new IllegalStateException(e);
+        }
+
+        return jsonEntries.toString();
+    }
+
+    /**
+     * Reads a registry written by {@link #serialize()}. Unreadable entries are skipped.
+     */
+    public static FailedUpdateRegistry deserialize(String json) {
+        FailedUpdateRegistry registry = new FailedUpdateRegistry();
+        if (json == null) {
+            return registry;
+        }
+
+        try {
+            JSONArray jsonEntries = new JSONArray(json);
+            for (int i = 0; i < jsonEntries.length(); i++) {
+                JSONObject jsonEntry = jsonEntries.optJSONObject(i);
+                if (jsonEntry != null && jsonEntry.has(HASH_KEY)) {
+                    registry.entries.put(jsonEntry.getString(HASH_KEY), new Entry(
+                            jsonEntry.optLong(FIRST_FAILURE_TIME_KEY),
+                            jsonEntry.optLong(LAST_FAILURE_TIME_KEY),
+                            jsonEntry.optInt(FAILURE_COUNT_KEY, 1)));
+                }
+            }
+        } catch (JSONException e) {
+            Utilities.logException(e);
+        }
+
+        return registry;
+    }
+
+    private void evict(long now) {
+        Iterator<Entry> iterator = entries.values().iterator();
+        int excess = entries.size() - getCapacity();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (excess > 0 || isExpired(entry, now)) {
+                iterator.remove();
+                excess--;
+            } else {
+                /* entries are ordered by last failure, the remaining ones are more recent */
+                break;
+            }
+        }
+    }
+
+    private static synchronized int getCapacity() {
+        return capacity;
+    }
+
+    private static synchronized boolean isExpired(Entry entry, long now) {
+        return maxAgeMs >= 0 && now - entry.lastFailureTime > maxAgeMs;
+    }
+}
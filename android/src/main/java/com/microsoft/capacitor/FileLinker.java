@@ -0,0 +1,38 @@
+package com.microsoft.capacitor;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Hard link operations, which java.io.File does not offer, see {@link Utilities#setFileLinker(FileLinker)}.
+ * Android goes through android.system.Os, a plain JVM through java.nio.file.
+ */
+public interface FileLinker {
+
+    /**
+     * Thrown when the file system can not link the files at all, e.g. across file systems or on a file system
+     * without hard links, as opposed to a failure a copy would run into as well.
+     */
+    class LinkNotSupportedException extends IOException {
+        public LinkNotSupportedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    /**
+     * Creates the target as a hard link to the source file.
+     * @throws LinkNotSupportedException if the file system can not link the files
+     * @throws IOException if the link can not be created for another reason
+     */
+    void link(File source, File target) throws IOException;
+
+    /**
+     * Returns true if both paths are links to the same file.
+     */
+    boolean isSameFile(File first, File second) throws IOException;
+
+    /**
+     * Returns the number of hard links to the file.
+     */
+    long getLinkCount(File file) throws IOException;
+}
@@ -0,0 +1,13 @@
+package com.microsoft.capacitor;
+
+/**
+ * Destination of the messages logged by the plugin, see {@link Utilities#setLogWriter(LogWriter)}.
+ * Keeps the file and hashing code free of android.util.Log, so it also runs on a plain JVM.
+ */
+public interface LogWriter {
+
+    /**
+     * @param throwable the error being reported, or null
+     */
+    void log(String message, Throwable throwable);
+}
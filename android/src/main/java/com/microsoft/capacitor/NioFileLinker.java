@@ -0,0 +1,45 @@
+package com.microsoft.capacitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.util.Locale;
+
+/**
+ * The {@link FileLinker} used on a plain JVM. java.nio.file is only available from Android 8, so the plugin
+ * replaces it with the android.system.Os implementation of {@link AndroidUtilities} when it loads.
+ */
+class NioFileLinker implements FileLinker {
+
+    @Override
+    public void link(File source, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (UnsupportedOperationException e) {
+            throw new LinkNotSupportedException("The file system does not support hard links.", e);
+        } catch (FileSystemException e) {
+            /* java.nio.file only reports EXDEV and EPERM through the reason of a plain FileSystemException */
+            String reason = e.getReason() != null ? e.getReason().toLowerCase(Locale.ROOT) : "";
+            if (e.getClass() == FileSystemException.class
+                    && (reason.contains("cross-device") || reason.contains("not permitted") || reason.contains("not supported"))) {
+                throw new LinkNotSupportedException("Failed to link " + target.getAbsolutePath() + " to " + source.getAbsolutePath(), e);
+            }
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isSameFile(File first, File second) throws IOException {
+        return Files.isSameFile(first.toPath(), second.toPath());
+    }
+
+    @Override
+    public long getLinkCount(File file) throws IOException {
+        try {
+            return ((Number) Files.getAttribute(file.toPath(), "unix:nlink")).longValue();
+        } catch (UnsupportedOperationException e) {
+            throw new IOException("The file system does not report link counts.", e);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package com.microsoft.capacitor;
+
+import java.io.IOException;
+
+/**
+ * Handle on a long-running file operation, such as an extraction or a package hash, shared by the threads doing
+ * the work. It counts the bytes and entries processed, reports them at most once per reporting interval, and carries
+ * cancellation requests: the workers check it after every buffer they process and stop with an
+ * {@link OperationCancelledException} once the operation is cancelled.
+ */
+public class OperationHandle {
+
+    /**
+     * Receives the progress of the operation.
+     */
+    public interface Listener {
+        /**
+         * @param bytesDone the number of bytes processed so far
+         * @param totalBytes the total number of bytes to process, or -1 if unknown
+         * @param entriesDone the number of files processed so far
+         * @param totalEntries the total number of files to process, or -1 if unknown
+         */
+        void onProgress(long bytesDone, long totalBytes, int entriesDone, int totalEntries);
+    }
+
+    public static class OperationCancelledException extends IOException {
+        public OperationCancelledException() {
+            super("The operation was cancelled.");
+        }
+    }
+
+    private final Listener listener;
+    private final long reportingIntervalMs;
+    private volatile boolean cancelled;
+    private Runnable cancelAction;
+    private long bytesDone;
+    private long totalBytes = -1;
+    private int entriesDone;
+    private int totalEntries = -1;
+    private long lastReportTimeMs;
+
+    /**
+     * @param listener receives the progress, or null if the progress is not reported
+     */
+    public OperationHandle(Listener listener, long reportingIntervalMs) {
+        this.listener = listener;
+        this.reportingIntervalMs = reportingIntervalMs;
+    }
+
+    /**
+     * Requests the operation to stop. The workers notice it after the buffer they are processing, the cancel
+     * action, if any, is run to unblock a worker waiting for more data.
+     */
+    public void cancel() {
+        Runnable action;
+        synchronized (this) {
+            cancelled = true;
+            action = cancelAction;
+            cancelAction = null;
+        }
+        if (action != null) {
+            action.run();
+        }
+    }
+
+    /**
+     * Sets an action run once when the operation is cancelled, e.g. closing the connection a worker is blocked on.
+     * It runs right away if the operation is already cancelled.
+     */
+    public void setCancelAction(Runnable action) {
+        synchronized (this) {
+            if (!cancelled) {
+                cancelAction = action;
+                return;
+            }
+        }
+        action.run();
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void checkCancelled() throws OperationCancelledException {
+        if (cancelled) {
+            throw new OperationCancelledException();
+        }
+    }
+
+    public synchronized void setTotals(long totalBytes, int totalEntries) {
+        this.totalBytes = totalBytes;
+        this.totalEntries = totalEntries;
+    }
+
+    /**
+     * Records processed bytes, then stops the worker if the operation was cancelled.
+     */
+    public void addBytes(long count) throws OperationCancelledException {
+        checkCancelled();
+        synchronized (this) {
+            bytesDone += count;
+            reportProgressIfDue();
+        }
+    }
+
+    /**
+     * Records a processed file, then stops the worker if the operation was cancelled.
+     */
+    public void completeEntry() throws OperationCancelledException {
+        checkCancelled();
+        synchronized (this) {
+            entriesDone++;
+            reportProgressIfDue();
+        }
+    }
+
+    /**
+     * Reports the current progress regardless of the reporting interval, e.g. once the operation completed.
+     */
+    public synchronized void reportProgress() {
+        lastReportTimeMs = System.currentTimeMillis();
+        if (listener != null) {
+            listener.onProgress(bytesDone, totalBytes, entriesDone, totalEntries);
+        }
+    }
+
+    private void reportProgressIfDue() {
+        if (System.currentTimeMillis() - lastReportTimeMs >= reportingIntervalMs) {
+            reportProgress();
+        }
+    }
+}
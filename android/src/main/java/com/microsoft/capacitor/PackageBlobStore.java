@@ -0,0 +1,106 @@
+package com.microsoft.capacitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Content-addressable store shared by all the update packages, keyed by the SHA-256 of each file.
+ * The package directories keep their normal layout, but their files are hard links to the store blobs, so a file that
+ * is identical across packages is stored only once. The link count of a blob is its reference count: a blob
+ * linked only from the store is no longer used by any package and is deleted by {@link #collectGarbage()}.
+ */
+public class PackageBlobStore {
+
+    public static final String CODEPUSH_BLOBS_PATH = "/codepush/blobs";
+
+    private static final String LINK_SUFFIX = ".cplink";
+
+    private final File blobsDirectory;
+    private final FileLinker fileLinker = Utilities.getFileLinker();
+
+    public PackageBlobStore(File filesDir) {
+        this.blobsDirectory = new File(filesDir + CODEPUSH_BLOBS_PATH);
+    }
+
+    /**
+     * Replaces every file of the package directory with a link to the store blob holding the same contents,
+     * adding the files that are not in the store yet.
+     * @param knownHashes the hashes recorded when the package was verified, keyed by the path relative to the package
+     *                    directory, or null; only the files without a recorded hash are read again
+     */
+    public synchronized void internPackage(File packageDirectory, PackageHashIndex knownHashes) throws IOException, NoSuchAlgorithmException {
+        if (!blobsDirectory.isDirectory() && !blobsDirectory.mkdirs()) {
+            throw new IOException("Failed to ensure directory: " + blobsDirectory.getAbsolutePath());
+        }
+
+        internDirectory(packageDirectory, null, knownHashes);
+    }
+
+    private void internDirectory(File directory, String prefix, PackageHashIndex knownHashes) throws IOException, NoSuchAlgorithmException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        for (File file : files) {
+            String relativePath = new File(prefix, file.getName()).getPath();
+            if (file.isDirectory()) {
+                internDirectory(file, relativePath, knownHashes);
+            } else {
+                String hash = knownHashes != null ? knownHashes.getRecordedHash(relativePath, file.length(), file.lastModified()) : null;
+                internFile(file, hash != null ? hash : UpdateHashUtils.getHashForFile(file));
+            }
+        }
+    }
+
+    private void internFile(File file, String hash) {
+        File blob = new File(blobsDirectory, hash);
+        try {
+            if (!blob.exists()) {
+                /* the file becomes the blob */
+                fileLinker.link(file, blob);
+                return;
+            }
+
+            if (fileLinker.isSameFile(blob, file)) {
+                return;
+            }
+
+            /* link the existing blob next to the file, then swap it in atomically */
+            File link = new File(file.getPath() + LINK_SUFFIX);
+            link.delete();
+            fileLinker.link(blob, link);
+            if (!link.renameTo(file)) {
+                link.delete();
+            }
+        } catch (IOException e) {
+            /* the file simply keeps its own copy of the data */
+            Utilities.logException(e);
+        }
+    }
+
+    /**
+     * Deletes the blobs that are not linked from any package anymore.
+     * @return the number of deleted blobs
+     */
+    public synchronized int collectGarbage() {
+        int deletedBlobs = 0;
+        File[] blobs = blobsDirectory.listFiles();
+        if (blobs == null) {
+            return deletedBlobs;
+        }
+
+        for (File blob : blobs) {
+            try {
+                if (fileLinker.getLinkCount(blob) <= 1 && blob.delete()) {
+                    deletedBlobs++;
+                }
+            } catch (IOException e) {
+                Utilities.logException(e);
+            }
+        }
+
+        return deletedBlobs;
+    }
+}
@@ -0,0 +1,255 @@
+package com.microsoft.capacitor;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads an update package to a file, resuming an interrupted download with an HTTP Range request.
+ * The validators of the response are persisted next to the partial file, so a download can also be
+ * resumed after the process was killed, provided the server still serves the same content.
+ */
+public class PackageDownloader {
+
+    private static final String STATE_FILE_SUFFIX = ".download.json";
+    private static final String URL_KEY = "url";
+    private static final String ETAG_KEY = "etag";
+    private static final String LAST_MODIFIED_KEY = "lastModified";
+    private static final String TOTAL_BYTES_KEY = "totalBytes";
+
+    private static final int TIMEOUT_MS = 30 * 1000;
+    private static final int BUFFER_SIZE = 1024 * 64;
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long RETRY_DELAY_MS = 1000;
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /**
+     * Thrown when a download is stopped through {@link #cancel()}.
+     */
+    public static class DownloadCancelledException extends IOException {
+        public DownloadCancelledException() {
+            super("The download was cancelled.");
+        }
+    }
+
+    private final String url;
+    private final File file;
+    private final File stateFile;
+    private final long progressIntervalMs;
+    private volatile boolean cancelled;
+    private volatile HttpURLConnection connection;
+
+    public PackageDownloader(String url, File file, long progressIntervalMs) {
+        this.url = url;
+        this.file = file;
+        this.stateFile = new File(file.getPath() + STATE_FILE_SUFFIX);
+        this.progressIntervalMs = progressIntervalMs;
+    }
+
+    /**
+     * Stops the download. The partial file and its state are kept, so a later download of the same URL resumes it.
+     */
+    public void cancel() {
+        cancelled = true;
+        HttpURLConnection activeConnection = connection;
+        if (activeConnection != null) {
+            /* unblocks a pending read */
+            activeConnection.disconnect();
+        }
+    }
+
+    /**
+     * Downloads the file, retrying from the last received byte when the connection drops.
+     * @return the size of the downloaded file
+     * @throws DownloadCancelledException if the download was cancelled
+     */
+    public long download(ProgressInputStream.Listener listener) throws IOException {
+        File parent = file.getParentFile();
+        if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Failed to ensure directory: " + parent.getAbsolutePath());
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                long totalBytes = downloadOnce(listener);
+                stateFile.delete();
+                return totalBytes;
+            } catch (IOException e) {
+                if (cancelled) {
+                    throw new DownloadCancelledException();
+                }
+                if (attempt >= MAX_ATTEMPTS) {
+                    throw e;
+                }
+                Utilities.logMessage("Download interrupted, resuming. " + e.getMessage());
+            }
+
+            try {
+                Thread.sleep(RETRY_DELAY_MS * attempt);
+            } catch (InterruptedException e) {
+                throw new DownloadCancelledException();
+            }
+        }
+    }
+
+    private long downloadOnce(ProgressInputStream.Listener listener) throws IOException {
+        JSONObject state = readState();
+        long offset = state != null && file.exists() ? file.length() : 0;
+        if (offset == 0) {
+            file.delete();
+            state = null;
+        }
+
+        HttpURLConnection urlConnection = (HttpURLConnection) new URL(url).openConnection();
+        connection = urlConnection;
+        try {
+            if (cancelled) {
+                throw new DownloadCancelledException();
+            }
+
+            urlConnection.setConnectTimeout(TIMEOUT_MS);
+            urlConnection.setReadTimeout(TIMEOUT_MS);
+            urlConnection.setInstanceFollowRedirects(true);
+            /* ranges are byte offsets into the stored representation */
+            urlConnection.setRequestProperty("Accept-Encoding", "identity");
+            if (offset > 0) {
+                urlConnection.setRequestProperty("Range", "bytes=" + offset + "-");
+                /* the server answers with the whole file if it changed since the partial download */
+                String validator = state.optString(ETAG_KEY, null);
+                urlConnection.setRequestProperty("If-Range", validator != null ? validator : state.optString(LAST_MODIFIED_KEY));
+            }
+
+            int responseCode = urlConnection.getResponseCode();
+            long totalBytes;
+            boolean append;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL && offset > 0) {
+                long[] range = parseContentRange(urlConnection.getHeaderField("Content-Range"));
+                if (range == null || range[0] != offset) {
+                    /* an unexpected range, start over */
+                    file.delete();
+                    stateFile.delete();
+                    throw new IOException("Unexpected Content-Range: " + urlConnection.getHeaderField("Content-Range"));
+                }
+                totalBytes = range[1];
+                append = true;
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                totalBytes = urlConnection.getContentLengthLong();
+                offset = 0;
+                append = false;
+                writeState(urlConnection, totalBytes);
+            } else if (responseCode == HTTP_RANGE_NOT_SATISFIABLE && offset > 0 && state.optLong(TOTAL_BYTES_KEY, -1) == offset) {
+                /* the partial file is already complete */
+                listener.onProgress(offset, offset);
+                return offset;
+            } else {
+                if (responseCode == HTTP_RANGE_NOT_SATISFIABLE) {
+                    file.delete();
+                    stateFile.delete();
+                }
+                throw new IOException("Unexpected response code " + responseCode + ".");
+            }
+
+            ProgressInputStream inputStream = new ProgressInputStream(urlConnection.getInputStream(), offset, totalBytes, progressIntervalMs, listener);
+            FileOutputStream outputStream = new FileOutputStream(file, append);
+            try {
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    if (cancelled) {
+                        throw new DownloadCancelledException();
+                    }
+                    outputStream.write(buffer, 0, count);
+                }
+            } finally {
+                try {
+                    outputStream.close();
+                } finally {
+                    inputStream.close();
+                }
+            }
+
+            if (totalBytes >= 0 && file.length() != totalBytes) {
+                throw new IOException("The connection was closed after " + file.length() + " of " + totalBytes + " bytes.");
+            }
+
+            return file.length();
+        } finally {
+            connection = null;
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Returns the persisted state of a previous download of the same URL, or null if it can not be resumed.
+     */
+    private JSONObject readState() {
+        if (!stateFile.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject state = new JSONObject(Utilities.readFileContents(stateFile));
+            if (url.equals(state.optString(URL_KEY)) && (state.has(ETAG_KEY) || state.has(LAST_MODIFIED_KEY))) {
+                return state;
+            }
+        } catch (Exception e) {
+            Utilities.logException(e);
+        }
+
+        stateFile.delete();
+        return null;
+    }
+
+    private void writeState(HttpURLConnection urlConnection, long totalBytes) throws IOException {
+        String etag = urlConnection.getHeaderField("ETag");
+        String lastModified = urlConnection.getHeaderField("Last-Modified");
+        /* without a validator a resumed download could mix two versions of the file */
+        if ((etag == null && lastModified == null) || "none".equals(urlConnection.getHeaderField("Accept-Ranges"))) {
+            stateFile.delete();
+            return;
+        }
+
+        try {
+            JSONObject state = new JSONObject();
+            state.put(URL_KEY, url);
+            if (etag != null) {
+                state.put(ETAG_KEY, etag);
+            }
+            if (lastModified != null) {
+                state.put(LAST_MODIFIED_KEY, lastModified);
+            }
+            state.put(TOTAL_BYTES_KEY, totalBytes);
+            Utilities.writeFileAtomically(stateFile, state.toString());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Parses a "bytes first-last/total" header into the first byte offset and the total length, -1 if unknown.
+     */
+    private static long[] parseContentRange(String contentRange) {
+        if (contentRange == null || !contentRange.startsWith("bytes ")) {
+            return null;
+        }
+
+        try {
+            int dash = contentRange.indexOf('-');
+            int slash = contentRange.indexOf('/');
+            if (dash < 0 || slash < dash) {
+                return null;
+            }
+
+            long first = Long.parseLong(contentRange.substring(6, dash).trim());
+            String total = contentRange.substring(slash + 1).trim();
+            return new long[]{first, "*".equals(total) ? -1 : Long.parseLong(total)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
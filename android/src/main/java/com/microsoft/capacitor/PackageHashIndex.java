@@ -0,0 +1,181 @@
+package com.microsoft.capacitor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent index of the file hashes of an update package, keyed by the relative path of each file.
+ * A file is only re-hashed when its size or modification time differs from the indexed values.
+ */
+public class PackageHashIndex {
+
+    public static final String CODEPUSH_HASH_INDEX_PATH = "/codepush/hashIndex";
+
+    private static final int INDEX_VERSION = 1;
+    private static final String VERSION_KEY = "version";
+    private static final String TIMESTAMP_KEY = "timestamp";
+    private static final String ENTRIES_KEY = "entries";
+
+    /**
+     * Files modified this close to the time the index was written may be changed again without their
+     * modification time changing, so their indexed hash is not trusted.
+     */
+    static final long MODIFICATION_TIME_GRANULARITY_MS = 2000;
+
+    private final File indexFile;
+    private final long indexTimestamp;
+    private final Map<String, Entry> previousEntries;
+    private final Map<String, Entry> currentEntries = new ConcurrentHashMap<String, Entry>();
+
+    private static class Entry {
+        final long size;
+        final long lastModified;
+        final String hash;
+
+        Entry(long size, long lastModified, String hash) {
+            this.size = size;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+    }
+
+    private PackageHashIndex(File indexFile, long indexTimestamp, Map<String, Entry> previousEntries) {
+        this.indexFile = indexFile;
+        this.indexTimestamp = indexTimestamp;
+        this.previousEntries = previousEntries;
+    }
+
+    /**
+     * Loads the index stored for the given package folder, or returns an empty index if there is none.
+     * @param filesDir the application files directory
+     * @param path the package folder, relative to the files directory
+     */
+    public static PackageHashIndex load(File filesDir, String path) {
+        File indexFile = getIndexFile(filesDir, path);
+        Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+        long timestamp = 0;
+        if (indexFile.exists()) {
+            try {
+                JSONObject jsonObject = new JSONObject(Utilities.readFileContents(indexFile));
+                if (jsonObject.optInt(VERSION_KEY) == INDEX_VERSION) {
+                    timestamp = jsonObject.getLong(TIMESTAMP_KEY);
+                    JSONObject jsonEntries = jsonObject.getJSONObject(ENTRIES_KEY);
+                    Iterator<String> keys = jsonEntries.keys();
+                    while (keys.hasNext()) {
+                        String relativePath = keys.next();
+                        JSONArray jsonEntry = jsonEntries.getJSONArray(relativePath);
+                        entries.put(relativePath, new Entry(jsonEntry.getLong(0), jsonEntry.getLong(1), jsonEntry.getString(2)));
+                    }
+                }
+            } catch (Exception e) {
+                /* a corrupted index only means every file gets hashed again */
+                Utilities.logException(e);
+                entries.clear();
+            }
+        }
+
+        return new PackageHashIndex(indexFile, timestamp, entries);
+    }
+
+    /**
+     * Deletes the index stored for the given package folder, if any.
+     */
+    public static void delete(File filesDir, String path) {
+        File indexFile = getIndexFile(filesDir, path);
+        if (indexFile.exists()) {
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * Returns the indexed hash of a file, or null if the file changed since it was indexed.
+     */
+    public String getHash(String relativePath, long size, long lastModified) {
+        Entry entry = previousEntries.get(relativePath);
+        if (entry != null
+                && entry.size == size
+                && entry.lastModified == lastModified
+                && lastModified + MODIFICATION_TIME_GRANULARITY_MS < indexTimestamp) {
+            return entry.hash;
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the hash the last hashing pass recorded for a file, or null if its size or modification time changed since.
+     * Unlike {@link #getHash(String, long, long)} it trusts files modified right before the index was written, so it is
+     * only meant for files nothing writes to anymore, like those of a verified package.
+     */
+    public String getRecordedHash(String relativePath, long size, long lastModified) {
+        Entry entry = previousEntries.get(relativePath);
+        if (entry != null && entry.size == size && entry.lastModified == lastModified) {
+            return entry.hash;
+        }
+
+        return null;
+    }
+
+    /**
+     * Records the hash of a file visited during the current hashing pass. Only recorded files are kept when the index is saved.
+     */
+    public void putHash(String relativePath, long size, long lastModified, String hash) {
+        currentEntries.put(relativePath, new Entry(size, lastModified, hash));
+    }
+
+    public void save() throws IOException {
+        try {
+            JSONObject jsonEntries = new JSONObject();
+            for (Map.Entry<String, Entry> entry : currentEntries.entrySet()) {
+                JSONArray jsonEntry = new JSONArray();
+                jsonEntry.put(entry.getValue().size);
+                jsonEntry.put(entry.getValue().lastModified);
+                jsonEntry.put(entry.getValue().hash);
+                jsonEntries.put(entry.getKey(), jsonEntry);
+            }
+
+            JSONObject jsonObject = new JSONObject();
+            jsonObject.put(VERSION_KEY, INDEX_VERSION);
+            jsonObject.put(TIMESTAMP_KEY, System.currentTimeMillis());
+            jsonObject.put(ENTRIES_KEY, jsonEntries);
+            Utilities.writeFileAtomically(indexFile, jsonObject.toString());
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static File getIndexFile(File filesDir, String path) {
+        String indexName = path;
+        while (indexName.startsWith("/")) {
+            indexName = indexName.substring(1);
+        }
+        while (indexName.endsWith("/")) {
+            indexName = indexName.substring(0, indexName.length() - 1);
+        }
+
+        /* the path is hashed rather than flattened, flattening would give different folders the same index */
+        return new File(filesDir + CODEPUSH_HASH_INDEX_PATH, hashIndexName(indexName) + ".json");
+    }
+
+    private static String hashIndexName(String indexName) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            return UpdateHashUtils.formatHash(messageDigest.digest(indexName.getBytes("UTF-8")));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
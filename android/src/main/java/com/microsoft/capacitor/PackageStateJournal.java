@@ -0,0 +1,344 @@
+package com.microsoft.capacitor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Write-ahead journal of the transitions between packages: installing a new package and reverting a failed one.
+ * A transition is recorded before any change is made, and so is every step that could not simply be done again,
+ * so a transition interrupted by the end of the process is completed, or undone, by {@link #recover()}.
+ *
+ * An install is journaled from {@link #beginInstall(String)}, called before the package information files are
+ * swapped, to {@link #activateInstall(String, InstallOptions)}. Until it is activated, recovering an install puts
+ * the package information files back as they were; once activated, recovering it activates it again.
+ */
+public class PackageStateJournal {
+
+    public static final String CODEPUSH_JOURNAL_PATH = "/codepush/packageState.journal";
+
+    private static final String OPERATION_KEY = "operation";
+    private static final String PACKAGE_PATH_KEY = "localPath";
+    private static final String PACKAGE_HASH_KEY = "packageHash";
+    private static final String FAILURE_TIME_KEY = "failureTime";
+    private static final String CURRENT_PACKAGE_KEY = "currentPackage";
+    private static final String OLD_PACKAGE_KEY = "oldPackage";
+    private static final String INSTALL_MODE_KEY = "installMode";
+    private static final String MINIMUM_BACKGROUND_DURATION_KEY = "minimumBackgroundDuration";
+    private static final String COMPLETED_STEPS_KEY = "completedSteps";
+
+    private static final String REVERT_OPERATION = "revert";
+    private static final String INSTALL_OPERATION = "install";
+
+    /* the steps recorded in the journal, the other steps can simply be done again */
+    private static final String RECORD_FAILURE_STEP = "recordFailure";
+    private static final String ACTIVATE_STEP = "activate";
+
+    /**
+     * The package state kept outside of the package directories.
+     */
+    public interface PackageState {
+        /**
+         * Durably marks the update as failed and clears its pending confirmation. Recording the same failure time
+         * again for the same update must not count as another failure.
+         */
+        void saveRevertedUpdate(String packageHash, long failureTime);
+
+        void markInstallNeedsConfirmation();
+
+        void savePendingInstall(InstallOptions installOptions);
+
+        /**
+         * Blocks until all the state changes made so far are written to disk.
+         */
+        void flush();
+    }
+
+    /**
+     * Notified after every change made to the disk by a transition, lets the tests interrupt a transition between two steps.
+     */
+    interface StepListener {
+        void onStepCompleted(String step);
+    }
+
+    private final File filesDir;
+    private final File currentFile;
+    private final File oldFile;
+    private final File journalFile;
+    private final PackageState packageState;
+    private final PackageTrash packageTrash;
+    private StepListener stepListener;
+
+    public PackageStateJournal(File filesDir, PackageState packageState, PackageTrash packageTrash) {
+        this.filesDir = filesDir;
+        this.currentFile = new File(filesDir + CodePushPackageManager.CODEPUSH_CURRENT_PACKAGE_PATH);
+        this.oldFile = new File(filesDir + CodePushPackageManager.CODEPUSH_OLD_PACKAGE_PATH);
+        this.journalFile = new File(filesDir + CODEPUSH_JOURNAL_PATH);
+        this.packageState = packageState;
+        this.packageTrash = packageTrash;
+    }
+
+    void setStepListener(StepListener stepListener) {
+        this.stepListener = stepListener;
+    }
+
+    /**
+     * Reverts the failed current package to the previous one, and moves the failed package to the trash.
+     */
+    public void revert() {
+        CodePushPackageMetadata failedUpdateMetadata = CodePushPackageMetadata.getPackageMetadata(currentFile.getPath());
+        JSONObject journal = new JSONObject();
+        try {
+            journal.put(OPERATION_KEY, REVERT_OPERATION);
+            journal.put(PACKAGE_PATH_KEY, failedUpdateMetadata != null ? failedUpdateMetadata.localPath : null);
+            journal.put(PACKAGE_HASH_KEY, failedUpdateMetadata != null ? failedUpdateMetadata.packageHash : null);
+            journal.put(FAILURE_TIME_KEY, System.currentTimeMillis());
+            journal.put(COMPLETED_STEPS_KEY, new JSONArray());
+            writeJournal(journal);
+        } catch (Exception e) {
+            /* the revert itself is still possible, only its recovery after a crash is not */
+            Utilities.logException(e);
+        }
+        notifyStep("revertJournaled");
+
+        completeRevert(journal);
+    }
+
+    /**
+     * Records the package information files as they are before an install swaps them. Must be called before the
+     * new package information is written.
+     * @param localPath the package being installed
+     */
+    public void beginInstall(String localPath) throws IOException {
+        try {
+            JSONObject journal = new JSONObject();
+            journal.put(OPERATION_KEY, INSTALL_OPERATION);
+            journal.put(PACKAGE_PATH_KEY, localPath);
+            journal.put(CURRENT_PACKAGE_KEY, readFileOrNull(currentFile));
+            journal.put(OLD_PACKAGE_KEY, readFileOrNull(oldFile));
+            journal.put(COMPLETED_STEPS_KEY, new JSONArray());
+            writeJournal(journal);
+        } catch (JSONException e) {
+            throw new IOException(e);
+        }
+        notifyStep("installJournaled");
+    }
+
+    /**
+     * Makes the install of the package the current one: marks it as needing confirmation for an immediate install,
+     * or saves it as the pending install, and writes the state to disk before returning.
+     */
+    public void activateInstall(String localPath, InstallOptions installOptions) {
+        JSONObject journal = readJournal();
+        try {
+            if (journal == null || !isInstallOf(journal, localPath)) {
+                /* the install did not go through beginInstall, there is nothing to roll back to */
+                journal = new JSONObject();
+                journal.put(OPERATION_KEY, INSTALL_OPERATION);
+                journal.put(PACKAGE_PATH_KEY, localPath);
+                journal.put(COMPLETED_STEPS_KEY, new JSONArray());
+            }
+            journal.put(INSTALL_MODE_KEY, installOptions.installMode.getValue());
+            journal.put(MINIMUM_BACKGROUND_DURATION_KEY, installOptions.minimumBackgroundDuration);
+            /* from here on, recovering the install completes it instead of rolling it back */
+            completeStep(journal, ACTIVATE_STEP);
+        } catch (Exception e) {
+            Utilities.logException(e);
+        }
+        notifyStep("activationRecorded");
+
+        applyActivation(installOptions);
+        journalFile.delete();
+    }
+
+    /**
+     * Completes the package state transition that was interrupted by the end of the process, if any.
+     * Must be called before the package state is read.
+     */
+    public void recover() {
+        if (!journalFile.exists()) {
+            return;
+        }
+
+        JSONObject journal = readJournal();
+        if (journal == null) {
+            /* an unreadable journal is discarded, the transition is left as it is */
+            journalFile.delete();
+            return;
+        }
+
+        String operation = journal.optString(OPERATION_KEY);
+        if (REVERT_OPERATION.equals(operation)) {
+            completeRevert(journal);
+        } else if (INSTALL_OPERATION.equals(operation) && isStepCompleted(journal, ACTIVATE_STEP)) {
+            InstallMode installMode = InstallMode.fromValue(journal.optInt(INSTALL_MODE_KEY, -1));
+            if (installMode != null) {
+                applyActivation(new InstallOptions(installMode, journal.optInt(MINIMUM_BACKGROUND_DURATION_KEY)));
+            }
+            journalFile.delete();
+        } else if (INSTALL_OPERATION.equals(operation)) {
+            rollBackInstall(journal);
+        } else {
+            journalFile.delete();
+        }
+    }
+
+    private void completeRevert(JSONObject journal) {
+        String failedLocalPath = journal.optString(PACKAGE_PATH_KEY, null);
+        if (!isStepCompleted(journal, RECORD_FAILURE_STEP)) {
+            /* the failed hash and the cleared confirmation flag are committed together */
+            packageState.saveRevertedUpdate(journal.optString(PACKAGE_HASH_KEY, null), journal.optLong(FAILURE_TIME_KEY, System.currentTimeMillis()));
+            notifyStep("failureRecorded");
+            try {
+                completeStep(journal, RECORD_FAILURE_STEP);
+            } catch (Exception e) {
+                /* a replay records the same failure time again, which does not count as another failure */
+                Utilities.logException(e);
+            }
+            notifyStep("failureStepRecorded");
+        }
+
+        /* replace the current file with the old one, unless a previous attempt already did */
+        CodePushPackageMetadata currentPackageMetadata = CodePushPackageMetadata.getPackageMetadata(currentFile.getPath());
+        if (currentPackageMetadata != null && isSamePath(currentPackageMetadata.localPath, failedLocalPath)) {
+            if (oldFile.exists()) {
+                /* renaming over the current file replaces it atomically */
+                if (!oldFile.renameTo(currentFile)) {
+                    Utilities.logMessage("Failed to restore the previous package information.");
+                    return;
+                }
+            } else {
+                currentFile.delete();
+            }
+        }
+        notifyStep("packageRestored");
+
+        /* move the failed update package to the trash */
+        trashUnusedPackage(failedLocalPath);
+        notifyStep("packageTrashed");
+
+        journalFile.delete();
+    }
+
+    /**
+     * Puts the package information files back as they were before the install started, then moves the package
+     * that was being installed to the trash.
+     */
+    private void rollBackInstall(JSONObject journal) {
+        try {
+            restoreFile(currentFile, journal.optString(CURRENT_PACKAGE_KEY, null));
+            restoreFile(oldFile, journal.optString(OLD_PACKAGE_KEY, null));
+        } catch (IOException e) {
+            /* the journal is kept, the next start tries again */
+            Utilities.logException(e);
+            return;
+        }
+        notifyStep("installRolledBack");
+
+        trashUnusedPackage(journal.optString(PACKAGE_PATH_KEY, null));
+        notifyStep("packageTrashed");
+
+        journalFile.delete();
+    }
+
+    private void applyActivation(InstallOptions installOptions) {
+        if (InstallMode.IMMEDIATE.equals(installOptions.installMode)) {
+            packageState.markInstallNeedsConfirmation();
+        } else {
+            packageState.savePendingInstall(installOptions);
+        }
+        /* the rollback state has to be on disk before the new package gets a chance to crash the application */
+        packageState.flush();
+        notifyStep("activated");
+    }
+
+    /**
+     * Moves the given package to the trash, unless the current or the old package information still uses it.
+     */
+    private void trashUnusedPackage(String localPath) {
+        if (localPath == null) {
+            return;
+        }
+
+        CodePushPackageMetadata currentPackageMetadata = CodePushPackageMetadata.getPackageMetadata(currentFile.getPath());
+        CodePushPackageMetadata oldPackageMetadata = CodePushPackageMetadata.getPackageMetadata(oldFile.getPath());
+        if ((currentPackageMetadata == null || !isSamePath(currentPackageMetadata.localPath, localPath))
+                && (oldPackageMetadata == null || !isSamePath(oldPackageMetadata.localPath, localPath))) {
+            packageTrash.moveToTrash(new File(filesDir, localPath));
+            /* package hashes are computed over the public folder of the package, see CodePush.getPackageHash */
+            PackageHashIndex.delete(filesDir, localPath + "/public");
+        }
+    }
+
+    private static void restoreFile(File file, String contents) throws IOException {
+        if (contents != null) {
+            Utilities.writeFileAtomically(file, contents);
+        } else if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to delete " + file.getAbsolutePath());
+        }
+    }
+
+    private static String readFileOrNull(File file) throws IOException {
+        return file.exists() ? Utilities.readFileContents(file) : null;
+    }
+
+    private static boolean isInstallOf(JSONObject journal, String localPath) {
+        return INSTALL_OPERATION.equals(journal.optString(OPERATION_KEY)) && isSamePath(journal.optString(PACKAGE_PATH_KEY, null), localPath);
+    }
+
+    private static boolean isSamePath(String first, String second) {
+        return first == null ? second == null : first.equals(second);
+    }
+
+    private static boolean isStepCompleted(JSONObject journal, String step) {
+        JSONArray completedSteps = journal.optJSONArray(COMPLETED_STEPS_KEY);
+        if (completedSteps != null) {
+            for (int i = 0; i < completedSteps.length(); i++) {
+                if (step.equals(completedSteps.optString(i))) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Records a step that must not be done twice, so a recovery skips it.
+     */
+    private void completeStep(JSONObject journal, String step) throws IOException, JSONException {
+        JSONArray completedSteps = journal.optJSONArray(COMPLETED_STEPS_KEY);
+        if (completedSteps == null) {
+            completedSteps = new JSONArray();
+            journal.put(COMPLETED_STEPS_KEY, completedSteps);
+        }
+        completedSteps.put(step);
+        writeJournal(journal);
+    }
+
+    private void notifyStep(String step) {
+        if (stepListener != null) {
+            stepListener.onStepCompleted(step);
+        }
+    }
+
+    private void writeJournal(JSONObject journal) throws IOException {
+        Utilities.writeFileAtomically(journalFile, journal.toString());
+    }
+
+    private JSONObject readJournal() {
+        if (!journalFile.exists()) {
+            return null;
+        }
+
+        try {
+            return new JSONObject(Utilities.readFileContents(journalFile));
+        } catch (Exception e) {
+            Utilities.logException(e);
+            return null;
+        }
+    }
+}
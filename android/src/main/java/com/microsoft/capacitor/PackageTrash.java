@@ -0,0 +1,161 @@
+package com.microsoft.capacitor;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Directory holding the files that are no longer used, until they are deleted in the background.
+ * Moving a package into the trash is a single rename, so the caller does not wait for its files to be deleted.
+ * The trash lives on disk: what a process did not get to delete is deleted by the next one.
+ */
+public class PackageTrash {
+
+    public static final String CODEPUSH_TRASH_PATH = "/codepush/.trash";
+
+    /* the files are split in this many deletion tasks, at most */
+    private static final int DELETION_TASK_COUNT = 4;
+    /* only one process-wide reaper, whatever the number of trash instances */
+    private static final Object REAPING_LOCK = new Object();
+    private static final AtomicLong ENTRY_COUNTER = new AtomicLong();
+
+    private static ExecutorService deletionPool;
+
+    private final File trashDirectory;
+
+    public PackageTrash(File filesDir) {
+        this.trashDirectory = new File(filesDir + CODEPUSH_TRASH_PATH);
+    }
+
+    /**
+     * Sets the pool the files in the trash are deleted on, see {@link CodePushExecutor#getDeletionPool()}.
+     * The pool is owned by the caller. Without a pool, the files are deleted on the calling thread.
+     */
+    public static synchronized void setDeletionPool(ExecutorService pool) {
+        deletionPool = pool;
+    }
+
+    private static synchronized ExecutorService getDeletionPool() {
+        return deletionPool;
+    }
+
+    public File getTrashDirectory() {
+        return trashDirectory;
+    }
+
+    /**
+     * Moves the given file or directory into the trash. It is deleted right away if it can not be moved.
+     * @return false if there was nothing to move
+     */
+    public boolean moveToTrash(File entry) {
+        if (!entry.exists()) {
+            return false;
+        }
+
+        if (!trashDirectory.isDirectory() && !trashDirectory.mkdirs()) {
+            Utilities.logMessage("Failed to ensure directory: " + trashDirectory.getAbsolutePath());
+        }
+
+        File trashEntry = new File(trashDirectory, System.currentTimeMillis() + "-" + ENTRY_COUNTER.incrementAndGet() + "-" + entry.getName());
+        if (!entry.renameTo(trashEntry)) {
+            Utilities.deleteEntryRecursively(entry);
+        }
+
+        return true;
+    }
+
+    /**
+     * Deletes everything in the trash. The tree is walked iteratively and the files are deleted by several threads,
+     * the directories are deleted last, deepest first.
+     */
+    public void empty() {
+        synchronized (REAPING_LOCK) {
+            File[] entries = trashDirectory.listFiles();
+            if (entries == null || entries.length == 0) {
+                return;
+            }
+
+            final List<File> files = new ArrayList<File>();
+            List<File> directories = new ArrayList<File>();
+            Deque<File> pendingDirectories = new ArrayDeque<File>();
+            for (File entry : entries) {
+                if (entry.isDirectory()) {
+                    pendingDirectories.push(entry);
+                } else {
+                    files.add(entry);
+                }
+            }
+            while (!pendingDirectories.isEmpty()) {
+                File directory = pendingDirectories.pop();
+                directories.add(directory);
+                File[] children = directory.listFiles();
+                if (children == null) {
+                    continue;
+                }
+                for (File child : children) {
+                    if (child.isDirectory()) {
+                        pendingDirectories.push(child);
+                    } else {
+                        files.add(child);
+                    }
+                }
+            }
+
+            deleteFiles(files);
+
+            /* a directory is always listed after its parent */
+            for (int i = directories.size() - 1; i >= 0; i--) {
+                directories.get(i).delete();
+            }
+        }
+    }
+
+    private static void deleteFiles(final List<File> files) {
+        ExecutorService pool = getDeletionPool();
+        int taskCount = Math.min(DELETION_TASK_COUNT, files.size() / 64 + 1);
+        if (pool == null || taskCount <= 1) {
+            for (File file : files) {
+                file.delete();
+            }
+            return;
+        }
+
+        List<Future<?>> deletions = new ArrayList<Future<?>>(taskCount);
+        for (int task = 0; task < taskCount; task++) {
+            final int firstIndex = task;
+            final int stride = taskCount;
+            Runnable deletion = new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = firstIndex; i < files.size(); i += stride) {
+                        files.get(i).delete();
+                    }
+                }
+            };
+            try {
+                deletions.add(pool.submit(deletion));
+            } catch (RejectedExecutionException e) {
+                /* the pool was shut down, the files are deleted on the calling thread */
+                deletion.run();
+            }
+        }
+
+        try {
+            for (Future<?> deletion : deletions) {
+                deletion.get();
+            }
+        } catch (InterruptedException e) {
+            /* the remaining files stay in the trash until it is emptied again */
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Utilities.logException(e);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.microsoft.capacitor;
+
+import android.net.Uri;
+import android.webkit.MimeTypeMap;
+import android.webkit.WebResourceRequest;
+import android.webkit.WebResourceResponse;
+import android.webkit.WebView;
+
+import com.getcapacitor.Bridge;
+import com.getcapacitor.BridgeWebViewClient;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Web view client serving the assets of the current update package when they are not plain files on disk:
+ * the assets of an archive package are read from its archive.
+ *
+ * HTML documents are always left to the web view local server, which serves them from the extracted files and
+ * injects the Capacitor runtime into them. Switching packages only swaps the open archive.
+ * The client is only installed while a package needs it, see CodePush, the other packages are served by the local
+ * server alone.
+ */
+public class PackageWebViewClient extends BridgeWebViewClient {
+    private static final String PACKAGE_CONTENT_PREFIX = "public";
+
+    private final Bridge bridge;
+    private ArchivePackage archivePackage;
+
+    public PackageWebViewClient(Bridge bridge) {
+        super(bridge);
+        this.bridge = bridge;
+    }
+
+    /**
+     * Serves the assets of the given package, from its archive if it is an archive package.
+     * @param packageDirectory the package directory, or null when the binary version is served
+     */
+    public void setPackageDirectory(File packageDirectory) throws IOException {
+        ArchivePackage newArchivePackage = null;
+        if (packageDirectory != null && ArchivePackage.isArchivePackage(packageDirectory)) {
+            newArchivePackage = ArchivePackage.open(ArchivePackage.getArchiveFile(packageDirectory));
+        }
+
+        ArchivePackage previousArchivePackage;
+        synchronized (this) {
+            previousArchivePackage = archivePackage;
+            archivePackage = newArchivePackage;
+        }
+        if (previousArchivePackage != null) {
+            previousArchivePackage.close();
+        }
+    }
+
+    @Override
+    public WebResourceResponse shouldInterceptRequest(WebView view, WebResourceRequest request) {
+        ArchivePackage currentArchivePackage;
+        synchronized (this) {
+            currentArchivePackage = archivePackage;
+        }
+
+        Uri url = request.getUrl();
+        String path = url.getPath();
+        if (currentArchivePackage != null
+                && "GET".equals(request.getMethod())
+                && bridge.getHost().equals(url.getHost())
+                && path != null
+                && !path.endsWith("/")
+                && !ArchivePackage.isExtractedEntry(PACKAGE_CONTENT_PREFIX + path)) {
+            try {
+                String entryName = PACKAGE_CONTENT_PREFIX + path;
+                String range = getRangeHeader(request);
+                if (range != null && currentArchivePackage.contains(entryName)) {
+                    return serveRange(currentArchivePackage, entryName, getMimeType(path), range);
+                }
+
+                InputStream inputStream = currentArchivePackage.openEntry(entryName);
+                if (inputStream != null) {
+                    return new WebResourceResponse(getMimeType(path), null, 200, "OK", new HashMap<String, String>(), inputStream);
+                }
+            } catch (IOException e) {
+                /* the archive was closed by a package switch, or is damaged: let the local server answer */
+                Utilities.logException(e);
+            }
+        }
+
+        return super.shouldInterceptRequest(view, request);
+    }
+
+    /**
+     * Answers a range request, e.g. of a media element seeking through a video, with the requested bytes of the entry.
+     * Only single byte ranges are supported, any other range is answered with the whole entry, as HTTP allows.
+     */
+    private static WebResourceResponse serveRange(ArchivePackage archivePackage, String entryName, String mimeType, String range) throws IOException {
+        long size = archivePackage.getSize(entryName);
+        long[] bounds = parseByteRange(range, size);
+        if (bounds == null) {
+            return new WebResourceResponse(mimeType, null, 200, "OK", new HashMap<String, String>(), archivePackage.openEntry(entryName));
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept-Ranges", "bytes");
+        if (bounds[0] >= size || bounds[0] > bounds[1]) {
+            headers.put("Content-Range", "bytes */" + size);
+            return new WebResourceResponse(mimeType, null, 416, "Range Not Satisfiable", headers, new ByteArrayInputStream(new byte[0]));
+        }
+
+        long end = Math.min(bounds[1], size - 1);
+        headers.put("Content-Range", "bytes " + bounds[0] + "-" + end + "/" + size);
+        headers.put("Content-Length", String.valueOf(end + 1 - bounds[0]));
+        InputStream inputStream = archivePackage.openEntryRange(entryName, bounds[0], end + 1);
+        return new WebResourceResponse(mimeType, null, 206, "Partial Content", headers, inputStream);
+    }
+
+    /**
+     * Parses a single byte range, "bytes=first-last", "bytes=first-" or "bytes=-suffixLength".
+     * @return the first and last requested offsets, the last one possibly past the end of the entry,
+     *         or null if the range is not a single byte range
+     */
+    private static long[] parseByteRange(String range, long size) {
+        String value = range.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+
+        value = value.substring("bytes=".length()).trim();
+        int dash = value.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+
+        try {
+            String first = value.substring(0, dash).trim();
+            String last = value.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                long suffixLength = Long.parseLong(last);
+                return suffixLength > 0 ? new long[]{Math.max(0, size - suffixLength), size - 1} : null;
+            }
+
+            return new long[]{Long.parseLong(first), last.isEmpty() ? size - 1 : Long.parseLong(last)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String getRangeHeader(WebResourceRequest request) {
+        Map<String, String> headers = request.getRequestHeaders();
+        if (headers != null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if ("Range".equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private static String getMimeType(String path) {
+        String extension = path.substring(path.lastIndexOf('/') + 1);
+        int dot = extension.lastIndexOf('.');
+        extension = dot >= 0 ? extension.substring(dot + 1).toLowerCase() : "";
+        /* not known to the mime type map of older Android versions */
+        if (extension.equals("js") || extension.equals("mjs")) {
+            return "application/javascript";
+        } else if (extension.equals("wasm")) {
+            return "application/wasm";
+        } else if (extension.equals("json")) {
+            return "application/json";
+        }
+
+        String mimeType = MimeTypeMap.getSingleton().getMimeTypeFromExtension(extension);
+        return mimeType != null ? mimeType : "application/octet-stream";
+    }
+}
@@ -0,0 +1,97 @@
+package com.microsoft.capacitor;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream counting the bytes read through it and reporting them at most once per reporting interval.
+ */
+public class ProgressInputStream extends FilterInputStream {
+
+    /**
+     * Receives the progress of the bytes read through the stream.
+     */
+    public interface Listener {
+        /**
+         * @param receivedBytes the number of bytes read so far
+         * @param totalBytes the total number of bytes expected, or -1 if unknown
+         */
+        void onProgress(long receivedBytes, long totalBytes);
+    }
+
+    private final Listener listener;
+    private final long totalBytes;
+    private final long reportingIntervalMs;
+    private long receivedBytes;
+    private long lastReportTimeMs;
+    private long lastReportedBytes = -1;
+
+    public ProgressInputStream(InputStream inputStream, long initialBytes, long totalBytes, long reportingIntervalMs, Listener listener) {
+        super(inputStream);
+        this.receivedBytes = initialBytes;
+        this.totalBytes = totalBytes;
+        this.reportingIntervalMs = reportingIntervalMs;
+        this.listener = listener;
+    }
+
+    public long getReceivedBytes() {
+        return receivedBytes;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value != -1) {
+            onBytesRead(1);
+        } else if (lastReportedBytes != receivedBytes) {
+            reportProgress();
+        }
+
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int count = super.read(buffer, offset, length);
+        if (count > 0) {
+            onBytesRead(count);
+        } else if (count == -1 && lastReportedBytes != receivedBytes) {
+            reportProgress();
+        }
+
+        return count;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        long skipped = super.skip(count);
+        if (skipped > 0) {
+            onBytesRead(skipped);
+        }
+
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    private void onBytesRead(long count) {
+        receivedBytes += count;
+        long now = System.currentTimeMillis();
+        if (now - lastReportTimeMs >= reportingIntervalMs || receivedBytes == totalBytes) {
+            reportProgress();
+        }
+    }
+
+    /**
+     * Reports the current progress regardless of the reporting interval, e.g. once the stream is exhausted.
+     */
+    public void reportProgress() {
+        lastReportTimeMs = System.currentTimeMillis();
+        lastReportedBytes = receivedBytes;
+        listener.onProgress(receivedBytes, totalBytes);
+    }
+}
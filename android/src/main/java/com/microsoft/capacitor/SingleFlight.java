@@ -0,0 +1,125 @@
+package com.microsoft.capacitor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Coalesces concurrent requests for the same result: the first request of a key computes it, the requests arriving
+ * while it is in flight wait for the same result. Completed results are memoized along with a stamp describing
+ * the state they were computed from, and are returned as long as the caller presents the same stamp.
+ * {@link #invalidateAll()} drops the memoized results, and keeps the computations in flight from memoizing theirs.
+ */
+public class SingleFlight<V> {
+
+    /**
+     * Receives the result of a request.
+     */
+    public interface Callback<V> {
+        void onSuccess(V value);
+
+        void onError(Exception e);
+    }
+
+    private static class Memo<V> {
+        final Object stamp;
+        final V value;
+
+        Memo(Object stamp, V value) {
+            this.stamp = stamp;
+            this.value = value;
+        }
+    }
+
+    private static class Flight<V> {
+        final long generation;
+        final List<Callback<V>> callbacks = new ArrayList<Callback<V>>();
+
+        Flight(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    private final Map<String, Flight<V>> flights = new HashMap<String, Flight<V>>();
+    private final Map<String, Memo<V>> memos = new HashMap<String, Memo<V>>();
+    private long generation;
+
+    /**
+     * Returns the result memoized for the key if it was computed from the given stamp, or null.
+     */
+    public synchronized V getResult(String key, Object stamp) {
+        Memo<V> memo = memos.get(key);
+        return memo != null && stamp != null && stamp.equals(memo.stamp) ? memo.value : null;
+    }
+
+    /**
+     * Adds the callback to the computation in flight for the key.
+     * @return true if there was none: the caller has to compute the result, then call {@link #complete} or {@link #fail}
+     */
+    public synchronized boolean join(String key, Callback<V> callback) {
+        Flight<V> flight = flights.get(key);
+        boolean leader = flight == null;
+        if (leader) {
+            flight = new Flight<V>(generation);
+            flights.put(key, flight);
+        }
+        flight.callbacks.add(callback);
+
+        return leader;
+    }
+
+    /**
+     * Delivers the result to every request waiting for the key, and memoizes it.
+     * @param stamp the state the result was computed from, read before the computation started, or null to not memoize it
+     */
+    public void complete(String key, Object stamp, V value) {
+        List<Callback<V>> callbacks;
+        synchronized (this) {
+            Flight<V> flight = flights.remove(key);
+            callbacks = flight != null ? flight.callbacks : new ArrayList<Callback<V>>();
+            remember(key, stamp, value, flight != null ? flight.generation : generation);
+        }
+
+        for (Callback<V> callback : callbacks) {
+            callback.onSuccess(value);
+        }
+    }
+
+    /**
+     * Memoizes a result computed outside of a coalesced request.
+     * @param generation the value of {@link #getGeneration()} before the computation started
+     */
+    public synchronized void remember(String key, Object stamp, V value, long generation) {
+        if (stamp != null && generation == this.generation) {
+            memos.put(key, new Memo<V>(stamp, value));
+        }
+    }
+
+    /**
+     * Delivers the failure to every request waiting for the key. Nothing is memoized.
+     */
+    public void fail(String key, Exception e) {
+        List<Callback<V>> callbacks;
+        synchronized (this) {
+            Flight<V> flight = flights.remove(key);
+            callbacks = flight != null ? flight.callbacks : new ArrayList<Callback<V>>();
+        }
+
+        for (Callback<V> callback : callbacks) {
+            callback.onError(e);
+        }
+    }
+
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Forgets every memoized result, e.g. because files were written in a way the stamps may not reflect.
+     */
+    public synchronized void invalidateAll() {
+        memos.clear();
+        generation++;
+    }
+}
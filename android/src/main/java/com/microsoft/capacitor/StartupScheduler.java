@@ -0,0 +1,143 @@
+package com.microsoft.capacitor;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.MessageQueue;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps the work that is not needed to show the first page off the startup path.
+ * Deferred tasks are held until the main thread becomes idle, or until a timeout elapses if it never does,
+ * then run on the I/O pool of the plugin executor with a low priority. The duration of the startup phases and
+ * of the deferred tasks is recorded, so the time spent before the first page can be measured.
+ */
+public class StartupScheduler {
+    /* deferred work is started anyway if the main thread is still busy after this delay */
+    private static final long IDLE_TIMEOUT_MS = 5000;
+
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final CodePushExecutor executor;
+    private final List<DeferredTask> pendingTasks = new ArrayList<DeferredTask>();
+    private final Map<String, Long> timings = new LinkedHashMap<String, Long>();
+    private final long createdTime = SystemClock.elapsedRealtime();
+    private boolean idle;
+    private boolean idleWaitScheduled;
+
+    private class DeferredTask extends CodePushExecutor.Task {
+        private final String name;
+        private final Runnable task;
+
+        DeferredTask(String name, Runnable task) {
+            this.name = name;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = SystemClock.elapsedRealtime();
+            try {
+                task.run();
+            } finally {
+                recordTiming(name, SystemClock.elapsedRealtime() - start);
+            }
+        }
+    }
+
+    public StartupScheduler(CodePushExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Runs the given startup phase on the calling thread. The duration of its first run is recorded,
+     * later runs happen when the application comes back to the foreground and are not part of the startup.
+     */
+    public void runPhase(String name, Runnable phase) {
+        long start = SystemClock.elapsedRealtime();
+        try {
+            phase.run();
+        } finally {
+            long durationMs = SystemClock.elapsedRealtime() - start;
+            synchronized (this) {
+                if (!timings.containsKey(name)) {
+                    timings.put(name, durationMs);
+                }
+            }
+        }
+    }
+
+    /**
+     * Runs the given task in the background once the application is idle. The durations of the tasks deferred
+     * under the same name are added up.
+     */
+    public void defer(String name, Runnable task) {
+        DeferredTask deferredTask = new DeferredTask(name, task);
+        synchronized (this) {
+            if (idle) {
+                executor.executeIo(CodePushExecutor.Priority.LOW, name, deferredTask);
+                return;
+            }
+            pendingTasks.add(deferredTask);
+            if (idleWaitScheduled) {
+                return;
+            }
+            idleWaitScheduled = true;
+        }
+
+        waitForIdle();
+    }
+
+    /**
+     * Returns the recorded durations in milliseconds, in the order they were first recorded.
+     * "idleDelay" is the time from the creation of the scheduler to the start of the deferred work.
+     */
+    public synchronized Map<String, Long> getTimings() {
+        return new LinkedHashMap<String, Long>(timings);
+    }
+
+    private synchronized void recordTiming(String name, long durationMs) {
+        Long previousDuration = timings.get(name);
+        timings.put(name, previousDuration != null ? previousDuration + durationMs : durationMs);
+    }
+
+    private void waitForIdle() {
+        final Runnable onIdle = new Runnable() {
+            @Override
+            public void run() {
+                startDeferredTasks();
+            }
+        };
+
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+                    @Override
+                    public boolean queueIdle() {
+                        onIdle.run();
+                        return false;
+                    }
+                });
+            }
+        });
+        mainHandler.postDelayed(onIdle, IDLE_TIMEOUT_MS);
+    }
+
+    private void startDeferredTasks() {
+        synchronized (this) {
+            if (idle) {
+                return;
+            }
+            idle = true;
+            timings.put("idleDelay", SystemClock.elapsedRealtime() - createdTime);
+            for (DeferredTask task : pendingTasks) {
+                executor.executeIo(CodePushExecutor.Priority.LOW, task.name, task);
+            }
+            pendingTasks.clear();
+        }
+    }
+}
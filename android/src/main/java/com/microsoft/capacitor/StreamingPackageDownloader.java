@@ -0,0 +1,134 @@
+package com.microsoft.capacitor;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Downloads an update archive and extracts it while it arrives, hashing every file on the way: the archive is
+ * never stored, and a full update is verified against its expected hash without reading the package back.
+ * Unlike {@link PackageDownloader}, an interrupted download can not be resumed, the caller falls back to it then.
+ */
+public class StreamingPackageDownloader {
+
+    private static final int TIMEOUT_MS = 30 * 1000;
+    private static final int BUFFER_SIZE = 1024 * 8;
+
+    /**
+     * Thrown when the downloaded package does not have the expected hash. Its extracted files are deleted.
+     */
+    public static class IntegrityException extends IOException {
+        public IntegrityException() {
+            super("The update contents failed the data integrity check.");
+        }
+    }
+
+    public static class Result {
+        /** the hash of the extracted files, only the package hash for a full update */
+        public final String packageHash;
+        public final boolean isDiffUpdate;
+
+        Result(String packageHash, boolean isDiffUpdate) {
+            this.packageHash = packageHash;
+            this.isDiffUpdate = isDiffUpdate;
+        }
+    }
+
+    private final String url;
+    private final File targetDirectory;
+    private final String expectedPackageHash;
+    private final long progressIntervalMs;
+
+    /**
+     * @param expectedPackageHash the hash a full update must have, a diff update is verified once applied
+     */
+    public StreamingPackageDownloader(String url, File targetDirectory, String expectedPackageHash, long progressIntervalMs) {
+        if (expectedPackageHash == null) {
+            throw new IllegalArgumentException("The hash of the package is required.");
+        }
+
+        this.url = url;
+        this.targetDirectory = targetDirectory;
+        this.expectedPackageHash = expectedPackageHash;
+        this.progressIntervalMs = progressIntervalMs;
+    }
+
+    /**
+     * Downloads and extracts the archive into the target directory. If it fails, the files extracted so far are deleted,
+     * files of the target directory the archive did not overwrite are kept.
+     * @param handle cancels the download, the connection is closed
+     * @throws OperationHandle.OperationCancelledException if the handle was cancelled
+     * @throws IntegrityException if the full update does not have the expected hash
+     * @throws IOException if the download failed, e.g. the connection dropped
+     */
+    public Result download(OperationHandle handle, ProgressInputStream.Listener listener) throws IOException, NoSuchAlgorithmException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        handle.setCancelAction(new Runnable() {
+            @Override
+            public void run() {
+                connection.disconnect();
+            }
+        });
+
+        try {
+            handle.checkCancelled();
+            connection.setConnectTimeout(TIMEOUT_MS);
+            connection.setReadTimeout(TIMEOUT_MS);
+            connection.setInstanceFollowRedirects(true);
+            /* the archive is compressed already, and its length lets a truncated download be told apart */
+            connection.setRequestProperty("Accept-Encoding", "identity");
+            /* a kept-alive connection would be drained to be reused when the download is cancelled, rather than closed */
+            connection.setRequestProperty("Connection", "close");
+            int responseCode = connection.getResponseCode();
+            if (responseCode != HttpURLConnection.HTTP_OK) {
+                throw new IOException("Unexpected response code " + responseCode + ".");
+            }
+
+            long totalBytes = connection.getContentLengthLong();
+            ProgressInputStream inputStream = new ProgressInputStream(connection.getInputStream(), 0, totalBytes, progressIntervalMs, listener);
+            Map<String, String> fileHashes = new HashMap<String, String>();
+            ZipExtractor.ExtractedOutput output = new ZipExtractor.ExtractedOutput();
+            /* the extraction closes the stream it reads, the rest of the response is still read below */
+            ZipExtractor.extract(new FilterInputStream(inputStream) {
+                @Override
+                public void close() {
+                }
+            }, targetDirectory, fileHashes, handle, output);
+            try {
+                /* the extraction stops at the central directory, the rest is read to check that nothing is missing */
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (inputStream.read(buffer) != -1);
+                inputStream.close();
+                if (totalBytes >= 0 && inputStream.getReceivedBytes() != totalBytes) {
+                    throw new IOException("The connection was closed after " + inputStream.getReceivedBytes() + " of " + totalBytes + " bytes.");
+                }
+
+                boolean isDiffUpdate = fileHashes.containsKey(DiffUpdateUtils.DIFF_MANIFEST_FILENAME);
+                String packageHash = UpdateHashUtils.getHashForExtractedFiles(fileHashes, new ArrayList<String>());
+                /* a diff update archive does not contain the whole package, it is verified once applied */
+                if (!isDiffUpdate && !expectedPackageHash.equals(packageHash)) {
+                    throw new IntegrityException();
+                }
+
+                return new Result(packageHash, isDiffUpdate);
+            } catch (IOException e) {
+                output.delete();
+                throw e;
+            }
+        } catch (IOException e) {
+            /* a read unblocked by the cancellation fails with whatever the closed connection gives */
+            if (handle.isCancelled() && !(e instanceof OperationHandle.OperationCancelledException)) {
+                throw new OperationHandle.OperationCancelledException();
+            }
+            throw e;
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -1,9 +1,6 @@
 package com.microsoft.capacitor;
 
-import android.app.Activity;
-import android.content.res.AssetManager;
-
-import org.json.JSONArray;
+import org.json.JSONObject;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -11,55 +8,236 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.DigestInputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Utilities class used for native operations related to calculating hashes of update contents.
  */
 public class UpdateHashUtils {
+    private static final String BINARY_HASH_MANIFEST_FILENAME = "cdvasset.hashes";
+    private static final String BINARY_HASH_KEY = "binaryHash";
+
     private static final Set<String> ignoredFiles = new HashSet<String>(Arrays.asList(
             ".codepushrelease",
             ".DS_Store",
             "__MACOSX"
     ));
 
-    public static String getBinaryHash(Activity activity) throws IOException, NoSuchAlgorithmException, ClassNotFoundException {
-        return getHashForPath(activity, null);
+    private static final int HASH_BUFFER_SIZE = 1024 * 64;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    /* hashing runs for thousands of files on the same few threads, so the digest and buffers are reused per thread */
+    private static final ThreadLocal<MessageDigest> threadMessageDigest = new ThreadLocal<MessageDigest>();
+    private static final ThreadLocal<byte[]> threadByteBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[HASH_BUFFER_SIZE];
+        }
+    };
+
+    private static final long MEMORY_MAPPING_WINDOW_SIZE = 1024 * 1024 * 32;
+
+    private static long memoryMappingThreshold = 1024 * 1024;
+    private static ForkJoinPool hashingPool;
+
+    /**
+     * Sets the pool the files of an update package are hashed on, see {@link CodePushExecutor#getHashingPool()}.
+     * The pool is owned by the caller. Without a pool, or with a parallelism of 1, the package hashing runs
+     * sequentially on the calling thread.
+     */
+    public static synchronized void setHashingPool(ForkJoinPool pool) {
+        hashingPool = pool;
+    }
+
+    /**
+     * Sets the size from which package files are hashed through a memory mapping instead of buffered reads.
+     * A negative value disables memory mapping.
+     */
+    public static void setMemoryMappingThreshold(long thresholdBytes) {
+        memoryMappingThreshold = thresholdBytes;
+    }
+
+    private static synchronized ForkJoinPool getHashingPool() {
+        return hashingPool;
+    }
+
+    public static String getBinaryHash(AssetSource assetSource) throws IOException, NoSuchAlgorithmException, ClassNotFoundException {
+        String precomputedBinaryHash = getPrecomputedBinaryHash(assetSource);
+        if (precomputedBinaryHash != null) {
+            return precomputedBinaryHash;
+        }
+
+        return getHashForAssets(assetSource);
+    }
+
+    /**
+     * Reads the binary hash computed at build time by the capCreateAssetManifest gradle task.
+     * @return the binary hash, or null if the application was built without it
+     */
+    private static String getPrecomputedBinaryHash(AssetSource assetSource) {
+        try {
+            String content = Utilities.readStreamContents(assetSource.open(BINARY_HASH_MANIFEST_FILENAME));
+            return new JSONObject(content).optString(BINARY_HASH_KEY, null);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (Exception e) {
+            Utilities.logException(e);
+            return null;
+        }
     }
 
-    public static String getHashForPath(Activity activity, String path) throws IOException, NoSuchAlgorithmException, ClassNotFoundException {
+    /**
+     * Computes the hash of the binary contents by hashing every asset under public/.
+     */
+    public static String getHashForAssets(AssetSource assetSource) throws IOException, NoSuchAlgorithmException, ClassNotFoundException {
         ArrayList<String> manifestEntries = new ArrayList<String>();
-        if (path == null) {
-            addFolderEntriesToManifestFromAssets(manifestEntries, activity.getAssets(), "public");
+        addFolderEntriesToManifestFromAssets(manifestEntries, assetSource, "public");
+        return computeManifestHash(manifestEntries);
+    }
+
+    /**
+     * Computes the hash of a package folder.
+     * @param basePath the directory the package path is relative to, usually the application files directory
+     * @param path the package folder to hash
+     */
+    public static String getHashForPath(File basePath, String path) throws IOException, NoSuchAlgorithmException {
+        return getHashForPath(basePath, path, null);
+    }
+
+    /**
+     * Computes the hash of a package folder, reporting the progress to the given handle and stopping when it is cancelled.
+     * @param handle the handle of the operation, or null
+     * @throws OperationHandle.OperationCancelledException if the handle was cancelled
+     */
+    public static String getHashForPath(File basePath, String path, OperationHandle handle) throws IOException, NoSuchAlgorithmException {
+        ArrayList<String> manifestEntries = new ArrayList<String>();
+        File fullPath = new File(basePath, path);
+        PackageHashIndex hashIndex = PackageHashIndex.load(basePath, path);
+        if (handle != null) {
+            setFolderTotals(fullPath, handle);
+        }
+        ForkJoinPool pool = getHashingPool();
+        if (pool != null && pool.getParallelism() > 1 && !pool.isShutdown()) {
+            addFolderEntriesToManifestInParallel(pool, manifestEntries, "public", fullPath.getPath(), hashIndex, handle);
         } else {
-            File basePath = activity.getApplicationContext().getFilesDir();
-            File fullPath = new File(basePath, path);
-            addFolderEntriesToManifest(manifestEntries, "public", fullPath.getPath());
+            addFolderEntriesToManifest(manifestEntries, "public", fullPath.getPath(), hashIndex, handle);
+        }
+        if (handle != null) {
+            handle.reportProgress();
+        }
+
+        try {
+            hashIndex.save();
+        } catch (IOException e) {
+            /* the index is only an optimization, the computed hash is still valid */
+            Utilities.logException(e);
+        }
+
+        return computeManifestHash(manifestEntries);
+    }
+
+    /**
+     * Computes the package hash from the hashes of files extracted by {@link Utilities#unzip(File, File, Map)},
+     * applying the same filtering, ordering and serialization as {@link #getHashForPath(File, String)}.
+     * @param fileHashes the file hashes, keyed by the path of the file inside the archive
+     * @param manifestEntries receives the per-file manifest entries the package hash is computed from
+     */
+    public static String getHashForExtractedFiles(Map<String, String> fileHashes, List<String> manifestEntries) throws IOException, NoSuchAlgorithmException {
+        for (Map.Entry<String, String> fileHash : fileHashes.entrySet()) {
+            String relativePath = new File(fileHash.getKey()).getPath();
+            if (!relativePath.startsWith("public" + File.separator) || isIgnoredPath(relativePath)) {
+                continue;
+            }
+            manifestEntries.add(relativePath + ":" + fileHash.getValue());
         }
+
+        return computeManifestHash(manifestEntries);
+    }
+
+    private static boolean isIgnoredPath(String relativePath) {
+        for (String pathSegment : relativePath.split(File.separator)) {
+            if (UpdateHashUtils.ignoredFiles.contains(pathSegment)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String computeManifestHash(List<String> manifestEntries) throws IOException, NoSuchAlgorithmException {
         Collections.sort(manifestEntries);
-        JSONArray manifestJSONArray = new JSONArray();
-        for (String manifestEntry : manifestEntries) {
-            manifestJSONArray.put(manifestEntry);
+        StringBuilder manifestString = new StringBuilder("[");
+        for (int i = 0; i < manifestEntries.size(); i++) {
+            if (i > 0) {
+                manifestString.append(',');
+            }
+            appendJsonString(manifestString, manifestEntries.get(i));
         }
+        manifestString.append(']');
 
-        // The JSON serialization turns path separators into "\/", e.g. "www\/images\/image.png"
-        String manifestString = manifestJSONArray.toString().replace("\\/", "/");
-        return computeHash(new ByteArrayInputStream(manifestString.getBytes()));
+        return computeHash(new ByteArrayInputStream(manifestString.toString().getBytes("UTF-8")));
     }
 
-    private static void addFolderEntriesToManifestFromAssets(ArrayList<String> manifestEntries, AssetManager assetManager, String path) throws IOException, NoSuchAlgorithmException, ClassNotFoundException {
-        String[] assetsList = Utilities.getAssetsList(assetManager, path, ignoredFiles);
+    /**
+     * Appends the string as a JSON string literal, escaped like org.json on Android does, except for the path
+     * separators which the manifest keeps as they are. The manifest is serialized here rather than through org.json,
+     * so the package hash does not depend on the JSON implementation the code runs with.
+     */
+    private static void appendJsonString(StringBuilder builder, String value) {
+        builder.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                case '\\':
+                    builder.append('\\').append(c);
+                    break;
+                case '\t':
+                    builder.append("\\t");
+                    break;
+                case '\b':
+                    builder.append("\\b");
+                    break;
+                case '\n':
+                    builder.append("\\n");
+                    break;
+                case '\r':
+                    builder.append("\\r");
+                    break;
+                case '\f':
+                    builder.append("\\f");
+                    break;
+                default:
+                    if (c <= 0x1F) {
+                        builder.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        builder.append(c);
+                    }
+                    break;
+            }
+        }
+        builder.append('"');
+    }
+
+    private static void addFolderEntriesToManifestFromAssets(ArrayList<String> manifestEntries, AssetSource assetSource, String path) throws IOException, NoSuchAlgorithmException, ClassNotFoundException {
+        String[] assetsList = Utilities.getAssetsList(assetSource, path, ignoredFiles);
 
         for(String assetPath : assetsList){
             try {
-                InputStream inputStream = assetManager.open(assetPath);
+                InputStream inputStream = assetSource.open(assetPath);
                 manifestEntries.add(assetPath + ":" + computeHash(inputStream));
             } catch (FileNotFoundException e) {
                 // ignore: AAPT ignore some file which we can't, it's OK
@@ -68,7 +246,39 @@ public class UpdateHashUtils {
         }
     }
 
-    private static void addFolderEntriesToManifest(ArrayList<String> manifestEntries, String prefix, String path) throws IOException, NoSuchAlgorithmException {
+    /**
+     * Counts the files to hash and their total size, walking the folder like the hashing does.
+     */
+    private static void setFolderTotals(File folder, OperationHandle handle) throws OperationHandle.OperationCancelledException {
+        long totalBytes = 0;
+        int totalEntries = 0;
+        ArrayDeque<File> pendingFolders = new ArrayDeque<File>();
+        pendingFolders.push(folder);
+        while (!pendingFolders.isEmpty()) {
+            handle.checkCancelled();
+            File currentFolder = pendingFolders.pop();
+            String[] fileList = currentFolder.list();
+            if (fileList == null) {
+                continue;
+            }
+            for (String pathInFolder : fileList) {
+                if (UpdateHashUtils.ignoredFiles.contains(pathInFolder)) {
+                    continue;
+                }
+                File file = new File(currentFolder, pathInFolder);
+                if (file.isDirectory()) {
+                    pendingFolders.push(file);
+                } else {
+                    totalBytes += file.length();
+                    totalEntries++;
+                }
+            }
+        }
+
+        handle.setTotals(totalBytes, totalEntries);
+    }
+
+    private static void addFolderEntriesToManifest(ArrayList<String> manifestEntries, String prefix, String path, PackageHashIndex hashIndex, OperationHandle handle) throws IOException, NoSuchAlgorithmException {
         String[] fileList = new File(path).list();
 
         if (fileList != null) {
@@ -79,34 +289,248 @@ public class UpdateHashUtils {
                 File relativePath = new File(prefix, pathInFolder);
                 File absolutePath = new File(path, pathInFolder);
                 if (absolutePath.isDirectory()) {
-                    addFolderEntriesToManifest(manifestEntries, relativePath.getPath(), absolutePath.getPath());
+                    addFolderEntriesToManifest(manifestEntries, relativePath.getPath(), absolutePath.getPath(), hashIndex, handle);
                 } else {
-                    InputStream inputStream = new FileInputStream(absolutePath.getPath());
-                    manifestEntries.add(relativePath.getPath() + ":" + computeHash(inputStream));
+                    manifestEntries.add(relativePath.getPath() + ":" + computeFileHash(relativePath.getPath(), absolutePath, hashIndex, handle));
                 }
             }
         }
     }
 
-    private static String computeHash(InputStream dataStream) throws IOException, NoSuchAlgorithmException {
-        MessageDigest messageDigest = null;
-        DigestInputStream digestInputStream = null;
+    private static void addFolderEntriesToManifestInParallel(ForkJoinPool pool, ArrayList<String> manifestEntries, String prefix, String path, PackageHashIndex hashIndex, OperationHandle handle) throws IOException, NoSuchAlgorithmException {
         try {
+            manifestEntries.addAll(pool.invoke(new FolderHashTask(prefix, new File(path), hashIndex, handle)));
+        } catch (HashingException e) {
+            /* fork-join may wrap the exception thrown by a worker thread into another instance */
+            Throwable cause = e.getCause();
+            while (cause instanceof HashingException) {
+                cause = cause.getCause();
+            }
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof NoSuchAlgorithmException) {
+                throw (NoSuchAlgorithmException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+
+            throw new IOException("Failed to hash the package files.", cause);
+        }
+    }
+
+    /**
+     * Walks a package folder, forking one task per sub-folder and per file so that files are hashed concurrently.
+     * The resulting entries are unordered; the caller sorts them before the manifest hash is computed.
+     */
+    private static class FolderHashTask extends RecursiveTask<List<String>> {
+        private final String prefix;
+        private final File folder;
+        private final PackageHashIndex hashIndex;
+        private final OperationHandle handle;
+
+        FolderHashTask(String prefix, File folder, PackageHashIndex hashIndex, OperationHandle handle) {
+            this.prefix = prefix;
+            this.folder = folder;
+            this.hashIndex = hashIndex;
+            this.handle = handle;
+        }
+
+        @Override
+        protected List<String> compute() {
+            List<String> manifestEntries = new ArrayList<String>();
+            String[] fileList = folder.list();
+            if (fileList == null) {
+                return manifestEntries;
+            }
+
+            List<FolderHashTask> folderTasks = new ArrayList<FolderHashTask>();
+            List<FileHashTask> fileTasks = new ArrayList<FileHashTask>();
+            for (String pathInFolder : fileList) {
+                if (UpdateHashUtils.ignoredFiles.contains(pathInFolder)) {
+                    continue;
+                }
+                File relativePath = new File(prefix, pathInFolder);
+                File absolutePath = new File(folder, pathInFolder);
+                if (absolutePath.isDirectory()) {
+                    folderTasks.add(new FolderHashTask(relativePath.getPath(), absolutePath, hashIndex, handle));
+                } else {
+                    fileTasks.add(new FileHashTask(relativePath.getPath(), absolutePath, hashIndex, handle));
+                }
+            }
+
+            invokeAll(folderTasks);
+            invokeAll(fileTasks);
+            for (FolderHashTask folderTask : folderTasks) {
+                manifestEntries.addAll(folderTask.join());
+            }
+            for (FileHashTask fileTask : fileTasks) {
+                manifestEntries.add(fileTask.join());
+            }
+
+            return manifestEntries;
+        }
+    }
+
+    private static class FileHashTask extends RecursiveTask<String> {
+        private final String relativePath;
+        private final File file;
+        private final PackageHashIndex hashIndex;
+        private final OperationHandle handle;
+
+        FileHashTask(String relativePath, File file, PackageHashIndex hashIndex, OperationHandle handle) {
+            this.relativePath = relativePath;
+            this.file = file;
+            this.hashIndex = hashIndex;
+            this.handle = handle;
+        }
+
+        @Override
+        protected String compute() {
+            try {
+                return relativePath + ":" + computeFileHash(relativePath, file, hashIndex, handle);
+            } catch (IOException e) {
+                throw new HashingException(e);
+            } catch (NoSuchAlgorithmException e) {
+                throw new HashingException(e);
+            }
+        }
+    }
+
+    /**
+     * Carries checked hashing failures out of the fork-join tasks.
+     */
+    private static class HashingException extends RuntimeException {
+        HashingException(Exception cause) {
+            super(cause);
+        }
+    }
+
+    /**
+     * Computes the SHA-256 of a single file.
+     */
+    public static String getHashForFile(File file) throws IOException, NoSuchAlgorithmException {
+        return computeHash(file);
+    }
+
+    private static String computeFileHash(String relativePath, File file, PackageHashIndex hashIndex, OperationHandle handle) throws IOException, NoSuchAlgorithmException {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        String hash = hashIndex.getHash(relativePath, size, lastModified);
+        if (hash == null) {
+            hash = computeHash(file, handle);
+        } else if (handle != null) {
+            handle.addBytes(size);
+        }
+
+        hashIndex.putHash(relativePath, size, lastModified, hash);
+        if (handle != null) {
+            handle.completeEntry();
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the SHA-256 digest of the calling thread, reset. It is shared by all the hashing done on the thread,
+     * so it must be done with before anything else on the thread hashes.
+     */
+    static MessageDigest getMessageDigest() throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = threadMessageDigest.get();
+        if (messageDigest == null) {
             messageDigest = MessageDigest.getInstance("SHA-256");
-            digestInputStream = new DigestInputStream(dataStream, messageDigest);
-            byte[] byteBuffer = new byte[1024 * 8];
-            while (digestInputStream.read(byteBuffer) != -1);
+            threadMessageDigest.set(messageDigest);
+        } else {
+            messageDigest.reset();
+        }
+
+        return messageDigest;
+    }
+
+    /**
+     * Returns the read buffer of the calling thread, with the same sharing rules as {@link #getMessageDigest()}.
+     */
+    static byte[] getReadBuffer() {
+        return threadByteBuffer.get();
+    }
+
+    private static String computeHash(File file) throws IOException, NoSuchAlgorithmException {
+        return computeHash(file, null);
+    }
+
+    private static String computeHash(File file, OperationHandle handle) throws IOException, NoSuchAlgorithmException {
+        MessageDigest messageDigest = getMessageDigest();
+        FileInputStream fileInputStream = new FileInputStream(file);
+        try {
+            FileChannel fileChannel = fileInputStream.getChannel();
+            long size = fileChannel.size();
+            if (memoryMappingThreshold >= 0 && size >= memoryMappingThreshold) {
+                /* large files are digested straight from the page cache, without copying them into a read buffer */
+                for (long position = 0; position < size; position += MEMORY_MAPPING_WINDOW_SIZE) {
+                    long windowSize = Math.min(MEMORY_MAPPING_WINDOW_SIZE, size - position);
+                    MappedByteBuffer window = fileChannel.map(FileChannel.MapMode.READ_ONLY, position, windowSize);
+                    if (handle == null) {
+                        messageDigest.update(window);
+                        continue;
+                    }
+                    /* digested a read buffer's worth at a time, so a cancellation is noticed as quickly as with buffered reads */
+                    for (int sliceStart = 0; sliceStart < windowSize; sliceStart += HASH_BUFFER_SIZE) {
+                        int sliceSize = (int) Math.min(HASH_BUFFER_SIZE, windowSize - sliceStart);
+                        window.limit(sliceStart + sliceSize);
+                        window.position(sliceStart);
+                        messageDigest.update(window);
+                        handle.addBytes(sliceSize);
+                    }
+                }
+            } else {
+                /* read into a heap array, the digest would copy a direct buffer into one of its own anyway */
+                byte[] byteBuffer = threadByteBuffer.get();
+                int count;
+                while ((count = fileInputStream.read(byteBuffer)) != -1) {
+                    messageDigest.update(byteBuffer, 0, count);
+                    if (handle != null) {
+                        handle.addBytes(count);
+                    }
+                }
+            }
+        } finally {
+            fileInputStream.close();
+        }
+
+        return formatHash(messageDigest.digest());
+    }
+
+    private static String computeHash(InputStream dataStream) throws IOException, NoSuchAlgorithmException {
+        MessageDigest messageDigest = getMessageDigest();
+        byte[] byteBuffer = threadByteBuffer.get();
+        try {
+            int count;
+            while ((count = dataStream.read(byteBuffer)) != -1) {
+                messageDigest.update(byteBuffer, 0, count);
+            }
         } finally {
             try {
-                if (digestInputStream != null) digestInputStream.close();
-                if (dataStream != null) dataStream.close();
+                dataStream.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
 
-        byte[] hash = messageDigest.digest();
-        return String.format("%064x", new java.math.BigInteger(1, hash));
+        return formatHash(messageDigest.digest());
     }
 
+    static String formatHash(byte[] hash) {
+        char[] hexChars = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            int value = hash[i] & 0xFF;
+            hexChars[i * 2] = HEX_DIGITS[value >>> 4];
+            hexChars[i * 2 + 1] = HEX_DIGITS[value & 0x0F];
+        }
+
+        return new String(hexChars);
+    }
 }
@@ -1,41 +1,68 @@
 package com.microsoft.capacitor;
 
-import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.res.AssetManager;
-import android.content.res.Resources;
-import android.util.Log;
-
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.ObjectInputStream;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-
-import static java.lang.Long.parseLong;
 
 /**
  * Utilities class used for file and other common native operations.
+ * It does not use Android APIs: logging and hard links go through the {@link LogWriter} and {@link FileLinker}
+ * set by the plugin, see {@link AndroidUtilities}, so it also runs on a plain JVM.
  */
 public class Utilities {
     private static final String ASSETS_MANIFEST_FILENAME = "cdvasset.manifest";
+    private static AssetManifestIndex assetManifestIndex;
+    private static boolean assetManifestIndexMissing = false;
+    private static volatile LogWriter logWriter = new LogWriter() {
+        @Override
+        public void log(String message, Throwable throwable) {
+            System.err.println("CodePush: " + message);
+            if (throwable != null) {
+                throwable.printStackTrace();
+            }
+        }
+    };
+    private static volatile FileLinker fileLinker;
+
+    public static void setLogWriter(LogWriter writer) {
+        logWriter = writer;
+    }
+
+    public static void setFileLinker(FileLinker linker) {
+        fileLinker = linker;
+    }
+
+    public static FileLinker getFileLinker() {
+        FileLinker linker = fileLinker;
+        if (linker == null) {
+            /* only reached on a plain JVM, the plugin sets the Android linker when it loads */
+            linker = new NioFileLinker();
+            fileLinker = linker;
+        }
+
+        return linker;
+    }
 
     public static String readFileContents(File file) throws IOException {
+        return readStreamContents(new FileInputStream(file));
+    }
+
+    public static String readStreamContents(InputStream inputStream) throws IOException {
         StringBuilder sb = new StringBuilder();
         BufferedReader br = null;
         try {
-            br = new BufferedReader(new FileReader(file));
+            br = new BufferedReader(new InputStreamReader(inputStream, "UTF-8"));
             String currentLine;
 
             while ((currentLine = br.readLine()) != null) {
@@ -51,6 +78,37 @@ public class Utilities {
         return sb.toString();
     }
 
+    /**
+     * Writes the given contents to a temporary file and renames it over the target file,
+     * so that readers never observe a partially written file.
+     */
+    public static void writeFileAtomically(File file, String contents) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new FileNotFoundException("Failed to ensure directory: " + parent.getAbsolutePath());
+        }
+
+        /* a unique temporary file, so concurrent writers of the same file do not write into each other's */
+        File tempFile = File.createTempFile(file.getName() + ".", ".tmp", parent);
+        try {
+            FileOutputStream fout = new FileOutputStream(tempFile);
+            try {
+                fout.write(contents.getBytes("UTF-8"));
+                fout.getFD().sync();
+            } finally {
+                fout.close();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+
+        if (!tempFile.renameTo(file)) {
+            tempFile.delete();
+            throw new IOException("Failed to replace file: " + file.getAbsolutePath());
+        }
+    }
+
     public static void deleteEntryRecursively(File entry) {
         if (entry.isDirectory()) {
             /* delete contents first */
@@ -62,53 +120,92 @@ public class Utilities {
         entry.delete();
     }
 
-    public static String getAppVersionName(Context context) throws PackageManager.NameNotFoundException {
-        String currentPackageName = context.getPackageName();
-        PackageInfo packageInfo = context.getPackageManager().getPackageInfo(currentPackageName, 0);
-        return packageInfo.versionName;
-    }
-
-    public static long getApkBuildTime(Context context) {
-
-        Long millis;
+    /**
+     * Makes the target a hard link to the source file, so both share the same data on disk.
+     * An existing target is unlinked first, since it may be a link to a blob shared with other packages.
+     * Falls back to copying the file only if the file system can not link it, e.g. across file systems,
+     * other failures are thrown.
+     */
+    public static void linkOrCopyFile(File source, File target) throws IOException {
+        if (target.exists() && !target.delete()) {
+            throw new IOException("Failed to replace file: " + target.getAbsolutePath());
+        }
 
         try {
-            //replace double quotes needed for correct restoration of long value from strings.xml
-            //https://github.com/Microsoft/cordova-plugin-code-push/issues/264
-            millis = parseLong(context.getString(
-                context.getResources().getIdentifier("CODE_PUSH_APK_BUILD_TIME", "string", context.getPackageName())
-            ).replaceAll("\"",""));
-        } catch(Resources.NotFoundException e) {
-            return -1;
-        } catch(NumberFormatException e) {
-            return -1;
+            getFileLinker().link(source, target);
+        } catch (FileLinker.LinkNotSupportedException e) {
+            copyStreamToFile(new FileInputStream(source), target);
         }
+    }
 
-        return millis;
+    /**
+     * Writes the stream to the given file and closes the stream.
+     */
+    public static void copyStreamToFile(InputStream inputStream, File target) throws IOException {
+        try {
+            FileOutputStream fout = new FileOutputStream(target);
+            try {
+                byte[] buffer = new byte[8192];
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    fout.write(buffer, 0, count);
+                }
+            } finally {
+                fout.close();
+            }
+        } finally {
+            inputStream.close();
+        }
     }
 
     public static void logException(Throwable e) {
-        Log.e(CodePush.class.getName(), "An error occured. " + e.getMessage(), e);
+        logWriter.log("An error occured. " + e.getMessage(), e);
     }
 
     public static void logMessage(String message) {
-        Log.e(CodePush.class.getName(), message);
+        logWriter.log(message, null);
     }
 
 
     /**
      * Getting the full path to all the assets in a given asset path.
-     * Note: implementation is cased on cdvasset.manifest which is generated during build time
-     * @param assetManager a reference to the android's asset manager
+     * Note: implementation is based on cdvasset.index (or the legacy cdvasset.manifest) which is generated during build time
+     * @param assetSource the assets of the application, see {@link AndroidUtilities#getAssetSource}
      * @param path the asset path for which we want the asset list, if null is passed it will take all the asset from the root
      * @param ignoredFiles the files to be ignored when generating the list, if null is passed it will not ignore any files
      * @return list of paths to all the assets for a given path in the following format: path/to/asset/asset_name.xxx
      */
-    public static String[] getAssetsList(AssetManager assetManager, String path, Set<String> ignoredFiles) throws IOException, ClassNotFoundException {
+    public static String[] getAssetsList(AssetSource assetSource, String path, Set<String> ignoredFiles) throws IOException, ClassNotFoundException {
+        AssetManifestIndex assetManifestIndex = getAssetManifestIndex(assetSource);
+        if (assetManifestIndex != null) {
+            return assetManifestIndex.list(path == null ? "" : path, ignoredFiles);
+        }
+
+        return getAssetsListFromLegacyManifest(assetSource, path, ignoredFiles);
+    }
+
+    /**
+     * Returns the asset index of the application, loading it on first use.
+     * @return the asset index, or null if the application was built without one
+     */
+    private static synchronized AssetManifestIndex getAssetManifestIndex(AssetSource assetSource) throws IOException {
+        /* the assets can not change while the application is running, so the index is read only once */
+        if (assetManifestIndex == null && !assetManifestIndexMissing) {
+            try {
+                assetManifestIndex = AssetManifestIndex.load(assetSource);
+            } catch (FileNotFoundException e) {
+                assetManifestIndexMissing = true;
+            }
+        }
+
+        return assetManifestIndex;
+    }
+
+    private static String[] getAssetsListFromLegacyManifest(AssetSource assetSource, String path, Set<String> ignoredFiles) throws IOException, ClassNotFoundException {
         ObjectInputStream ois = null;
         List<String> flatAssetPaths = new ArrayList<String>();
         try {
-            ois = new ObjectInputStream(assetManager.open(ASSETS_MANIFEST_FILENAME));
+            ois = new ObjectInputStream(assetSource.open(ASSETS_MANIFEST_FILENAME));
             Map<String, String[]> directoryList = (Map<String, String[]>) ois.readObject();
 
             for(String directoryKey: directoryList.keySet()){
@@ -134,30 +231,28 @@ public class Utilities {
     }
 
     public static void unzip(File zipFile, File targetDirectory) throws IOException {
-        ZipInputStream zis = new ZipInputStream(
-                new BufferedInputStream(new FileInputStream(zipFile)));
         try {
-            ZipEntry ze;
-            int count;
-            byte[] buffer = new byte[8192];
-            while ((ze = zis.getNextEntry()) != null) {
-                File file = new File(targetDirectory, ze.getName());
-                File dir = ze.isDirectory() ? file : file.getParentFile();
-                if (!dir.isDirectory() && !dir.mkdirs())
-                    throw new FileNotFoundException("Failed to ensure directory: " +
-                            dir.getAbsolutePath());
-                if (ze.isDirectory())
-                    continue;
-                FileOutputStream fout = new FileOutputStream(file);
-                try {
-                    while ((count = zis.read(buffer)) != -1)
-                        fout.write(buffer, 0, count);
-                } finally {
-                    fout.close();
-                }
-            }
-        } finally {
-            zis.close();
+            unzip(zipFile, targetDirectory, null);
+        } catch (NoSuchAlgorithmException e) {
+            // Should not happen, no digest is computed
+            throw new IOException(e);
         }
     }
+
+    /**
+     * Unzips the archive into the target directory, see {@link ZipExtractor}.
+     * @param fileHashes if not null, receives the SHA-256 of every extracted file, keyed by its path inside the archive.
+     *                   The hashes are computed from the bytes as they are written, without reading the files back.
+     */
+    public static void unzip(File zipFile, File targetDirectory, Map<String, String> fileHashes) throws IOException, NoSuchAlgorithmException {
+        ZipExtractor.extract(zipFile, targetDirectory, fileHashes);
+    }
+
+    /**
+     * Unzips the archive into the target directory, reporting the progress to the given handle and stopping when it is cancelled.
+     * The partial output of a cancelled extraction is deleted.
+     */
+    public static void unzip(File zipFile, File targetDirectory, Map<String, String> fileHashes, OperationHandle handle) throws IOException, NoSuchAlgorithmException {
+        ZipExtractor.extract(zipFile, targetDirectory, fileHashes, handle);
+    }
 }
@@ -0,0 +1,456 @@
+package com.microsoft.capacitor;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Extracts update archives through the zip central directory, inflating the entries in parallel, or sequentially
+ * from a stream while the archive is being downloaded.
+ */
+public class ZipExtractor {
+    private static final int BUFFER_SIZE = 1024 * 64;
+
+    private static ExecutorService extractionPool;
+
+    /**
+     * The files an extraction created or replaced and the directories it created, so that its output, and only
+     * its output, can be deleted again. Files of the target directory the extraction did not write are not recorded.
+     */
+    public static class ExtractedOutput {
+        /* filled by the extraction threads */
+        private final Set<File> writtenFiles = Collections.synchronizedSet(new HashSet<File>());
+        private final List<File> createdDirectories = Collections.synchronizedList(new ArrayList<File>());
+
+        /**
+         * Deletes the recorded files and directories, e.g. once the extracted package failed its verification.
+         * Must not be called while the extraction is running.
+         */
+        public void delete() {
+            synchronized (writtenFiles) {
+                for (File file : writtenFiles) {
+                    file.delete();
+                }
+            }
+            synchronized (createdDirectories) {
+                for (File createdDirectory : createdDirectories) {
+                    Utilities.deleteEntryRecursively(createdDirectory);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets the pool the entries of an archive are inflated on, see {@link CodePushExecutor#getExtractionPool()}.
+     * The pool is owned by the caller. Without a pool, the entries are inflated on the calling thread.
+     */
+    public static synchronized void setExtractionPool(ExecutorService pool) {
+        extractionPool = pool;
+    }
+
+    private static synchronized ExecutorService getExtractionPool() {
+        return extractionPool;
+    }
+
+    /**
+     * Extracts the archive into the target directory.
+     * @param fileHashes if not null, receives the SHA-256 of every extracted file, keyed by its path inside the archive
+     * @throws IOException if the archive can not be read, or if one of its entries points outside the target directory
+     */
+    public static void extract(File zipFile, File targetDirectory, Map<String, String> fileHashes) throws IOException, NoSuchAlgorithmException {
+        extract(zipFile, targetDirectory, fileHashes, null);
+    }
+
+    /**
+     * Extracts the archive into the target directory, reporting the progress to the given handle.
+     * If the handle is cancelled, the extraction stops and the files it wrote and the directories it created are
+     * deleted. Files of the target directory that no entry was written to yet are left as they were.
+     * @param handle the handle of the operation, or null
+     * @throws OperationHandle.OperationCancelledException if the handle was cancelled
+     */
+    public static void extract(File zipFile, File targetDirectory, Map<String, String> fileHashes, OperationHandle handle) throws IOException, NoSuchAlgorithmException {
+        if (handle != null) {
+            handle.checkCancelled();
+        }
+        final ZipFile archive = new ZipFile(zipFile);
+        /* keyed by the file each entry extracts to, so entries naming the same file, e.g. "a//b" and "a/b", are written once */
+        Map<File, ZipEntry> fileEntries = new LinkedHashMap<File, ZipEntry>();
+        ExtractedOutput output = new ExtractedOutput();
+        boolean succeeded = false;
+        try {
+            String canonicalTargetPath = targetDirectory.getCanonicalPath() + File.separator;
+
+            /* later entries with the same name replace earlier ones, like a sequential extraction would */
+            TreeSet<File> directories = new TreeSet<File>();
+            directories.add(targetDirectory);
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File file = resolveEntry(targetDirectory, canonicalTargetPath, entry);
+
+                if (entry.isDirectory()) {
+                    directories.add(file);
+                } else {
+                    directories.add(file.getParentFile());
+                    fileEntries.remove(file);
+                    fileEntries.put(file, entry);
+                }
+            }
+
+            for (File directory : directories) {
+                ensureDirectory(directory, output);
+            }
+
+            /* paths differing only by case may be the same file on some file systems, so they are extracted in archive order by one task */
+            Map<String, EntryExtraction> extractionsByPath = new LinkedHashMap<String, EntryExtraction>();
+            AtomicBoolean aborted = new AtomicBoolean(false);
+            for (Map.Entry<File, ZipEntry> fileEntry : fileEntries.entrySet()) {
+                String pathKey = fileEntry.getKey().getPath().toLowerCase(Locale.ROOT);
+                EntryExtraction extraction = extractionsByPath.get(pathKey);
+                if (extraction == null) {
+                    extraction = new EntryExtraction(archive, fileHashes != null, aborted, handle, output);
+                    extractionsByPath.put(pathKey, extraction);
+                }
+                extraction.add(fileEntry.getValue(), fileEntry.getKey());
+            }
+
+            /* the largest entries go first so that they do not end up alone on one thread at the end */
+            List<EntryExtraction> sortedExtractions = new ArrayList<EntryExtraction>(extractionsByPath.values());
+            Collections.sort(sortedExtractions, new Comparator<EntryExtraction>() {
+                @Override
+                public int compare(EntryExtraction first, EntryExtraction second) {
+                    return Long.compare(second.size, first.size);
+                }
+            });
+
+            if (handle != null) {
+                long totalBytes = 0;
+                for (EntryExtraction extraction : sortedExtractions) {
+                    totalBytes += extraction.size;
+                }
+                handle.setTotals(totalBytes, fileEntries.size());
+            }
+
+            ExecutorService pool = getExtractionPool();
+            List<Future<Map<String, String>>> extractions = new ArrayList<Future<Map<String, String>>>(sortedExtractions.size());
+            for (EntryExtraction extraction : sortedExtractions) {
+                extractions.add(submitExtraction(pool, extraction));
+            }
+
+            try {
+                for (Future<Map<String, String>> extraction : extractions) {
+                    Map<String, String> hashes = extraction.get();
+                    if (fileHashes != null) {
+                        fileHashes.putAll(hashes);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("The extraction was interrupted.", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof NoSuchAlgorithmException) {
+                    throw (NoSuchAlgorithmException) e.getCause();
+                } else if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+
+                throw new IOException(e.getCause());
+            } finally {
+                aborted.set(true);
+                awaitExtractions(extractions);
+            }
+
+            if (handle != null) {
+                handle.reportProgress();
+            }
+            succeeded = true;
+        } finally {
+            archive.close();
+            if (!succeeded && handle != null && handle.isCancelled()) {
+                /* the extraction threads have stopped, the recorded output no longer changes */
+                output.delete();
+            }
+        }
+    }
+
+    private static Future<Map<String, String>> submitExtraction(ExecutorService pool, EntryExtraction extraction) {
+        if (pool != null) {
+            try {
+                return pool.submit(extraction);
+            } catch (RejectedExecutionException e) {
+                /* the pool was shut down, the entry is extracted on the calling thread */
+            }
+        }
+
+        FutureTask<Map<String, String>> inlineExtraction = new FutureTask<Map<String, String>>(extraction);
+        inlineExtraction.run();
+        return inlineExtraction;
+    }
+
+    /**
+     * Waits for the extractions to stop, since the archive they read is closed on return.
+     * The interrupt status of the calling thread is kept.
+     */
+    private static void awaitExtractions(List<? extends Future<?>> extractions) {
+        boolean interrupted = false;
+        for (Future<?> extraction : extractions) {
+            while (true) {
+                try {
+                    extraction.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (Exception e) {
+                    /* already reported */
+                    break;
+                }
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Extracts an archive read sequentially from a stream, e.g. while it is being downloaded. The entries are
+     * extracted in archive order on the calling thread, a later entry naming the same file replaces the earlier one.
+     * If the extraction fails or is cancelled, the files it wrote and the directories it created are deleted.
+     * @param fileHashes if not null, receives the SHA-256 of every extracted file, keyed by its path inside the archive
+     * @param handle the handle of the operation, or null
+     * @param output receives the files and directories the extraction wrote, so the caller can delete them if the
+     *               extracted package then fails its verification
+     * @throws OperationHandle.OperationCancelledException if the handle was cancelled
+     * @throws IOException if the stream can not be read, or if one of the entries points outside the target directory
+     */
+    public static void extract(InputStream zipStream, File targetDirectory, Map<String, String> fileHashes, OperationHandle handle, ExtractedOutput output) throws IOException, NoSuchAlgorithmException {
+        ZipInputStream zis = new ZipInputStream(new BufferedInputStream(zipStream, BUFFER_SIZE));
+        boolean succeeded = false;
+        try {
+            ensureDirectory(targetDirectory, output);
+            String canonicalTargetPath = targetDirectory.getCanonicalPath() + File.separator;
+            /* the entry each file was last extracted from, entries naming the same file, e.g. "a//b" and "a/b", keep one hash */
+            Map<File, String> entryNames = new HashMap<File, String>();
+            byte[] buffer = UpdateHashUtils.getReadBuffer();
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (handle != null) {
+                    handle.checkCancelled();
+                }
+                File file = resolveEntry(targetDirectory, canonicalTargetPath, entry);
+                if (entry.isDirectory()) {
+                    ensureDirectory(file, output);
+                    continue;
+                }
+
+                ensureDirectory(file.getParentFile(), output);
+                MessageDigest messageDigest = fileHashes != null ? UpdateHashUtils.getMessageDigest() : null;
+                output.writtenFiles.add(file);
+                replaceFile(file);
+                FileOutputStream fout = new FileOutputStream(file);
+                try {
+                    int count;
+                    while ((count = zis.read(buffer)) != -1) {
+                        fout.write(buffer, 0, count);
+                        if (messageDigest != null) {
+                            messageDigest.update(buffer, 0, count);
+                        }
+                        if (handle != null) {
+                            handle.addBytes(count);
+                        }
+                    }
+                } finally {
+                    fout.close();
+                }
+
+                String previousEntryName = entryNames.put(file, entry.getName());
+                if (fileHashes != null) {
+                    if (previousEntryName != null) {
+                        fileHashes.remove(previousEntryName);
+                    }
+                    fileHashes.put(entry.getName(), UpdateHashUtils.formatHash(messageDigest.digest()));
+                }
+                if (handle != null) {
+                    handle.completeEntry();
+                }
+            }
+
+            if (handle != null) {
+                handle.reportProgress();
+            }
+            succeeded = true;
+        } finally {
+            try {
+                zis.close();
+            } finally {
+                if (!succeeded) {
+                    output.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Creates the directory if it is missing. The topmost missing directory is recorded, deleting it removes
+     * everything created below it.
+     */
+    private static void ensureDirectory(File directory, ExtractedOutput output) throws FileNotFoundException {
+        if (directory.isDirectory()) {
+            return;
+        }
+
+        File createdDirectory = directory;
+        while (createdDirectory.getParentFile() != null && !createdDirectory.getParentFile().exists()) {
+            createdDirectory = createdDirectory.getParentFile();
+        }
+        output.createdDirectories.add(createdDirectory);
+        if (!directory.mkdirs()) {
+            throw new FileNotFoundException("Failed to ensure directory: " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Returns the file an entry extracts to, as a canonical path, rejecting entries that would be written
+     * outside the target directory.
+     */
+    private static File resolveEntry(File targetDirectory, String canonicalTargetPath, ZipEntry entry) throws IOException {
+        String canonicalPath = new File(targetDirectory, entry.getName()).getCanonicalPath();
+        if (!(canonicalPath + (entry.isDirectory() ? File.separator : "")).startsWith(canonicalTargetPath)) {
+            throw new IOException("Invalid zip entry path: " + entry.getName());
+        }
+
+        return new File(canonicalPath);
+    }
+
+    /**
+     * Unlinks the file an entry is about to be written to. An existing file may be a hard link to a blob of the
+     * {@link PackageBlobStore}, shared with other packages, so it must be replaced rather than written through.
+     */
+    private static void replaceFile(File file) throws IOException {
+        if (file.exists() && !file.delete()) {
+            throw new IOException("Failed to replace file: " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Extracts one or more entries in order, on one thread. Several entries are only given when their
+     * paths may name the same file.
+     */
+    private static class EntryExtraction implements Callable<Map<String, String>> {
+        private final ZipFile archive;
+        private final boolean computeHash;
+        private final AtomicBoolean aborted;
+        private final OperationHandle handle;
+        private final ExtractedOutput output;
+        private final List<ZipEntry> entries = new ArrayList<ZipEntry>(1);
+        private final List<File> files = new ArrayList<File>(1);
+        long size;
+
+        EntryExtraction(ZipFile archive, boolean computeHash, AtomicBoolean aborted, OperationHandle handle, ExtractedOutput output) {
+            this.archive = archive;
+            this.computeHash = computeHash;
+            this.aborted = aborted;
+            this.handle = handle;
+            this.output = output;
+        }
+
+        void add(ZipEntry entry, File file) {
+            entries.add(entry);
+            files.add(file);
+            size += Math.max(entry.getSize(), 0);
+        }
+
+        @Override
+        public Map<String, String> call() throws IOException, NoSuchAlgorithmException {
+            Map<String, String> hashes = new HashMap<String, String>();
+            for (int i = 0; i < entries.size(); i++) {
+                if (aborted.get()) {
+                    break;
+                }
+                String hash = extractEntry(entries.get(i), files.get(i));
+                if (computeHash && hash != null) {
+                    hashes.put(entries.get(i).getName(), hash);
+                }
+            }
+
+            return hashes;
+        }
+
+        private String extractEntry(ZipEntry entry, File file) throws IOException, NoSuchAlgorithmException {
+            /* the digest and buffer of the pool thread are reused from one entry to the next */
+            MessageDigest messageDigest = computeHash ? UpdateHashUtils.getMessageDigest() : null;
+            byte[] buffer = UpdateHashUtils.getReadBuffer();
+            /* a cancelled extraction leaves the files it did not reach as they were */
+            if (handle != null) {
+                handle.checkCancelled();
+            }
+            output.writtenFiles.add(file);
+            replaceFile(file);
+            InputStream inputStream = archive.getInputStream(entry);
+            RandomAccessFile output = new RandomAccessFile(file, "rw");
+            try {
+                if (entry.getSize() >= 0) {
+                    output.setLength(entry.getSize());
+                }
+
+                long written = 0;
+                int count;
+                while ((count = inputStream.read(buffer)) != -1) {
+                    if (aborted.get()) {
+                        return null;
+                    }
+                    output.write(buffer, 0, count);
+                    if (messageDigest != null) {
+                        messageDigest.update(buffer, 0, count);
+                    }
+                    written += count;
+                    if (handle != null) {
+                        handle.addBytes(count);
+                    }
+                }
+
+                /* drop the preallocated bytes if the entry was smaller than announced */
+                output.setLength(written);
+                if (handle != null) {
+                    handle.completeEntry();
+                }
+            } finally {
+                try {
+                    output.close();
+                } finally {
+                    inputStream.close();
+                }
+            }
+
+            return messageDigest != null ? UpdateHashUtils.formatHash(messageDigest.digest()) : null;
+        }
+    }
+}
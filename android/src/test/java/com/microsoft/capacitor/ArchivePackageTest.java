@@ -0,0 +1,77 @@
+package com.microsoft.capacitor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public class ArchivePackageTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void rangesOfStoredAndDeflatedEntriesAreRead() throws Exception {
+        byte[] contents = new byte[200000];
+        for (int i = 0; i < contents.length; i++) {
+            contents[i] = (byte) (i * 31 % 251);
+        }
+        File zipFile = temporaryFolder.newFile("package.zip");
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(zipFile));
+        try {
+            ZipEntry stored = new ZipEntry("public/stored.mp4");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(contents.length);
+            CRC32 crc = new CRC32();
+            crc.update(contents);
+            stored.setCrc(crc.getValue());
+            zout.putNextEntry(stored);
+            zout.write(contents);
+            zout.closeEntry();
+            zout.putNextEntry(new ZipEntry("public/deflated.mp4"));
+            zout.write(contents);
+            zout.closeEntry();
+        } finally {
+            zout.close();
+        }
+
+        ArchivePackage archivePackage = ArchivePackage.open(zipFile);
+        try {
+            for (String name : new String[]{"public/stored.mp4", "public/deflated.mp4"}) {
+                assertArrayEquals(name, Arrays.copyOfRange(contents, 70000, 70100), read(archivePackage.openEntryRange(name, 70000, 70100)));
+                assertArrayEquals(name, Arrays.copyOfRange(contents, 150000, contents.length), read(archivePackage.openEntryRange(name, 150000, contents.length)));
+                assertArrayEquals(name, Arrays.copyOfRange(contents, 0, 1), read(archivePackage.openEntryRange(name, 0, 1)));
+            }
+            assertNull(archivePackage.openEntryRange("public/missing.mp4", 0, 1));
+        } finally {
+            archivePackage.close();
+        }
+    }
+
+    private static byte[] read(InputStream inputStream) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            inputStream.close();
+        }
+
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,192 @@
+package com.microsoft.capacitor;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.zip.DeflaterOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BinaryPatcherTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void appliesAPatchRoundTrip() throws Exception {
+        /* larger than the patcher buffer, with forward and backward seeks in the old file */
+        byte[] oldData = createData(200 * 1024, 1);
+        byte[] newData = new byte[230 * 1024];
+        System.arraycopy(oldData, 100 * 1024, newData, 0, 100 * 1024);
+        newData[10] ^= 0x55;
+        System.arraycopy(createData(30 * 1024, 2), 0, newData, 100 * 1024, 30 * 1024);
+        System.arraycopy(oldData, 0, newData, 130 * 1024, 100 * 1024);
+        byte[] patch = createPatch(oldData, newData,
+                new long[]{0, 0, 100 * 1024},
+                new long[]{100 * 1024, 30 * 1024, -200 * 1024},
+                new long[]{100 * 1024, 0, 0});
+
+        File newFile = applyPatch(oldData, patch, sha256(newData));
+
+        assertArrayEquals(newData, readFile(newFile));
+    }
+
+    @Test
+    public void patchedFileWithAnotherHashIsDeleted() throws Exception {
+        byte[] oldData = createData(1024, 1);
+        byte[] newData = createData(1024, 2);
+        byte[] patch = createPatch(oldData, newData, new long[]{1024, 0, 0});
+
+        try {
+            applyPatch(oldData, patch, sha256(oldData));
+            fail("the patched file should have failed the integrity check");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("data integrity check"));
+        }
+        assertFalse(new File(temporaryFolder.getRoot(), "new.bin").exists());
+    }
+
+    @Test
+    public void patchWithoutHashIsNotApplied() throws Exception {
+        byte[] oldData = createData(1024, 1);
+        byte[] patch = createPatch(oldData, oldData, new long[]{1024, 0, 0});
+
+        try {
+            applyPatch(oldData, patch, null);
+            fail("a patch without hash should be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("No hash"));
+        }
+        assertFalse(new File(temporaryFolder.getRoot(), "new.bin").exists());
+    }
+
+    @Test
+    public void patchWithAnotherFormatIsRejected() throws Exception {
+        byte[] oldData = createData(1024, 1);
+        byte[] patch = createPatch(oldData, oldData, new long[]{1024, 0, 0});
+        patch[7] = '2';
+
+        try {
+            applyPatch(oldData, patch, sha256(oldData));
+            fail("the patch format should be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Unsupported patch format"));
+        }
+        assertFalse(new File(temporaryFolder.getRoot(), "new.bin").exists());
+    }
+
+    private File applyPatch(byte[] oldData, byte[] patch, String expectedHash) throws Exception {
+        File oldFile = new File(temporaryFolder.getRoot(), "old.bin");
+        File patchFile = new File(temporaryFolder.getRoot(), "patch.bin");
+        File newFile = new File(temporaryFolder.getRoot(), "new.bin");
+        writeFile(oldFile, oldData);
+        writeFile(patchFile, patch);
+        BinaryPatcher.applyPatch(oldFile, patchFile, newFile, expectedHash);
+        return newFile;
+    }
+
+    /**
+     * Encodes a "CPDIFF01" patch turning the old data into the new data with the given control triples,
+     * each one holding the lengths of the diff and extra bytes and the seek in the old data.
+     */
+    static byte[] createPatch(byte[] oldData, byte[] newData, long[]... controls) throws IOException {
+        ByteArrayOutputStream control = new ByteArrayOutputStream();
+        ByteArrayOutputStream diff = new ByteArrayOutputStream();
+        ByteArrayOutputStream extra = new ByteArrayOutputStream();
+        int newPosition = 0;
+        int oldPosition = 0;
+        for (long[] triple : controls) {
+            for (long value : triple) {
+                control.write(encodeOffset(value));
+            }
+            for (int i = 0; i < triple[0]; i++) {
+                int position = oldPosition + i;
+                int oldByte = position >= 0 && position < oldData.length ? oldData[position] : 0;
+                diff.write(newData[newPosition + i] - oldByte);
+            }
+            extra.write(newData, newPosition + (int) triple[0], (int) triple[1]);
+            newPosition += triple[0] + triple[1];
+            oldPosition += triple[0] + triple[2];
+        }
+
+        byte[] controlBlock = deflate(control.toByteArray());
+        byte[] diffBlock = deflate(diff.toByteArray());
+        ByteArrayOutputStream patch = new ByteArrayOutputStream();
+        patch.write("CPDIFF01".getBytes("US-ASCII"));
+        patch.write(encodeOffset(controlBlock.length));
+        patch.write(encodeOffset(diffBlock.length));
+        patch.write(encodeOffset(newData.length));
+        patch.write(controlBlock);
+        patch.write(diffBlock);
+        patch.write(deflate(extra.toByteArray()));
+        return patch.toByteArray();
+    }
+
+    /**
+     * Encodes a bsdiff offset: 8 bytes little endian, the top bit of the last byte holding the sign.
+     */
+    private static byte[] encodeOffset(long value) {
+        byte[] bytes = new byte[8];
+        long magnitude = Math.abs(value);
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (magnitude >>> (8 * i));
+        }
+        if (value < 0) {
+            bytes[7] |= (byte) 0x80;
+        }
+        return bytes;
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        DeflaterOutputStream deflater = new DeflaterOutputStream(compressed);
+        deflater.write(data);
+        deflater.close();
+        return compressed.toByteArray();
+    }
+
+    static String sha256(byte[] data) throws Exception {
+        return UpdateHashUtils.formatHash(MessageDigest.getInstance("SHA-256").digest(data));
+    }
+
+    private static byte[] createData(int size, int seed) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ((i * 7 + seed) ^ (i >>> 9));
+        }
+        return data;
+    }
+
+    static void writeFile(File file, byte[] contents) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(contents);
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += inputStream.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,131 @@
+package com.microsoft.capacitor;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DiffUpdateUtilsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File currentPackageDir;
+    private File diffDirectory;
+    private File newPackageDir;
+    private File outsideFile;
+
+    @Before
+    public void createPackages() throws IOException {
+        currentPackageDir = temporaryFolder.newFolder("current");
+        writeFile(new File(currentPackageDir, "public/index.html"), "<html/>");
+        writeFile(new File(currentPackageDir, "public/js/app.js"), "old");
+        diffDirectory = temporaryFolder.newFolder("diff");
+        writeFile(new File(diffDirectory, "public/js/app.js"), "new");
+        newPackageDir = new File(temporaryFolder.getRoot(), "versions/new");
+        outsideFile = new File(temporaryFolder.getRoot(), "outside.txt");
+        writeFile(outsideFile, "keep");
+    }
+
+    @Test
+    public void buildsTheNewPackage() throws Exception {
+        writeManifest("{\"deletedFiles\":[\"public/index.html\"]}");
+
+        DiffUpdateUtils.applyDiffUpdate(currentPackageDir, null, diffDirectory, newPackageDir);
+
+        assertEquals("new", Utilities.readFileContents(new File(newPackageDir, "public/js/app.js")).trim());
+        assertFalse(new File(newPackageDir, "public/index.html").exists());
+        assertEquals("old", Utilities.readFileContents(new File(currentPackageDir, "public/js/app.js")).trim());
+    }
+
+    @Test
+    public void rejectsDeletedFilesOutsideThePackage() throws Exception {
+        writeManifest("{\"deletedFiles\":[\"../../outside.txt\"]}");
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsDeletingThePackageItself() throws Exception {
+        writeManifest("{\"deletedFiles\":[\".\"]}");
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsPatchedFilesOutsideThePackage() throws Exception {
+        writeManifest("{\"patchedFiles\":[{\"path\":\"../../outside.txt\",\"patch\":\"public/js/app.js\",\"hash\":\"0\"}]}");
+        assertRejected();
+    }
+
+    @Test
+    public void rejectsPatchesOutsideTheDiff() throws Exception {
+        writeManifest("{\"patchedFiles\":[{\"path\":\"public/js/app.js\",\"patch\":\"../outside.txt\",\"hash\":\"0\"}]}");
+        assertRejected();
+    }
+
+    @Test
+    public void appliesBinaryPatches() throws Exception {
+        byte[] oldData = "console.log('old');".getBytes("UTF-8");
+        byte[] newData = "console.log('new');\n".getBytes("UTF-8");
+        writeFile(new File(currentPackageDir, "public/js/app.js"), "console.log('old');");
+        new File(diffDirectory, "public/js/app.js").delete();
+        File patch = new File(diffDirectory, "patches/app.js.patch");
+        patch.getParentFile().mkdirs();
+        BinaryPatcherTest.writeFile(patch, BinaryPatcherTest.createPatch(oldData, newData, new long[]{oldData.length, 1, 0}));
+        writeManifest("{\"patchedFiles\":[{\"path\":\"public/js/app.js\",\"patch\":\"patches/app.js.patch\",\"hash\":\""
+                + BinaryPatcherTest.sha256(newData) + "\"}]}");
+
+        DiffUpdateUtils.applyDiffUpdate(currentPackageDir, null, diffDirectory, newPackageDir);
+
+        assertEquals("console.log('new');\n", Utilities.readFileContents(new File(newPackageDir, "public/js/app.js")));
+        assertEquals("console.log('old');", Utilities.readFileContents(new File(currentPackageDir, "public/js/app.js")).trim());
+        assertFalse(new File(newPackageDir, "patches/app.js.patch").exists());
+    }
+
+    @Test
+    public void rejectsPatchedFilesWithoutHash() throws Exception {
+        writeManifest("{\"patchedFiles\":[{\"path\":\"public/js/app.js\",\"patch\":\"public/js/app.js\"}]}");
+
+        try {
+            DiffUpdateUtils.applyDiffUpdate(currentPackageDir, null, diffDirectory, newPackageDir);
+            fail("a patched file without hash should be rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("The diff manifest has no hash"));
+        }
+        assertFalse("the partial package should be deleted", newPackageDir.exists());
+    }
+
+    private void assertRejected() throws Exception {
+        try {
+            DiffUpdateUtils.applyDiffUpdate(currentPackageDir, null, diffDirectory, newPackageDir);
+            fail("the diff manifest should have been rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Invalid path in the diff manifest"));
+        }
+
+        assertEquals("keep", Utilities.readFileContents(outsideFile).trim());
+        assertFalse("the partial package should be deleted", newPackageDir.exists());
+    }
+
+    private void writeManifest(String contents) throws IOException {
+        writeFile(new File(diffDirectory, DiffUpdateUtils.DIFF_MANIFEST_FILENAME), contents);
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        file.getParentFile().mkdirs();
+        FileOutputStream fout = new FileOutputStream(file);
+        try {
+            fout.write(contents.getBytes("UTF-8"));
+        } finally {
+            fout.close();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.microsoft.capacitor;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackageBlobStoreTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File filesDir;
+    private PackageBlobStore blobStore;
+
+    @Before
+    public void setUp() throws IOException {
+        filesDir = temporaryFolder.newFolder("files");
+        blobStore = new PackageBlobStore(filesDir);
+    }
+
+    @Test
+    public void identicalFilesShareOneBlob() throws Exception {
+        File firstPackage = writePackage("first", "<html/>");
+        File secondPackage = writePackage("second", "<html/>");
+
+        blobStore.internPackage(firstPackage, null);
+        blobStore.internPackage(secondPackage, null);
+
+        FileLinker fileLinker = Utilities.getFileLinker();
+        assertTrue(fileLinker.isSameFile(new File(firstPackage, "public/index.html"), new File(secondPackage, "public/index.html")));
+        assertEquals(3, fileLinker.getLinkCount(new File(firstPackage, "public/index.html")));
+    }
+
+    @Test
+    public void recordedHashesAreNotComputedAgain() throws Exception {
+        File packageDirectory = writePackage("package", "<html/>");
+        String localPath = "package";
+        UpdateHashUtils.getHashForPath(filesDir, localPath + "/public");
+        String recordedHash = UpdateHashUtils.getHashForFile(new File(packageDirectory, "public/index.html"));
+
+        /* same size and modification time, so only a re-read could notice the change */
+        File indexFile = new File(packageDirectory, "public/index.html");
+        long lastModified = indexFile.lastModified();
+        writeFile(indexFile, "<head/>");
+        indexFile.setLastModified(lastModified);
+
+        blobStore.internPackage(packageDirectory, PackageHashIndex.load(filesDir, localPath + "/public"));
+
+        assertTrue(new File(filesDir + PackageBlobStore.CODEPUSH_BLOBS_PATH, recordedHash).exists());
+    }
+
+    @Test
+    public void unusedBlobsAreCollected() throws Exception {
+        File packageDirectory = writePackage("package", "<html/>");
+        blobStore.internPackage(packageDirectory, null);
+
+        assertEquals(0, blobStore.collectGarbage());
+        Utilities.deleteEntryRecursively(packageDirectory);
+        assertEquals(1, blobStore.collectGarbage());
+        assertFalse(new File(filesDir + PackageBlobStore.CODEPUSH_BLOBS_PATH).list().length > 0);
+    }
+
+    @Test
+    public void linkingOverAnInternedFileLeavesItsBlobIntact() throws Exception {
+        File packageDirectory = writePackage("package", "<html/>");
+        blobStore.internPackage(packageDirectory, null);
+        File source = temporaryFolder.newFile("source.html");
+        writeFile(source, "<head/>");
+        File target = new File(packageDirectory, "public/index.html");
+
+        Utilities.linkOrCopyFile(source, target);
+
+        assertTrue(Utilities.getFileLinker().isSameFile(source, target));
+        File blob = new File(filesDir + PackageBlobStore.CODEPUSH_BLOBS_PATH).listFiles()[0];
+        assertEquals("<html/>", Utilities.readFileContents(blob).trim());
+    }
+
+    private File writePackage(String localPath, String indexContents) throws IOException {
+        File packageDirectory = new File(filesDir, localPath);
+        new File(packageDirectory, "public").mkdirs();
+        writeFile(new File(packageDirectory, "public/index.html"), indexContents);
+        return packageDirectory;
+    }
+
+    private static void writeFile(File file, String contents) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(contents.getBytes("UTF-8"));
+        } finally {
+            outputStream.close();
+        }
+    }
+}
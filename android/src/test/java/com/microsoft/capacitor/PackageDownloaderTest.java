@@ -0,0 +1,214 @@
+package com.microsoft.capacitor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Runs the downloader against a local HTTP server serving one package, which can cut a response short
+ * and change the package between two requests.
+ */
+public class PackageDownloaderTest {
+
+    private static final ProgressInputStream.Listener NO_PROGRESS = new ProgressInputStream.Listener() {
+        @Override
+        public void onProgress(long receivedBytes, long totalBytes) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String url;
+    private File file;
+
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+    private volatile byte[] content;
+    private volatile String etag;
+    private volatile boolean truncateNextResponse;
+    private volatile byte[] contentAfterTruncation;
+
+    @Before
+    public void setUp() throws IOException {
+        content = createContent(1000, 1);
+        etag = "\"v1\"";
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/update.zip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                servePackage(exchange);
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/update.zip";
+        file = new File(temporaryFolder.newFolder("download"), "update.zip");
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    @Test
+    public void downloadsTheWholePackage() throws Exception {
+        long totalBytes = download();
+
+        assertEquals(content.length, totalBytes);
+        assertArrayEquals(content, readFile(file));
+        assertEquals(Arrays.asList("none"), requests);
+        assertFalse(getStateFile().exists());
+    }
+
+    @Test
+    public void resumesFromTheLastReceivedByte() throws Exception {
+        truncateNextResponse = true;
+
+        download();
+
+        assertArrayEquals(content, readFile(file));
+        assertEquals(Arrays.asList("none", "bytes=500- if " + etag), requests);
+    }
+
+    @Test
+    public void startsOverWhenThePackageChangedSinceThePartialDownload() throws Exception {
+        truncateNextResponse = true;
+        contentAfterTruncation = createContent(800, 2);
+
+        download();
+
+        /* the If-Range validator no longer matches, so the server sends the whole new package */
+        assertArrayEquals(contentAfterTruncation, readFile(file));
+        assertEquals(Arrays.asList("none", "bytes=500- if \"v1\""), requests);
+    }
+
+    @Test
+    public void completePartialFileIsNotDownloadedAgain() throws Exception {
+        writePartialDownload(content, content.length);
+
+        long totalBytes = download();
+
+        assertEquals(content.length, totalBytes);
+        assertArrayEquals(content, readFile(file));
+        assertEquals(Arrays.asList("bytes=1000- if " + etag), requests);
+        assertFalse(getStateFile().exists());
+    }
+
+    @Test
+    public void unsatisfiableRangeStartsOver() throws Exception {
+        /* the partial file is longer than the package, so the range can not be served */
+        writePartialDownload(createContent(1500, 3), 2000);
+
+        download();
+
+        assertArrayEquals(content, readFile(file));
+        assertEquals(Arrays.asList("bytes=1500- if " + etag, "none"), requests);
+    }
+
+    private long download() throws IOException {
+        return new PackageDownloader(url, file, 0).download(NO_PROGRESS);
+    }
+
+    private void servePackage(HttpExchange exchange) throws IOException {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+        requests.add(range == null ? "none" : range + " if " + ifRange);
+
+        byte[] body = content;
+        exchange.getResponseHeaders().set("ETag", etag);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        int offset = 0;
+        if (range != null && etag.equals(ifRange)) {
+            offset = Integer.parseInt(range.substring("bytes=".length(), range.length() - 1));
+            if (offset >= body.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + body.length);
+                exchange.sendResponseHeaders(416, -1);
+                exchange.close();
+                return;
+            }
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + offset + "-" + (body.length - 1) + "/" + body.length);
+            exchange.sendResponseHeaders(206, body.length - offset);
+        } else {
+            exchange.sendResponseHeaders(200, body.length);
+        }
+
+        OutputStream responseBody = exchange.getResponseBody();
+        if (truncateNextResponse) {
+            truncateNextResponse = false;
+            responseBody.write(body, offset, (body.length - offset) / 2);
+            responseBody.flush();
+            if (contentAfterTruncation != null) {
+                content = contentAfterTruncation;
+                etag = "\"v2\"";
+            }
+            /* the server closes the connection of a failed exchange, in the middle of the body */
+            throw new IOException("Dropping the connection.");
+        }
+
+        responseBody.write(body, offset, body.length - offset);
+        exchange.close();
+    }
+
+    private void writePartialDownload(byte[] partialContent, long totalBytes) throws Exception {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(partialContent);
+        } finally {
+            outputStream.close();
+        }
+
+        JSONObject state = new JSONObject();
+        state.put("url", url);
+        state.put("etag", etag);
+        state.put("totalBytes", totalBytes);
+        Utilities.writeFileAtomically(getStateFile(), state.toString());
+    }
+
+    private File getStateFile() {
+        return new File(file.getPath() + ".download.json");
+    }
+
+    private static byte[] createContent(int size, int seed) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (i * 31 + seed);
+        }
+        return bytes;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += inputStream.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            inputStream.close();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,339 @@
+package com.microsoft.capacitor;
+
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Interrupts every transition after each of its steps, then checks that recovering it, possibly interrupted
+ * again, ends in the same state as a transition that was not interrupted.
+ */
+public class PackageStateJournalTest {
+
+    private static final String OLD_PACKAGE_PATH = "codepush/deploy/versions/old";
+    private static final String NEW_PACKAGE_PATH = "codepush/deploy/versions/new";
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File filesDir;
+    private File currentFile;
+    private File oldFile;
+    private File journalFile;
+    private FakePackageState packageState;
+
+    @Before
+    public void setUp() throws IOException {
+        filesDir = temporaryFolder.newFolder("files");
+        currentFile = new File(filesDir + CodePushPackageManager.CODEPUSH_CURRENT_PACKAGE_PATH);
+        oldFile = new File(filesDir + CodePushPackageManager.CODEPUSH_OLD_PACKAGE_PATH);
+        journalFile = new File(filesDir + PackageStateJournal.CODEPUSH_JOURNAL_PATH);
+        packageState = new FakePackageState();
+    }
+
+    @Test
+    public void revertIsCompletedAfterAnyInterruption() throws Exception {
+        int stepCount = countRevertSteps();
+        for (int crashStep = 1; crashStep <= stepCount; crashStep++) {
+            for (int recoveryCrashStep = 1; recoveryCrashStep <= stepCount + 1; recoveryCrashStep++) {
+                String scenario = "crash after step " + crashStep + ", then after recovery step " + recoveryCrashStep;
+                setUpRevert();
+
+                runCrashing(crashStep, new Transition() {
+                    @Override
+                    public void run(PackageStateJournal journal, PackageStateJournal.StepListener listener) {
+                        journal.revert();
+                    }
+                });
+                recoverCrashing(recoveryCrashStep);
+                recover();
+
+                assertReverted(scenario);
+            }
+        }
+    }
+
+    @Test
+    public void revertWithoutInterruption() throws Exception {
+        setUpRevert();
+
+        newJournal().revert();
+
+        assertReverted("no crash");
+    }
+
+    @Test
+    public void installIsRolledBackWhenInterruptedBeforeActivation() throws Exception {
+        for (int crashStep = 1; crashStep <= 3; crashStep++) {
+            for (int recoveryCrashStep = 1; recoveryCrashStep <= 3; recoveryCrashStep++) {
+                String scenario = "crash after step " + crashStep + ", then after recovery step " + recoveryCrashStep;
+                setUpInstall();
+
+                runCrashing(crashStep, install(InstallMode.ON_NEXT_RESTART));
+                recoverCrashing(recoveryCrashStep);
+                recover();
+
+                assertEquals(scenario, OLD_PACKAGE_PATH, readLocalPath(currentFile));
+                assertFalse(scenario, oldFile.exists());
+                assertFalse(scenario, new File(filesDir, NEW_PACKAGE_PATH).exists());
+                assertTrue(scenario, new File(filesDir, OLD_PACKAGE_PATH).exists());
+                assertNull(scenario, packageState.durablePendingInstall);
+                assertFalse(scenario, packageState.durableNeedsConfirmation);
+                assertFalse(scenario, journalFile.exists());
+            }
+        }
+    }
+
+    @Test
+    public void pendingInstallIsActivatedWhenInterruptedAfterActivation() throws Exception {
+        /* steps 4 and 5 are the recorded activation and the flushed package state */
+        for (int crashStep = 4; crashStep <= 6; crashStep++) {
+            for (int recoveryCrashStep = 1; recoveryCrashStep <= 2; recoveryCrashStep++) {
+                String scenario = "crash after step " + crashStep + ", then after recovery step " + recoveryCrashStep;
+                setUpInstall();
+
+                runCrashing(crashStep, install(InstallMode.ON_NEXT_RESTART));
+                recoverCrashing(recoveryCrashStep);
+                recover();
+
+                assertInstalled(scenario);
+                assertEquals(scenario, InstallMode.ON_NEXT_RESTART, packageState.durablePendingInstall.installMode);
+                assertEquals(scenario, 30, packageState.durablePendingInstall.minimumBackgroundDuration);
+                assertFalse(scenario, packageState.durableNeedsConfirmation);
+            }
+        }
+    }
+
+    @Test
+    public void immediateInstallNeedsConfirmationWhenInterruptedAfterActivation() throws Exception {
+        for (int crashStep = 4; crashStep <= 6; crashStep++) {
+            String scenario = "crash after step " + crashStep;
+            setUpInstall();
+
+            runCrashing(crashStep, install(InstallMode.IMMEDIATE));
+            recover();
+
+            assertInstalled(scenario);
+            assertTrue(scenario, packageState.durableNeedsConfirmation);
+            assertNull(scenario, packageState.durablePendingInstall);
+        }
+    }
+
+    @Test
+    public void throwingStepIsRecoveredLikeACrash() throws Exception {
+        setUpRevert();
+        PackageStateJournal journal = newJournal();
+        journal.setStepListener(new PackageStateJournal.StepListener() {
+            @Override
+            public void onStepCompleted(String step) {
+                if ("packageRestored".equals(step)) {
+                    throw new IllegalStateException(step);
+                }
+            }
+        });
+
+        try {
+            journal.revert();
+        } catch (IllegalStateException e) {
+            /* expected */
+        }
+        /* the process goes on, nothing in memory is lost */
+        newJournal().recover();
+
+        assertReverted("exception after restoring the package");
+    }
+
+    private interface Transition {
+        void run(PackageStateJournal journal, PackageStateJournal.StepListener listener) throws Exception;
+    }
+
+    /**
+     * The install as the JavaScript side runs it: the package information files are swapped between the two native calls.
+     */
+    private Transition install(final InstallMode installMode) {
+        return new Transition() {
+            @Override
+            public void run(PackageStateJournal journal, PackageStateJournal.StepListener listener) throws Exception {
+                journal.beginInstall(NEW_PACKAGE_PATH);
+                Utilities.writeFileAtomically(oldFile, Utilities.readFileContents(currentFile));
+                listener.onStepCompleted("backedUp");
+                writeMetadata(currentFile, NEW_PACKAGE_PATH, "newHash");
+                listener.onStepCompleted("metadataWritten");
+                journal.activateInstall(NEW_PACKAGE_PATH, new InstallOptions(installMode, 30));
+            }
+        };
+    }
+
+    private void setUpRevert() throws Exception {
+        resetFiles();
+        writeMetadata(currentFile, NEW_PACKAGE_PATH, "newHash");
+        writeMetadata(oldFile, OLD_PACKAGE_PATH, "oldHash");
+        packageState = new FakePackageState();
+        packageState.markInstallNeedsConfirmation();
+        packageState.flush();
+    }
+
+    private void setUpInstall() throws Exception {
+        resetFiles();
+        writeMetadata(currentFile, OLD_PACKAGE_PATH, "oldHash");
+        packageState = new FakePackageState();
+    }
+
+    private void resetFiles() throws IOException {
+        Utilities.deleteEntryRecursively(new File(filesDir, "codepush"));
+        assertTrue(new File(filesDir, NEW_PACKAGE_PATH + "/public").mkdirs());
+        assertTrue(new File(filesDir, OLD_PACKAGE_PATH + "/public").mkdirs());
+    }
+
+    private void assertReverted(String scenario) throws Exception {
+        assertEquals(scenario, OLD_PACKAGE_PATH, readLocalPath(currentFile));
+        assertFalse(scenario, oldFile.exists());
+        assertFalse(scenario, new File(filesDir, NEW_PACKAGE_PATH).exists());
+        assertTrue(scenario, new File(filesDir, OLD_PACKAGE_PATH).exists());
+        assertEquals(scenario, Integer.valueOf(1), packageState.failureCounts.get("newHash"));
+        assertFalse(scenario, packageState.durableNeedsConfirmation);
+        assertFalse(scenario, journalFile.exists());
+    }
+
+    private void assertInstalled(String scenario) throws Exception {
+        assertEquals(scenario, NEW_PACKAGE_PATH, readLocalPath(currentFile));
+        assertEquals(scenario, OLD_PACKAGE_PATH, readLocalPath(oldFile));
+        assertTrue(scenario, new File(filesDir, NEW_PACKAGE_PATH).exists());
+        assertFalse(scenario, journalFile.exists());
+    }
+
+    private int countRevertSteps() throws Exception {
+        setUpRevert();
+        final int[] steps = new int[1];
+        PackageStateJournal journal = newJournal();
+        journal.setStepListener(new PackageStateJournal.StepListener() {
+            @Override
+            public void onStepCompleted(String step) {
+                steps[0]++;
+            }
+        });
+        journal.revert();
+        return steps[0];
+    }
+
+    /**
+     * Runs the transition until the given step completes, then loses everything the fake package state did not flush.
+     */
+    private void runCrashing(int crashStep, Transition transition) throws Exception {
+        PackageStateJournal journal = newJournal();
+        CrashingListener listener = new CrashingListener(crashStep);
+        journal.setStepListener(listener);
+        try {
+            transition.run(journal, listener);
+        } catch (SimulatedCrash e) {
+            /* the process ended */
+        }
+        packageState.crash();
+    }
+
+    private void recoverCrashing(int crashStep) throws Exception {
+        runCrashing(crashStep, new Transition() {
+            @Override
+            public void run(PackageStateJournal journal, PackageStateJournal.StepListener listener) {
+                journal.recover();
+            }
+        });
+    }
+
+    private void recover() {
+        newJournal().recover();
+    }
+
+    private PackageStateJournal newJournal() {
+        return new PackageStateJournal(filesDir, packageState, new PackageTrash(filesDir));
+    }
+
+    private static void writeMetadata(File file, String localPath, String packageHash) throws Exception {
+        JSONObject metadata = new JSONObject();
+        metadata.put(CodePushPackageMetadata.JsonField.LocalPath, localPath);
+        metadata.put(CodePushPackageMetadata.JsonField.PackageHash, packageHash);
+        file.getParentFile().mkdirs();
+        Utilities.writeFileAtomically(file, metadata.toString());
+    }
+
+    private static String readLocalPath(File file) {
+        CodePushPackageMetadata metadata = CodePushPackageMetadata.getPackageMetadata(file.getPath());
+        return metadata != null ? metadata.localPath : null;
+    }
+
+    private static class SimulatedCrash extends RuntimeException {
+    }
+
+    private static class CrashingListener implements PackageStateJournal.StepListener {
+        private final int crashStep;
+        private int completedSteps;
+
+        CrashingListener(int crashStep) {
+            this.crashStep = crashStep;
+        }
+
+        @Override
+        public void onStepCompleted(String step) {
+            if (++completedSteps == crashStep) {
+                throw new SimulatedCrash();
+            }
+        }
+    }
+
+    /**
+     * Package state whose changes are lost on a crash unless they were flushed, like the state store.
+     */
+    private static class FakePackageState implements PackageStateJournal.PackageState {
+        boolean needsConfirmation;
+        InstallOptions pendingInstall;
+        boolean durableNeedsConfirmation;
+        InstallOptions durablePendingInstall;
+        final Map<String, Long> lastFailureTimes = new HashMap<String, Long>();
+        final Map<String, Integer> failureCounts = new HashMap<String, Integer>();
+
+        @Override
+        public void saveRevertedUpdate(String packageHash, long failureTime) {
+            Long lastFailureTime = lastFailureTimes.get(packageHash);
+            if (lastFailureTime == null || lastFailureTime != failureTime) {
+                lastFailureTimes.put(packageHash, failureTime);
+                Integer failureCount = failureCounts.get(packageHash);
+                failureCounts.put(packageHash, failureCount == null ? 1 : failureCount + 1);
+            }
+            needsConfirmation = false;
+            flush();
+        }
+
+        @Override
+        public void markInstallNeedsConfirmation() {
+            needsConfirmation = true;
+        }
+
+        @Override
+        public void savePendingInstall(InstallOptions installOptions) {
+            pendingInstall = installOptions;
+        }
+
+        @Override
+        public void flush() {
+            durableNeedsConfirmation = needsConfirmation;
+            durablePendingInstall = pendingInstall;
+        }
+
+        void crash() {
+            needsConfirmation = durableNeedsConfirmation;
+            pendingInstall = durablePendingInstall;
+        }
+    }
+}
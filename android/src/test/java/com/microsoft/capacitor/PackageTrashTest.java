@@ -0,0 +1,75 @@
+package com.microsoft.capacitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PackageTrashTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File filesDir;
+    private PackageTrash packageTrash;
+    private ThreadPoolExecutor deletionPool;
+
+    @Before
+    public void setUp() throws IOException {
+        filesDir = temporaryFolder.newFolder("files");
+        packageTrash = new PackageTrash(filesDir);
+        deletionPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(4);
+        PackageTrash.setDeletionPool(deletionPool);
+    }
+
+    @After
+    public void tearDown() {
+        PackageTrash.setDeletionPool(null);
+        deletionPool.shutdown();
+    }
+
+    @Test
+    public void filesAreDeletedOnTheGivenPool() throws Exception {
+        File packageDirectory = writePackage("package", 512);
+
+        assertTrue(packageTrash.moveToTrash(packageDirectory));
+        packageTrash.empty();
+
+        assertFalse(packageDirectory.exists());
+        assertEquals(0, packageTrash.getTrashDirectory().list().length);
+        assertEquals(4, deletionPool.getCompletedTaskCount());
+    }
+
+    @Test
+    public void filesAreDeletedOnTheCallingThreadOnceThePoolIsShutDown() throws Exception {
+        File packageDirectory = writePackage("package", 512);
+        deletionPool.shutdown();
+
+        packageTrash.moveToTrash(packageDirectory);
+        packageTrash.empty();
+
+        assertEquals(0, packageTrash.getTrashDirectory().list().length);
+    }
+
+    private File writePackage(String name, int fileCount) throws IOException {
+        File packageDirectory = new File(filesDir, name);
+        for (int i = 0; i < fileCount; i++) {
+            File file = new File(packageDirectory, "public/" + (i % 8) + "/file" + i + ".js");
+            file.getParentFile().mkdirs();
+            Utilities.writeFileAtomically(file, "file " + i);
+        }
+
+        return packageDirectory;
+    }
+}
@@ -0,0 +1,254 @@
+package com.microsoft.capacitor;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the streaming downloader against a local HTTP server serving one archive, which can cut the response
+ * short or send it slowly.
+ */
+public class StreamingPackageDownloaderTest {
+
+    private static final int SLOW_CHUNK_SIZE = 4 * 1024;
+    private static final int SLOW_CHUNK_DELAY_MS = 50;
+
+    private static final ProgressInputStream.Listener NO_PROGRESS = new ProgressInputStream.Listener() {
+        @Override
+        public void onProgress(long receivedBytes, long totalBytes) {
+        }
+    };
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private HttpServer server;
+    private String url;
+    private File targetDirectory;
+    private File existingFile;
+
+    private volatile byte[] archive;
+    /* the response closes the connection after this many bytes */
+    private volatile int cutAfterBytes = -1;
+    /* the response is sent in small chunks, until the test ends */
+    private volatile boolean sendSlowly;
+    private final CountDownLatch testFinished = new CountDownLatch(1);
+
+    @Before
+    public void setUp() throws IOException {
+        archive = createArchive(false);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/update.zip", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                serveArchive(exchange);
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort() + "/update.zip";
+
+        targetDirectory = temporaryFolder.newFolder("unzipped");
+        existingFile = new File(targetDirectory, "existing.txt");
+        Utilities.writeFileAtomically(existingFile, "kept");
+    }
+
+    @After
+    public void tearDown() {
+        testFinished.countDown();
+        server.stop(0);
+    }
+
+    @Test
+    public void fullUpdateHasTheHashOfItsExtraction() throws Exception {
+        String expectedHash = getExtractedHash(archive);
+
+        StreamingPackageDownloader.Result result = newDownloader(expectedHash).download(newHandle(), NO_PROGRESS);
+
+        assertEquals(expectedHash, result.packageHash);
+        assertFalse(result.isDiffUpdate);
+        assertTrue(new File(targetDirectory, "public/js/app.js").isFile());
+        assertTrue(existingFile.exists());
+    }
+
+    @Test
+    public void fullUpdateWithAnotherHashIsDeleted() throws Exception {
+        try {
+            newDownloader("0000").download(newHandle(), NO_PROGRESS);
+            fail("the package should have failed the integrity check");
+        } catch (StreamingPackageDownloader.IntegrityException e) {
+            /* expected */
+        }
+
+        assertOnlyExistingFileLeft();
+    }
+
+    @Test
+    public void diffUpdateIsVerifiedOnceApplied() throws Exception {
+        archive = createArchive(true);
+
+        StreamingPackageDownloader.Result result = newDownloader("0000").download(newHandle(), NO_PROGRESS);
+
+        assertTrue(result.isDiffUpdate);
+        assertTrue(new File(targetDirectory, DiffUpdateUtils.DIFF_MANIFEST_FILENAME).isFile());
+    }
+
+    @Test
+    public void truncatedDownloadIsDeleted() throws Exception {
+        cutAfterBytes = archive.length / 2;
+
+        try {
+            newDownloader(getExtractedHash(archive)).download(newHandle(), NO_PROGRESS);
+            fail("the download should have failed");
+        } catch (StreamingPackageDownloader.IntegrityException e) {
+            fail("a truncated download is not an integrity failure");
+        } catch (IOException e) {
+            /* expected */
+        }
+
+        assertOnlyExistingFileLeft();
+    }
+
+    @Test
+    public void cancellationStopsASlowDownload() throws Exception {
+        sendSlowly = true;
+        final OperationHandle handle = newHandle();
+        final Thread cancellingThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                handle.cancel();
+            }
+        });
+        ProgressInputStream.Listener cancelOnProgress = new ProgressInputStream.Listener() {
+            @Override
+            public void onProgress(long receivedBytes, long totalBytes) {
+                if (receivedBytes > 0 && cancellingThread.getState() == Thread.State.NEW) {
+                    cancellingThread.start();
+                }
+            }
+        };
+
+        long start = System.currentTimeMillis();
+        try {
+            newDownloader(getExtractedHash(archive)).download(handle, cancelOnProgress);
+            fail("the download should have been cancelled");
+        } catch (OperationHandle.OperationCancelledException e) {
+            /* expected */
+        }
+
+        /* well before the whole archive arrived */
+        assertTrue(System.currentTimeMillis() - start < 10 * 1000);
+        assertOnlyExistingFileLeft();
+    }
+
+    private StreamingPackageDownloader newDownloader(String expectedHash) {
+        return new StreamingPackageDownloader(url, targetDirectory, expectedHash, 0);
+    }
+
+    private static OperationHandle newHandle() {
+        return new OperationHandle(null, 0);
+    }
+
+    private void assertOnlyExistingFileLeft() {
+        assertTrue(existingFile.exists());
+        assertEquals(1, targetDirectory.list().length);
+    }
+
+    private void serveArchive(HttpExchange exchange) throws IOException {
+        byte[] body = archive;
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream outputStream = exchange.getResponseBody();
+        try {
+            if (sendSlowly) {
+                for (int offset = 0; offset < body.length && testFinished.getCount() > 0; offset += SLOW_CHUNK_SIZE) {
+                    outputStream.write(body, offset, Math.min(SLOW_CHUNK_SIZE, body.length - offset));
+                    outputStream.flush();
+                    try {
+                        testFinished.await(SLOW_CHUNK_DELAY_MS, TimeUnit.MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            } else if (cutAfterBytes >= 0) {
+                outputStream.write(body, 0, cutAfterBytes);
+            } else {
+                outputStream.write(body);
+            }
+        } finally {
+            /* closes the connection short of the announced length when the response was cut */
+            exchange.close();
+        }
+    }
+
+    private String getExtractedHash(byte[] archiveBytes) throws Exception {
+        File zipFile = temporaryFolder.newFile("expected.zip");
+        FileOutputStream fout = new FileOutputStream(zipFile);
+        try {
+            fout.write(archiveBytes);
+        } finally {
+            fout.close();
+        }
+
+        Map<String, String> fileHashes = new HashMap<String, String>();
+        ZipExtractor.extract(zipFile, temporaryFolder.newFolder("expected"), fileHashes);
+        return UpdateHashUtils.getHashForExtractedFiles(fileHashes, new ArrayList<String>());
+    }
+
+    /**
+     * Builds an archive large enough to arrive in several reads, with incompressible contents.
+     */
+    private static byte[] createArchive(boolean isDiffUpdate) throws IOException {
+        Random random = new Random(1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream zout = new ZipOutputStream(bytes);
+        try {
+            if (isDiffUpdate) {
+                zout.putNextEntry(new ZipEntry(DiffUpdateUtils.DIFF_MANIFEST_FILENAME));
+                zout.write("{\"deletedFiles\":[]}".getBytes("UTF-8"));
+                zout.closeEntry();
+            }
+            for (String name : new String[]{"public/index.html", "public/js/app.js", "public/js/vendor.js"}) {
+                byte[] contents = new byte[256 * 1024];
+                random.nextBytes(contents);
+                zout.putNextEntry(new ZipEntry(name));
+                zout.write(contents);
+                zout.closeEntry();
+            }
+        } finally {
+            zout.close();
+        }
+
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,82 @@
+package com.microsoft.capacitor;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that the hashing paths of {@link UpdateHashUtils} give the hashes of a plain SHA-256 over the file.
+ * Their performance is measured by the benchmarks of the benchmark module.
+ */
+public class UpdateHashUtilsTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @After
+    public void restoreMemoryMapping() {
+        UpdateHashUtils.setMemoryMappingThreshold(1024 * 1024);
+    }
+
+    @Test
+    public void bufferedHashIsThePlainDigest() throws Exception {
+        UpdateHashUtils.setMemoryMappingThreshold(-1);
+        /* not multiples of the read buffer size, and hashed twice to reuse the per-thread digest and buffer */
+        for (File file : new File[]{writeFile("empty", 0), writeFile("small", 4 * 1024 + 7), writeFile("large", 4 * 1024 * 1024 + 12345)}) {
+            assertEquals(computePlainHash(file), UpdateHashUtils.getHashForFile(file));
+            assertEquals(computePlainHash(file), UpdateHashUtils.getHashForFile(file));
+        }
+    }
+
+    @Test
+    public void memoryMappedHashIsTheBufferedHash() throws Exception {
+        /* spans two mapping windows, and is not a multiple of the read buffer size */
+        for (File file : new File[]{writeFile("large", 32 * 1024 * 1024 + 12345), writeFile("small", 100)}) {
+            UpdateHashUtils.setMemoryMappingThreshold(-1);
+            String streamHash = UpdateHashUtils.getHashForFile(file);
+            UpdateHashUtils.setMemoryMappingThreshold(0);
+            assertEquals(streamHash, UpdateHashUtils.getHashForFile(file));
+        }
+    }
+
+    private static String computePlainHash(File file) throws Exception {
+        MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+        InputStream dataStream = new DigestInputStream(new FileInputStream(file), messageDigest);
+        try {
+            byte[] byteBuffer = new byte[1024 * 8];
+            while (dataStream.read(byteBuffer) != -1);
+        } finally {
+            dataStream.close();
+        }
+
+        return String.format("%064x", new BigInteger(1, messageDigest.digest()));
+    }
+
+    private File writeFile(String name, int size) throws IOException {
+        Random random = new Random(size);
+        byte[] contents = new byte[size];
+        random.nextBytes(contents);
+        File file = temporaryFolder.newFile(name);
+        FileOutputStream fout = new FileOutputStream(file);
+        try {
+            fout.write(contents);
+        } finally {
+            fout.close();
+        }
+
+        return file;
+    }
+}
@@ -0,0 +1,172 @@
+package com.microsoft.capacitor;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ZipExtractorTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static ExecutorService extractionPool;
+
+    @BeforeClass
+    public static void setUpExtractionPool() {
+        extractionPool = Executors.newFixedThreadPool(4);
+        ZipExtractor.setExtractionPool(extractionPool);
+    }
+
+    @AfterClass
+    public static void tearDownExtractionPool() {
+        ZipExtractor.setExtractionPool(null);
+        extractionPool.shutdown();
+    }
+
+    @Test
+    public void entriesNamingTheSameFileAreWrittenOnce() throws Exception {
+        File zipFile = writeZip(
+                "public/js/app.js", "first",
+                "public/js//app.js", "second",
+                "public/index.html", "<html/>");
+        File targetDirectory = temporaryFolder.newFolder("target");
+        Map<String, String> fileHashes = new HashMap<String, String>();
+
+        ZipExtractor.extract(zipFile, targetDirectory, fileHashes);
+
+        assertEquals("second", Utilities.readFileContents(new File(targetDirectory, "public/js/app.js")).trim());
+        assertEquals(2, fileHashes.size());
+        assertEquals(UpdateHashUtils.getHashForFile(new File(targetDirectory, "public/js/app.js")), fileHashes.get("public/js//app.js"));
+    }
+
+    @Test
+    public void pathsDifferingByCaseAreExtractedInArchiveOrder() throws Exception {
+        File zipFile = writeZip(
+                "public/Logo.png", "upper",
+                "public/logo.png", "lower");
+        File targetDirectory = temporaryFolder.newFolder("target");
+
+        ZipExtractor.extract(zipFile, targetDirectory, null);
+
+        /* on a case-insensitive file system both name the same file, and the later entry wins */
+        assertEquals("lower", Utilities.readFileContents(new File(targetDirectory, "public/logo.png")).trim());
+    }
+
+    @Test
+    public void entriesOutsideTheTargetDirectoryAreRejected() throws Exception {
+        File zipFile = writeZip("public/../../escaped.js", "escaped");
+        File targetDirectory = temporaryFolder.newFolder("target");
+
+        try {
+            ZipExtractor.extract(zipFile, targetDirectory, null);
+            fail("the entry should have been rejected");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("Invalid zip entry path"));
+        }
+        assertFalse(new File(temporaryFolder.getRoot(), "escaped.js").exists());
+    }
+
+    @Test
+    public void hardLinkedFilesAreReplacedRatherThanWrittenThrough() throws Exception {
+        File zipFile = writeZip("public/index.html", "<html>new</html>");
+        File targetDirectory = temporaryFolder.newFolder("target");
+        File blob = temporaryFolder.newFile("blob");
+        Utilities.writeFileAtomically(blob, "<html>old</html>");
+        new File(targetDirectory, "public").mkdirs();
+        Utilities.getFileLinker().link(blob, new File(targetDirectory, "public/index.html"));
+
+        ZipExtractor.extract(zipFile, targetDirectory, null);
+
+        assertEquals("<html>new</html>", Utilities.readFileContents(new File(targetDirectory, "public/index.html")).trim());
+        assertEquals("<html>old</html>", Utilities.readFileContents(blob).trim());
+    }
+
+    @Test
+    public void entriesAreExtractedOnTheCallingThreadOnceThePoolIsShutDown() throws Exception {
+        File zipFile = writeZip(
+                "public/index.html", "<html/>",
+                "public/js/app.js", "app");
+        File targetDirectory = temporaryFolder.newFolder("target");
+        Map<String, String> fileHashes = new HashMap<String, String>();
+        ExecutorService shutDownPool = Executors.newFixedThreadPool(2);
+        shutDownPool.shutdown();
+        ZipExtractor.setExtractionPool(shutDownPool);
+        try {
+            ZipExtractor.extract(zipFile, targetDirectory, fileHashes);
+        } finally {
+            ZipExtractor.setExtractionPool(extractionPool);
+        }
+
+        assertEquals("app", Utilities.readFileContents(new File(targetDirectory, "public/js/app.js")).trim());
+        assertEquals(2, fileHashes.size());
+    }
+
+    @Test
+    public void cancellationDeletesOnlyTheFilesItWrote() throws Exception {
+        StringBuilder large = new StringBuilder();
+        while (large.length() < 1024 * 1024) {
+            large.append("var app = {};\n");
+        }
+        File zipFile = writeZip(
+                "public/js/app.js", large.toString(),
+                "public/index.html", "<html>new</html>");
+        File targetDirectory = temporaryFolder.newFolder("target");
+        File existingFile = new File(targetDirectory, "public/index.html");
+        existingFile.getParentFile().mkdirs();
+        Utilities.writeFileAtomically(existingFile, "<html>old</html>");
+        final OperationHandle[] handle = new OperationHandle[1];
+        handle[0] = new OperationHandle(new OperationHandle.Listener() {
+            @Override
+            public void onProgress(long bytesDone, long totalBytes, int entriesDone, int totalEntries) {
+                handle[0].cancel();
+            }
+        }, 0);
+
+        /* on the calling thread, the largest entry first, so the extraction is cancelled before it reaches index.html */
+        ZipExtractor.setExtractionPool(null);
+        try {
+            ZipExtractor.extract(zipFile, targetDirectory, null, handle[0]);
+            fail("the extraction should have been cancelled");
+        } catch (OperationHandle.OperationCancelledException e) {
+            /* expected */
+        } finally {
+            ZipExtractor.setExtractionPool(extractionPool);
+        }
+
+        assertFalse(new File(targetDirectory, "public/js").exists());
+        assertEquals("<html>old</html>", Utilities.readFileContents(existingFile).trim());
+    }
+
+    private File writeZip(String... namesAndContents) throws IOException {
+        File zipFile = temporaryFolder.newFile("package.zip");
+        ZipOutputStream zout = new ZipOutputStream(new FileOutputStream(zipFile));
+        try {
+            for (int i = 0; i < namesAndContents.length; i += 2) {
+                zout.putNextEntry(new ZipEntry(namesAndContents[i]));
+                zout.write(namesAndContents[i + 1].getBytes("UTF-8"));
+                zout.closeEntry();
+            }
+        } finally {
+            zout.close();
+        }
+
+        return zipFile;
+    }
+}
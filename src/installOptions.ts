@@ -18,4 +18,11 @@ export interface InstallOptions {
      * Used to specify the InstallMode used for the install operation if the update is mandatory. This is optional and defaults to InstallMode.IMMEDIATE.
      */
     mandatoryInstallMode?: InstallMode;
+
+    /**
+     * If true, full updates are kept as their zip archive and their assets are served from it instead of being extracted, on platforms that support it.
+     * This makes installing large packages faster and halves their disk usage. It has no effect on a package that was extracted while it was downloaded.
+     * This is optional and defaults to false.
+     */
+    serveFromArchive?: boolean;
 }
@@ -24,6 +24,8 @@ interface IDiffManifest {
 interface DeploymentResult {
     deployDir: string;
     isDiffUpdate: boolean;
+    /* the hash of a full update, computed natively while it was extracted */
+    packageHash?: string;
 }
 
 /**
@@ -35,7 +37,7 @@ export class LocalPackage extends Package implements ILocalPackage {
     public static RootDir: string = "codepush";
 
     public static DownloadDir: string = LocalPackage.RootDir + "/download";
-    private static DownloadUnzipDir: string = LocalPackage.DownloadDir + "/unzipped";
+    public static DownloadUnzipDir: string = LocalPackage.DownloadDir + "/unzipped";
     private static DeployDir: string = LocalPackage.RootDir + "/deploy";
     private static VersionsDir: string = LocalPackage.DeployDir + "/versions";
 
@@ -43,6 +45,7 @@ export class LocalPackage extends Package implements ILocalPackage {
     public static PackageInfoFile: string = "currentPackage.json";
     public static OldPackageInfoFile: string = "oldPackage.json";
     private static DiffManifestFile: string = "hotcodepush.json";
+    private static UnimplementedErrorCode: string = "UNIMPLEMENTED";
 
     private static DefaultInstallOptions: InstallOptions;
 
@@ -51,6 +54,12 @@ export class LocalPackage extends Package implements ILocalPackage {
      */
     localPath: string;
 
+    /**
+     * Set when the package was extracted while it was downloaded, localPath is then the directory it was extracted to.
+     * The hash is the hash of the extracted files, already checked against packageHash for a full update.
+     */
+    extractedDownload?: { packageHash: string, isDiffUpdate: boolean };
+
     /**
      * Indicates if the current application run is the first one after the package was applied.
      */
@@ -79,24 +88,44 @@ export class LocalPackage extends Package implements ILocalPackage {
                     Sdk.reportStatusDeploy(this, AcquisitionStatus.DeploymentFailed, this.deploymentKey);
                 };
 
-                let unzipDir;
-                try {
-                    unzipDir = await FileUtil.cleanDataDirectory(LocalPackage.DownloadUnzipDir);
-                } catch (error) {
-                    installError(error);
+                const newPackageLocation = LocalPackage.VersionsDir + "/" + this.packageHash;
+                if (installOptions.serveFromArchive && this.extractedDownload) {
+                    CodePushUtil.logMessage("The package was extracted while it was downloaded, it can not be served from the archive.");
+                } else if (installOptions.serveFromArchive && await this.deployArchive(newPackageLocation)) {
+                    try {
+                        const deploymentResult: DeploymentResult = {deployDir: newPackageLocation, isDiffUpdate: false};
+                        await this.verifyPackage(deploymentResult);
+                        this.localPath = deploymentResult.deployDir;
+                        this.finishInstall(deploymentResult.deployDir, installOptions, resolve, installError);
+                    } catch (error) {
+                        installError(error);
+                    }
                     return;
                 }
 
-                try {
-                    await NativeCodePush.unzip({zipFile: this.localPath, targetDirectory: unzipDir});
-                } catch (unzipError) {
-                    installError(new Error("Could not unzip package" + CodePushUtil.getErrorMessage(unzipError)));
-                    return;
+                let extractedPackageHash: string | undefined;
+                if (this.extractedDownload) {
+                    /* a diff update archive does not contain the whole package, it is verified once applied */
+                    extractedPackageHash = this.extractedDownload.isDiffUpdate ? undefined : this.extractedDownload.packageHash;
+                } else {
+                    let unzipDir;
+                    try {
+                        unzipDir = await FileUtil.cleanDataDirectory(LocalPackage.DownloadUnzipDir);
+                    } catch (error) {
+                        installError(error);
+                        return;
+                    }
+
+                    try {
+                        extractedPackageHash = await LocalPackage.unzipAndHash(this.localPath, unzipDir);
+                    } catch (unzipError) {
+                        installError(new Error("Could not unzip package" + CodePushUtil.getErrorMessage(unzipError)));
+                        return;
+                    }
                 }
 
                 try {
-                    const newPackageLocation = LocalPackage.VersionsDir + "/" + this.packageHash;
-                    const deploymentResult = await LocalPackage.handleDeployment(newPackageLocation);
+                    const deploymentResult = await LocalPackage.handleDeployment(newPackageLocation, extractedPackageHash);
                     await this.verifyPackage(deploymentResult);
                     this.localPath = deploymentResult.deployDir;
                     this.finishInstall(deploymentResult.deployDir, installOptions, resolve, installError);
@@ -109,9 +138,24 @@ export class LocalPackage extends Package implements ILocalPackage {
         });
     }
 
+    /**
+     * Keeps the downloaded archive as the package, its assets are then served from the archive without extracting them.
+     * Returns false if the package has to be extracted instead, e.g. for a diff update or on platforms without archive packages.
+     */
+    private async deployArchive(newPackageLocation: string): Promise<boolean> {
+        try {
+            await NativeCodePush.deployArchive({zipFile: this.localPath, deployDir: newPackageLocation});
+            return true;
+        } catch (nativeError) {
+            CodePushUtil.logMessage("Could not deploy the package as an archive, extracting it. " + CodePushUtil.getErrorMessage(nativeError));
+            return false;
+        }
+    }
+
     private verifyPackage(deploymentResult: DeploymentResult): Promise<void> {
         return new Promise((resolve, reject) => {
             var deployDir = deploymentResult.deployDir;
+            var extractedPackageHash = deploymentResult.packageHash;
 
             var verificationFail: ErrorCallback = (error: Error) => {
                 reject(error);
@@ -120,7 +164,7 @@ export class LocalPackage extends Package implements ILocalPackage {
             var verify = (isSignatureVerificationEnabled: boolean, isSignatureAppearedInBundle: boolean, publicKey: string, signature: string) => {
                 if (isSignatureVerificationEnabled) {
                     if (isSignatureAppearedInBundle) {
-                        this.verifyHash(deployDir, this.packageHash, verificationFail, () => {
+                        this.verifyHash(deployDir, this.packageHash, extractedPackageHash, verificationFail, () => {
                             this.verifySignature(deployDir, this.packageHash, publicKey, signature, verificationFail, resolve);
                         });
                     } else {
@@ -139,11 +183,11 @@ export class LocalPackage extends Package implements ILocalPackage {
                         );
 
                         // verifyHash
-                        this.verifyHash(deployDir, this.packageHash, verificationFail, resolve);
+                        this.verifyHash(deployDir, this.packageHash, extractedPackageHash, verificationFail, resolve);
                     } else {
-                        if (deploymentResult.isDiffUpdate){
-                            // verifyHash
-                            this.verifyHash(deployDir, this.packageHash, verificationFail, resolve);
+                        if (deploymentResult.isDiffUpdate || extractedPackageHash){
+                            // verifyHash, free for a full update hashed while it was extracted
+                            this.verifyHash(deployDir, this.packageHash, extractedPackageHash, verificationFail, resolve);
                         } else {
                             resolve();
                         }
@@ -215,7 +259,10 @@ export class LocalPackage extends Package implements ILocalPackage {
         }
     }
 
-    private verifyHash(deployDir: string, newUpdateHash: string, errorCallback: ErrorCallback, successCallback: SuccessCallback<void>){
+    /**
+     * Compares the hash of the package to the expected one. The package is hashed natively, unless its hash is already known.
+     */
+    private verifyHash(deployDir: string, newUpdateHash: string, knownHash: string | undefined, errorCallback: ErrorCallback, successCallback: SuccessCallback<void>){
         var packageHashSuccess = (computedHash: string) => {
             if (computedHash !== newUpdateHash) {
                 errorCallback(new Error("The update contents failed the data integrity check."));
@@ -229,6 +276,10 @@ export class LocalPackage extends Package implements ILocalPackage {
             errorCallback(new Error("Unable to compute hash for package: " + error));
         };
         CodePushUtil.logMessage("Verifying hash for folder path: " + deployDir);
+        if (knownHash) {
+            packageHashSuccess(knownHash);
+            return;
+        }
         NativeCodePush.getPackageHash({path: deployDir}).then(result => packageHashSuccess(result.value), packageHashFail);
     }
 
@@ -265,51 +316,69 @@ export class LocalPackage extends Package implements ILocalPackage {
             }
         }
 
-        LocalPackage.getCurrentOrDefaultPackage().then((oldPackage: LocalPackage) => {
-            backupPackageInformationFileIfNeeded((backupError: Error) => {
-                /* continue on error, current package information is missing if this is the first update */
-                this.writeNewPackageMetadata().then(() => {
-                    var invokeSuccessAndInstall = () => {
-                        CodePushUtil.logMessage("Install succeeded.");
-                        var installModeToUse: InstallMode = this.isMandatory ? installOptions.mandatoryInstallMode : installOptions.installMode;
-                        if (installModeToUse === InstallMode.IMMEDIATE) {
-                            /* invoke success before navigating */
-                            installSuccess && installSuccess(installModeToUse);
-                            /* no need for callbacks, the javascript context will reload */
-                            NativeCodePush.install({
-                                startLocation: deployDir,
-                                installMode: installModeToUse,
-                                minimumBackgroundDuration: installOptions.minimumBackgroundDuration
-                            });
-                        } else {
-                            NativeCodePush.install({
-                                startLocation: deployDir,
-                                installMode: installModeToUse,
-                                minimumBackgroundDuration: installOptions.minimumBackgroundDuration
-                            }).then(() => { installSuccess && installSuccess(installModeToUse); }, () => { installError && installError(); });
-                        }
-                    };
+        var invokeSuccessAndInstall = () => {
+            CodePushUtil.logMessage("Install succeeded.");
+            var installModeToUse: InstallMode = this.isMandatory ? installOptions.mandatoryInstallMode : installOptions.installMode;
+            if (installModeToUse === InstallMode.IMMEDIATE) {
+                /* invoke success before navigating */
+                installSuccess && installSuccess(installModeToUse);
+                /* no need for callbacks, the javascript context will reload */
+                NativeCodePush.install({
+                    startLocation: deployDir,
+                    installMode: installModeToUse,
+                    minimumBackgroundDuration: installOptions.minimumBackgroundDuration
+                });
+            } else {
+                NativeCodePush.install({
+                    startLocation: deployDir,
+                    installMode: installModeToUse,
+                    minimumBackgroundDuration: installOptions.minimumBackgroundDuration
+                }).then(() => { installSuccess && installSuccess(installModeToUse); }, () => { installError && installError(); });
+            }
+        };
 
-                    var preInstallSuccess = () => {
+        var preInstallSuccess = () => {
+            /* the native side recorded the package information as it is now, an install interrupted before it completes is rolled back */
+            LocalPackage.getCurrentOrDefaultPackage().then((oldPackage: LocalPackage) => {
+                backupPackageInformationFileIfNeeded((backupError: Error) => {
+                    /* continue on error, current package information is missing if this is the first update */
+                    this.writeNewPackageMetadata().then(() => {
                         /* package will be cleaned up after success, on the native side */
                         invokeSuccessAndInstall();
-                    };
+                    }, (writeMetadataError: Error) => {
+                        installError && installError(writeMetadataError);
+                    });
+                });
+            }, installError);
+        };
 
-                    var preInstallFailure = (preInstallError?: any) => {
-                        CodePushUtil.logError("Preinstall failure.", preInstallError);
-                        var error = new Error("An error has occured while installing the package. " + CodePushUtil.getErrorMessage(preInstallError));
-                        installError && installError(error);
-                    };
+        var preInstallFailure = (preInstallError?: any) => {
+            CodePushUtil.logError("Preinstall failure.", preInstallError);
+            var error = new Error("An error has occured while installing the package. " + CodePushUtil.getErrorMessage(preInstallError));
+            installError && installError(error);
+        };
 
-                    NativeCodePush.preInstall({startLocation: deployDir}).then(preInstallSuccess, preInstallFailure);
-                }, (writeMetadataError: Error) => {
-                    installError && installError(writeMetadataError);
-                });
-            });
-        }, installError);
+        NativeCodePush.preInstall({startLocation: deployDir}).then(preInstallSuccess, preInstallFailure);
+    }
+
+    /**
+     * Extracts the package and hashes its files as they are extracted, so the package is not read back to verify it.
+     * Returns undefined when the platform cannot hash while extracting.
+     */
+    private static async unzipAndHash(zipFile: string, targetDirectory: string): Promise<string | undefined> {
+        try {
+            return (await NativeCodePush.unzipAndHash({zipFile, targetDirectory})).value;
+        } catch (nativeError) {
+            if (!nativeError || nativeError.code !== LocalPackage.UnimplementedErrorCode) {
+                throw nativeError;
+            }
+        }
+
+        await NativeCodePush.unzip({zipFile, targetDirectory});
+        return undefined;
     }
 
-    private static async handleDeployment(newPackageLocation: string): Promise<DeploymentResult> {
+    private static async handleDeployment(newPackageLocation: string, extractedPackageHash: string | undefined): Promise<DeploymentResult> {
         const manifestFile: GetUriOptions = {
             directory: Directory.Data,
             path: LocalPackage.DownloadUnzipDir + "/" + LocalPackage.DiffManifestFile
@@ -331,7 +400,8 @@ export class LocalPackage extends Package implements ILocalPackage {
             await LocalPackage.handleCleanDeployment(newPackageLocation);
         }
 
-        return {deployDir: newPackageLocation, isDiffUpdate};
+        /* the hash of a diff update archive does not cover the whole package, it is verified once applied */
+        return {deployDir: newPackageLocation, isDiffUpdate, packageHash: isDiffUpdate ? undefined : extractedPackageHash};
     }
 
     private async writeNewPackageMetadata(): Promise<void> {
@@ -385,8 +455,22 @@ export class LocalPackage extends Package implements ILocalPackage {
     }
 
     private static async handleDiffDeployment(newPackageLocation: string, diffManifest: GetUriOptions): Promise<void> {
+        try {
+            /* build the new package natively with hard links, without copying every file through the bridge */
+            await NativeCodePush.applyDiffUpdate({diffDirectory: LocalPackage.DownloadUnzipDir, newPackagePath: newPackageLocation});
+            return;
+        } catch (nativeError) {
+            /* a failed native diff update is not retried by copying, the copy would hide a corrupt or incomplete diff */
+            if (!nativeError || nativeError.code !== LocalPackage.UnimplementedErrorCode) {
+                throw nativeError;
+            }
+            CodePushUtil.logMessage("Native diff update not available, copying the package files.");
+        }
+
         let manifest: IDiffManifest;
         try {
+            /* start from an empty package, whatever was left in its directory */
+            await FileUtil.cleanDataDirectory(newPackageLocation);
             await LocalPackage.copyCurrentPackage(newPackageLocation, [".codepushrelease"]);
             await LocalPackage.handleCleanDeployment(newPackageLocation);
 
@@ -533,7 +617,8 @@ export class LocalPackage extends Package implements ILocalPackage {
             LocalPackage.DefaultInstallOptions = {
                 installMode: InstallMode.ON_NEXT_RESTART,
                 minimumBackgroundDuration: 0,
-                mandatoryInstallMode: InstallMode.IMMEDIATE
+                mandatoryInstallMode: InstallMode.IMMEDIATE,
+                serveFromArchive: false
             };
         }
 
@@ -6,7 +6,7 @@
 // Licensed under the MIT license.
 
 import { InstallOptions } from "./installOptions";
-import { registerPlugin } from "@capacitor/core";
+import { PluginListenerHandle, registerPlugin } from "@capacitor/core";
 
 interface StatusReport {
     status: number;
@@ -28,6 +28,7 @@ interface NativeDecodeSignatureOptions {
 
 interface NativePathOptions {
     path: string;
+    operationId?: string;
 }
 
 interface NativeHashOptions {
@@ -41,6 +42,57 @@ interface NativeInstallOptions extends InstallOptions {
 interface NativeUnzipOptions extends InstallOptions {
     zipFile: string;
     targetDirectory: string;
+    operationId?: string;
+}
+
+interface NativeOperationOptions {
+    operationId: string;
+}
+
+interface NativeOperationProgress {
+    operationId: string;
+    bytesDone: number;
+    totalBytes: number;
+    entriesDone: number;
+    totalEntries: number;
+}
+
+interface NativeDeployArchiveOptions {
+    zipFile: string;
+    deployDir: string;
+}
+
+interface NativeDiffUpdateOptions {
+    diffDirectory: string;
+    newPackagePath: string;
+}
+
+interface NativeResumableDownloadOptions {
+    url: string;
+    file: string;
+}
+
+interface NativeDownloadOptions {
+    url: string;
+    targetDirectory: string;
+    packageHash: string;
+    operationId?: string;
+}
+
+interface NativeDownloadResult {
+    packageHash: string;
+    isDiffUpdate: boolean;
+}
+
+interface NativeDownloadProgress {
+    receivedBytes: number;
+    totalBytes: number;
+}
+
+interface NativeFailedUpdateInfo {
+    failureCount: number;
+    firstFailureTime: number;
+    lastFailureTime: number;
 }
 
 interface NativeStatusReportOptions {
@@ -55,9 +107,12 @@ export interface NativeCodePushPlugin {
     getBinaryHash(): Promise<PluginCallResponse<string>>;
     getPackageHash(options: NativePathOptions): Promise<PluginCallResponse<string>>;
     notifyApplicationReady(): Promise<void>;
+    getStartupTimings(): Promise<PluginCallResponse<{ [phase: string]: number }>>;
+    getExecutorMetrics(): Promise<PluginCallResponse<{ [pool: string]: { [metric: string]: number } }>>;
     isFirstRun(options: NativeHashOptions): Promise<PluginCallResponse<boolean>>;
     isPendingUpdate(): Promise<PluginCallResponse<boolean>>;
     isFailedUpdate(options: NativeHashOptions): Promise<PluginCallResponse<boolean>>;
+    getFailedUpdateInfo(options: NativeHashOptions): Promise<PluginCallResponse<NativeFailedUpdateInfo | null>>;
     install(options: NativeInstallOptions): Promise<void>;
     reportFailed(options: NativeStatusReportOptions): Promise<void>;
     reportSucceeded(options: NativeStatusReportOptions): Promise<void>;
@@ -66,8 +121,17 @@ export interface NativeCodePushPlugin {
     getAppVersion(): Promise<PluginCallResponse<string>>;
     getNativeBuildTime(): Promise<PluginCallResponse<string>>;
     unzip(options: NativeUnzipOptions): Promise<void>;
+    unzipAndHash(options: NativeUnzipOptions): Promise<PluginCallResponse<string>>;
+    applyDiffUpdate(options: NativeDiffUpdateOptions): Promise<void>;
+    deployArchive(options: NativeDeployArchiveOptions): Promise<void>;
+    download(options: NativeResumableDownloadOptions): Promise<{ totalBytes: number }>;
+    downloadAndInstall(options: NativeDownloadOptions): Promise<NativeDownloadResult>;
+    abortDownload(): Promise<void>;
+    cancelOperation(options: NativeOperationOptions): Promise<void>;
 
     addListener(eventName: "codePushStatus", listenerFunc: (info: any) => void): void;
+    addListener(eventName: "downloadProgress", listenerFunc: (progress: NativeDownloadProgress) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
+    addListener(eventName: "operationProgress", listenerFunc: (progress: NativeOperationProgress) => void): Promise<PluginListenerHandle> & PluginListenerHandle;
 }
 
 export const CodePush = /*#__PURE__*/ registerPlugin<NativeCodePushPlugin>("CodePush");
@@ -6,6 +6,7 @@ import { DownloadProgress, ILocalPackage, IRemotePackage, Package } from "./pack
 import { Sdk } from "./sdk";
 import { Directory, Filesystem } from "@capacitor/filesystem";
 import { FileUtil } from "./fileUtil";
+import { CodePush as NativeCodePush } from "./nativeCodePushPlugin";
 import { Http } from "@capacitor-community/http";
 
 /**
@@ -13,6 +14,9 @@ import { Http } from "@capacitor-community/http";
  */
 export class RemotePackage extends Package implements IRemotePackage {
 
+  private static UnimplementedErrorCode: string = "UNIMPLEMENTED";
+  private static DownloadFailedErrorCode: string = "DOWNLOAD_FAILED";
+
   private isDownloading: boolean = false;
 
   /**
@@ -22,7 +26,6 @@ export class RemotePackage extends Package implements IRemotePackage {
 
   /**
    * Downloads the package update from the CodePush service.
-   * TODO: implement download progress
    *
    * @param downloadProgress Optional callback invoked during the download process. It is called several times with one DownloadProgress parameter.
    */
@@ -35,7 +38,8 @@ export class RemotePackage extends Package implements IRemotePackage {
     this.isDownloading = true;
 
     const file = LocalPackage.DownloadDir + "/" + LocalPackage.PackageUpdateFileName;
-    const fullPath = await FileUtil.getUri(Directory.Data, file);
+    let fullPath = await FileUtil.getUri(Directory.Data, file);
+    let extractedDownload: { packageHash: string, isDiffUpdate: boolean } | null = null;
 
     try {
       // create directory if not exists
@@ -47,18 +51,28 @@ export class RemotePackage extends Package implements IRemotePackage {
         });
       }
 
-      // delete file if it exists
-      if (await FileUtil.fileExists(Directory.Data, file)) {
-        await Filesystem.deleteFile({ directory: Directory.Data, path: file });
+      if (this.packageHash) {
+        const unzipDir = await FileUtil.cleanDataDirectory(LocalPackage.DownloadUnzipDir);
+        extractedDownload = await this.downloadAndExtractNatively(unzipDir, downloadProgress);
+        if (extractedDownload) {
+          fullPath = unzipDir;
+        }
       }
 
-      await Http.downloadFile({
-        url: this.downloadUrl,
-        method: "GET",
-        filePath: file,
-        fileDirectory: Directory.Data,
-        responseType: "blob"
-      });
+      if (!extractedDownload && !(await this.downloadNatively(fullPath, downloadProgress))) {
+        // delete file if it exists
+        if (await FileUtil.fileExists(Directory.Data, file)) {
+          await Filesystem.deleteFile({ directory: Directory.Data, path: file });
+        }
+
+        await Http.downloadFile({
+          url: this.downloadUrl,
+          method: "GET",
+          filePath: file,
+          fileDirectory: Directory.Data,
+          responseType: "blob"
+        });
+      }
     } catch (e) {
       CodePushUtil.throwError(new Error("An error occured while downloading the package. " + (e && e.message) ? e.message : ""));
     } finally {
@@ -76,6 +90,9 @@ export class RemotePackage extends Package implements IRemotePackage {
     localPackage.isFirstRun = false;
     localPackage.failedInstall = installFailed;
     localPackage.localPath = fullPath;
+    if (extractedDownload) {
+      localPackage.extractedDownload = extractedDownload;
+    }
 
     CodePushUtil.logMessage("Package download success: " + JSON.stringify(localPackage));
     Sdk.reportStatusDownload(localPackage, localPackage.deploymentKey);
@@ -87,10 +104,58 @@ export class RemotePackage extends Package implements IRemotePackage {
    * Aborts the current download session, previously started with download().
    */
   public async abortDownload(): Promise<void> {
-    // TODO: implement download abort
-    return new Promise((resolve) => {
-      this.isDownloading = false;
-      resolve();
-    });
+    if (this.isDownloading) {
+      try {
+        await NativeCodePush.abortDownload();
+      } catch (e) {
+        CodePushUtil.logMessage("Could not abort the download. " + CodePushUtil.getErrorMessage(e));
+      }
+    }
+    this.isDownloading = false;
+  }
+
+  /**
+   * Downloads the package with the native download engine and extracts it while it arrives, checking the hash of a full update.
+   * Returns null if streaming is not available on this platform or the download failed before completing, the package is then
+   * downloaded again with the resumable download. A failed integrity check or a cancelled download is thrown.
+   */
+  private async downloadAndExtractNatively(targetDirectory: string, downloadProgress?: SuccessCallback<DownloadProgress>): Promise<{ packageHash: string, isDiffUpdate: boolean } | null> {
+    const progressListener = downloadProgress ? await NativeCodePush.addListener("downloadProgress", downloadProgress) : null;
+    try {
+      return await NativeCodePush.downloadAndInstall({ url: this.downloadUrl, targetDirectory, packageHash: this.packageHash });
+    } catch (nativeError) {
+      if (!nativeError || (nativeError.code !== RemotePackage.UnimplementedErrorCode && nativeError.code !== RemotePackage.DownloadFailedErrorCode)) {
+        throw nativeError;
+      }
+      CodePushUtil.logMessage("Could not download and extract the package at once, downloading the archive. " + CodePushUtil.getErrorMessage(nativeError));
+      return null;
+    } finally {
+      if (progressListener) {
+        progressListener.remove();
+      }
+    }
+  }
+
+  /**
+   * Downloads the package with the native download engine, which resumes interrupted downloads.
+   * Returns false if the native download engine is not available on this platform, any other native error is thrown.
+   */
+  private async downloadNatively(fullPath: string, downloadProgress?: SuccessCallback<DownloadProgress>): Promise<boolean> {
+    const progressListener = downloadProgress ? await NativeCodePush.addListener("downloadProgress", downloadProgress) : null;
+    try {
+      await NativeCodePush.download({ url: this.downloadUrl, file: fullPath });
+      return true;
+    } catch (nativeError) {
+      /* a failed native download is not retried through HTTP, it already retried and resumed on its own */
+      if (!nativeError || nativeError.code !== RemotePackage.UnimplementedErrorCode) {
+        throw nativeError;
+      }
+      CodePushUtil.logMessage("Native download not available, downloading the package through HTTP. " + CodePushUtil.getErrorMessage(nativeError));
+      return false;
+    } finally {
+      if (progressListener) {
+        progressListener.remove();
+      }
+    }
   }
 }